@@ -1,8 +1,15 @@
 package com.app.pdfstation.api.controller;
 
+import com.app.pdfstation.api.dto.CompressionResultResponse;
 import com.app.pdfstation.api.dto.CreateJobResponse;
+import com.app.pdfstation.api.dto.ImageCacheStatsResponse;
+import com.app.pdfstation.api.dto.MergeSessionResponse;
+import com.app.pdfstation.api.dto.SizeEstimateResponse;
+import com.app.pdfstation.constants.PdfStationConstants;
 import com.app.pdfstation.domain.entity.PdfJob;
+import com.app.pdfstation.service.PdfCompressionService;
 import com.app.pdfstation.service.PdfJobService;
+import com.app.pdfstation.service.PdfSizeEstimationService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -32,6 +39,10 @@ public class PdfJobController {
 
         private final PdfJobService jobService;
 
+        private final PdfSizeEstimationService estimationService;
+
+        private final PdfCompressionService compressionService;
+
         private final Logger logger = LoggerFactory.getLogger(PdfJobController.class);
 
         @Operation(summary = "Create PDF job", description = "Create a new PDF processing job (compress or other operations)")
@@ -44,10 +55,16 @@ public class PdfJobController {
         public ResponseEntity<CreateJobResponse> createJob(
                         @Parameter(description = "Operation type (COMPRESS)", required = true) @RequestParam("operation") String operation,
                         @Parameter(description = "PDF file to process (max 20MB)", required = true) @RequestParam("file") MultipartFile file,
-                        @Parameter(description = "Compression quality (0-100, default=50)", required = false) @RequestParam(value = "quality", required = false, defaultValue = "50") Integer quality)
+                        @Parameter(description = "Compression quality (0-100, default=50)", required = false) @RequestParam(value = "quality", required = false, defaultValue = "50") Integer quality,
+                        @Parameter(description = "Allow converting CMYK images to RGB (default from server configuration)", required = false) @RequestParam(value = "convertCmyk", required = false) Boolean convertCmyk,
+                        @Parameter(description = "Target output size in bytes; image settings are chosen to fit it instead of from the quality", required = false) @RequestParam(value = "targetSize", required = false) Long targetSize,
+                        @Parameter(description = "Write a linearized (fast web view) PDF. Its objects are written out one by one with a classic xref table, without object streams, so the file is usually larger than without it", required = false) @RequestParam(value = "linearize", required = false) Boolean linearize)
                         throws IOException {
 
-                PdfJob job = jobService.createJob(operation, file, quality);
+                if (targetSize != null && targetSize <= 0) {
+                        throw new IllegalArgumentException("Target size must be positive");
+                }
+                PdfJob job = jobService.createJob(operation, file, quality, convertCmyk, targetSize, linearize);
 
                 return ResponseEntity.ok(
                                 new CreateJobResponse(job.getId(), job.getStatus()));
@@ -69,10 +86,29 @@ public class PdfJobController {
                 return ResponseEntity.ok()
                                 .header(HttpHeaders.CONTENT_DISPOSITION,
                                                 "attachment; filename=\"compressed_" + jobId + ".pdf\"")
+                                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                                 .contentType(MediaType.APPLICATION_PDF)
                                 .body(resource);
         }
 
+        @Operation(summary = "Get compression result", description = "Sizes and image settings of a compression job, and whether its target size was met")
+        @ApiResponses(value = {
+                        @ApiResponse(responseCode = "200", description = "Compression result", content = @Content(schema = @Schema(implementation = CompressionResultResponse.class))),
+                        @ApiResponse(responseCode = "404", description = "Job not found")
+        })
+        @GetMapping("/{jobId}/compression-result")
+        public ResponseEntity<CompressionResultResponse> getCompressionResult(
+                        @Parameter(description = "Job ID", required = true) @PathVariable UUID jobId) {
+
+                PdfJob job = jobService.getJob(jobId);
+                Boolean targetMet = job.getTargetSize() != null && job.getCompressedSize() != null
+                                ? job.getCompressedSize() <= job.getTargetSize()
+                                : null;
+                return ResponseEntity.ok(new CompressionResultResponse(job.getId(), job.getStatus(),
+                                job.getOriginalSize(), job.getCompressedSize(), job.getTargetSize(), targetMet,
+                                job.getAppliedImageDpi(), job.getAppliedJpegQuality()));
+        }
+
         @Operation(summary = "Merge PDF files", description = "Merge multiple PDF files into a single PDF")
         @ApiResponses(value = {
                         @ApiResponse(responseCode = "200", description = "Merge job created successfully"),
@@ -81,18 +117,74 @@ public class PdfJobController {
         })
         @PostMapping("/merge")
         public ResponseEntity<CreateJobResponse> createMergeJob(
-                        @Parameter(description = "PDF files to merge", required = true) @RequestParam("files") MultipartFile[] files)
+                        @Parameter(description = "PDF files to merge", required = true) @RequestParam("files") MultipartFile[] files,
+                        @Parameter(description = "Pages to take from each file, in file order, separated by ';' (e.g. \"3-5;1\"); an empty entry takes the whole file", required = false) @RequestParam(value = "pageRanges", required = false) String pageRanges,
+                        @Parameter(description = "Write a linearized (fast web view) PDF. Its objects are written out one by one with a classic xref table, without object streams, so the file is usually larger than without it", required = false) @RequestParam(value = "linearize", required = false) Boolean linearize)
                         throws IOException {
 
                 logger.info("Received merge request with {} files", files.length);
                 for (MultipartFile file : files) {
                         logger.info("File: {}, Size: {}", file.getOriginalFilename(), file.getSize());
                 }
-                PdfJob job = jobService.createMergeJob(files);
+                PdfJob job = jobService.createMergeJob(files, pageRanges, linearize);
 
                 return ResponseEntity.ok(new CreateJobResponse(job.getId(), job.getStatus()));
         }
 
+        @Operation(summary = "Open merge session", description = "Start a merge that takes documents one at a time; each is folded into the result as it arrives")
+        @ApiResponses(value = {
+                        @ApiResponse(responseCode = "200", description = "Session opened", content = @Content(schema = @Schema(implementation = MergeSessionResponse.class)))
+        })
+        @PostMapping("/merge-sessions")
+        public ResponseEntity<MergeSessionResponse> openMergeSession(
+                        @Parameter(description = "Write a linearized (fast web view) PDF. Its objects are written out one by one with a classic xref table, without object streams, so the file is usually larger than without it", required = false) @RequestParam(value = "linearize", required = false) Boolean linearize) {
+
+                return ResponseEntity.ok(toSessionResponse(jobService.openMergeSession(linearize)));
+        }
+
+        @Operation(summary = "Append to merge session", description = "Add a document to the end of an open merge session")
+        @ApiResponses(value = {
+                        @ApiResponse(responseCode = "200", description = "Document accepted", content = @Content(schema = @Schema(implementation = MergeSessionResponse.class))),
+                        @ApiResponse(responseCode = "400", description = "Session not open or invalid page ranges"),
+                        @ApiResponse(responseCode = "413", description = "File too large (max 20MB)")
+        })
+        @PostMapping(path = "/merge-sessions/{jobId}/documents", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+        public ResponseEntity<MergeSessionResponse> appendToMergeSession(
+                        @Parameter(description = "Merge session ID", required = true) @PathVariable UUID jobId,
+                        @Parameter(description = "PDF file to append (max 20MB)", required = true) @RequestParam("file") MultipartFile file,
+                        @Parameter(description = "Pages to take from it (e.g. \"3-5,1\"); all when omitted", required = false) @RequestParam(value = "pageRanges", required = false) String pageRanges)
+                        throws IOException {
+
+                return ResponseEntity.ok(toSessionResponse(jobService.appendToMergeSession(jobId, file, pageRanges)));
+        }
+
+        @Operation(summary = "Close merge session", description = "Stop taking documents and finish the merged PDF, available from download-merged once COMPLETED")
+        @ApiResponses(value = {
+                        @ApiResponse(responseCode = "200", description = "Session closing", content = @Content(schema = @Schema(implementation = MergeSessionResponse.class))),
+                        @ApiResponse(responseCode = "400", description = "Session not open or empty")
+        })
+        @PostMapping("/merge-sessions/{jobId}/close")
+        public ResponseEntity<MergeSessionResponse> closeMergeSession(
+                        @Parameter(description = "Merge session ID", required = true) @PathVariable UUID jobId) {
+
+                return ResponseEntity.ok(toSessionResponse(jobService.closeMergeSession(jobId)));
+        }
+
+        @Operation(summary = "Get merge session", description = "Status of a merge session and how many of its documents are folded")
+        @GetMapping("/merge-sessions/{jobId}")
+        public ResponseEntity<MergeSessionResponse> getMergeSession(
+                        @Parameter(description = "Merge session ID", required = true) @PathVariable UUID jobId) {
+
+                return ResponseEntity.ok(toSessionResponse(jobService.getJob(jobId)));
+        }
+
+        private MergeSessionResponse toSessionResponse(PdfJob job) {
+                int documents = job.getInputPaths() != null ? job.getInputPaths().size() : 0;
+                int folded = job.getMergeFoldedCount() != null ? job.getMergeFoldedCount() : 0;
+                return new MergeSessionResponse(job.getId(), job.getStatus(), documents,
+                                PdfStationConstants.STATUS_COMPLETED.equals(job.getStatus()) ? documents : folded);
+        }
+
         @Operation(summary = "Download merged PDF", description = "Download the merged PDF file")
         @ApiResponses(value = {
                         @ApiResponse(responseCode = "200", description = "Merged PDF file", content = @Content(mediaType = "application/pdf")),
@@ -109,20 +201,41 @@ public class PdfJobController {
                 return ResponseEntity.ok()
                                 .header(HttpHeaders.CONTENT_DISPOSITION,
                                                 "attachment; filename=\"merged_" + jobId + ".pdf\"")
+                                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                                 .contentType(MediaType.APPLICATION_PDF)
                                 .body(resource);
         }
 
-        @Operation(summary = "Estimate compressed size", description = "Get estimated file size after compression")
+        @Operation(summary = "Estimate compressed size", description = "Analyse a PDF and predict its size after compression at several quality levels, from a sample of its images")
+        @ApiResponses(value = {
+                        @ApiResponse(responseCode = "200", description = "Size breakdown and estimated sizes in bytes", content = @Content(schema = @Schema(implementation = SizeEstimateResponse.class))),
+                        @ApiResponse(responseCode = "413", description = "File too large (max 20MB)")
+        })
+        @PostMapping(path = "/estimate-size", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+        public ResponseEntity<SizeEstimateResponse> estimateSize(
+                        @Parameter(description = "PDF file to analyse (max 20MB)", required = true) @RequestParam("file") MultipartFile file)
+                        throws Exception {
+                return ResponseEntity.ok(SizeEstimateResponse.from(estimationService.estimate(file)));
+        }
+
+        @Operation(summary = "Estimate compressed size of a job", description = "Analyse the input of an existing job and predict its size after compression at several quality levels")
+        @ApiResponses(value = {
+                        @ApiResponse(responseCode = "200", description = "Size breakdown and estimated sizes in bytes", content = @Content(schema = @Schema(implementation = SizeEstimateResponse.class))),
+                        @ApiResponse(responseCode = "404", description = "Job not found")
+        })
+        @GetMapping("/{jobId}/estimate-size")
+        public ResponseEntity<SizeEstimateResponse> estimateJobSize(
+                        @Parameter(description = "Job ID", required = true) @PathVariable UUID jobId) throws Exception {
+                return ResponseEntity.ok(SizeEstimateResponse.from(estimationService.estimateJob(jobId)));
+        }
+
+        @Operation(summary = "Image cache statistics", description = "Hits, misses and size of the cache of recompressed images shared across jobs")
         @ApiResponses(value = {
-                        @ApiResponse(responseCode = "200", description = "Estimated size in bytes")
+                        @ApiResponse(responseCode = "200", description = "Cache counters since startup", content = @Content(schema = @Schema(implementation = ImageCacheStatsResponse.class)))
         })
-        @GetMapping("/estimate-size")
-        public ResponseEntity<String> estimateSize(
-                        @Parameter(description = "Original file size in bytes", required = true) @RequestParam("originalSize") long originalSize,
-                        @Parameter(description = "Compression quality (0-100)", required = true) @RequestParam("quality") int quality) {
-                long estimatedSize = (long) (originalSize * (quality / 100.0) * 0.85); // simple heuristic
-                return ResponseEntity.ok(String.valueOf(estimatedSize));
+        @GetMapping("/image-cache/stats")
+        public ResponseEntity<ImageCacheStatsResponse> getImageCacheStats() {
+                return ResponseEntity.ok(ImageCacheStatsResponse.from(compressionService.imageCacheStats()));
         }
 
         // ==================== Split Operations ====================
@@ -137,9 +250,10 @@ public class PdfJobController {
                 @RequestParam("file") MultipartFile file,
                 @RequestParam("splitType") String splitType,
                 @RequestParam(value = "splitRanges", required = false) String splitRanges,
-                @RequestParam(value = "splitInterval", required = false) Integer splitInterval) throws IOException {
+                @RequestParam(value = "splitInterval", required = false) Integer splitInterval,
+                @RequestParam(value = "linearize", required = false) Boolean linearize) throws IOException {
 
-            PdfJob job = jobService.createSplitJob(file, splitType, splitRanges, splitInterval);
+            PdfJob job = jobService.createSplitJob(file, splitType, splitRanges, splitInterval, linearize);
             return ResponseEntity.ok(new CreateJobResponse(job.getId(), job.getStatus()));
         }
 
@@ -148,6 +262,7 @@ public class PdfJobController {
             UrlResource resource = jobService.loadSplitPdfs(jobId);
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"split_" + jobId + ".zip\"")
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                     .contentType(MediaType.APPLICATION_OCTET_STREAM)
                     .body(resource);
         }
@@ -166,7 +281,8 @@ public class PdfJobController {
 
     // ==================== Protection Operations ====================
 
-        @Operation(summary = "Protect PDF", description = "Add password protection and permissions to PDF")
+        @Operation(summary = "Protect PDF", description = "Add password protection and permissions to PDF; "
+                        + "linearize=true is rejected with 400, as the encrypted output cannot be linearized")
         @PostMapping("/protect")
         public ResponseEntity<CreateJobResponse> protectPdf(
                 @RequestParam("file") MultipartFile file,
@@ -175,10 +291,11 @@ public class PdfJobController {
                 @RequestParam(value = "allowPrinting", defaultValue = "true") Boolean allowPrinting,
                 @RequestParam(value = "allowCopying", defaultValue = "true") Boolean allowCopying,
                 @RequestParam(value = "allowModification", defaultValue = "true") Boolean allowModification,
-                @RequestParam(value = "allowAssembly", defaultValue = "true") Boolean allowAssembly) throws IOException {
+                @RequestParam(value = "allowAssembly", defaultValue = "true") Boolean allowAssembly,
+                @RequestParam(value = "linearize", required = false) Boolean linearize) throws IOException {
 
             PdfJob job = jobService.createProtectJob(file, userPassword, ownerPassword,
-                    allowPrinting, allowCopying, allowModification, allowAssembly);
+                    allowPrinting, allowCopying, allowModification, allowAssembly, linearize);
             return ResponseEntity.ok(new CreateJobResponse(job.getId(), job.getStatus()));
         }
 
@@ -186,9 +303,10 @@ public class PdfJobController {
         @PostMapping("/remove-protection")
         public ResponseEntity<CreateJobResponse> removeProtection(
                 @RequestParam("file") MultipartFile file,
-                @RequestParam("password") String password) throws IOException {
+                @RequestParam("password") String password,
+                @RequestParam(value = "linearize", required = false) Boolean linearize) throws IOException {
 
-            PdfJob job = jobService.createRemoveProtectionJob(file, password);
+            PdfJob job = jobService.createRemoveProtectionJob(file, password, linearize);
             return ResponseEntity.ok(new CreateJobResponse(job.getId(), job.getStatus()));
         }
 
@@ -197,6 +315,7 @@ public class PdfJobController {
             UrlResource resource = jobService.loadProtectedPdf(jobId);
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"protected_" + jobId + ".pdf\"")
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                     .contentType(MediaType.APPLICATION_PDF)
                     .body(resource);
         }
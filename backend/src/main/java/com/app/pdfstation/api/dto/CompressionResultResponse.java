@@ -0,0 +1,12 @@
+package com.app.pdfstation.api.dto;
+
+import java.util.UUID;
+
+/**
+ * Outcome of a compression job; the sizes and settings are null until it completes.
+ *
+ * @param targetMet null when no target size was requested
+ */
+public record CompressionResultResponse(UUID id, String status, Long originalSize, Long compressedSize,
+        Long targetSize, Boolean targetMet, Double imageDpi, Float jpegQuality) {
+}
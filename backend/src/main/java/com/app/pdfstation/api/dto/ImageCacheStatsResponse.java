@@ -0,0 +1,18 @@
+package com.app.pdfstation.api.dto;
+
+import com.app.pdfstation.service.compression.ImageCache;
+
+/**
+ * Counters of the cross-job image cache since startup; all zero when it is disabled.
+ */
+public record ImageCacheStatsResponse(boolean enabled, long hits, long diskHits, long misses, double hitRate,
+        long evictions, int entries, long bytes, int diskEntries, long diskBytes) {
+
+    public static ImageCacheStatsResponse from(ImageCache.Stats stats) {
+        if (stats == null) {
+            return new ImageCacheStatsResponse(false, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        return new ImageCacheStatsResponse(true, stats.hits(), stats.diskHits(), stats.misses(), stats.hitRate(),
+                stats.evictions(), stats.entries(), stats.bytes(), stats.diskEntries(), stats.diskBytes());
+    }
+}
@@ -0,0 +1,13 @@
+package com.app.pdfstation.api.dto;
+
+import java.util.UUID;
+
+/**
+ * State of a merge session: OPEN while it takes documents, CLOSING while the
+ * result is finished, then COMPLETED.
+ *
+ * @param documents documents appended so far
+ * @param folded    documents already folded into the partial result
+ */
+public record MergeSessionResponse(UUID id, String status, int documents, int folded) {
+}
@@ -0,0 +1,20 @@
+package com.app.pdfstation.api.dto;
+
+import com.app.pdfstation.service.compression.SizeEstimate;
+
+import java.util.Map;
+
+/**
+ * Breakdown of a PDF by stored bytes and its predicted compressed size per quality (0-100).
+ */
+public record SizeEstimateResponse(long originalSize, long imageBytes, Map<String, Long> imageBytesByFilter,
+        Map<String, Long> imageBytesByDpi, long fontBytes, long contentBytes, long otherBytes,
+        int sampledImages, Map<Integer, Long> estimatedSizes) {
+
+    public static SizeEstimateResponse from(SizeEstimate estimate) {
+        return new SizeEstimateResponse(estimate.originalSize(), estimate.imageBytes(),
+                estimate.imageBytesByFilter(), estimate.imageBytesByDpi(), estimate.fontBytes(),
+                estimate.contentBytes(), estimate.otherBytes(), estimate.sampledImages(),
+                estimate.estimatedSizes());
+    }
+}
@@ -22,6 +22,11 @@ public class GlobalExceptionHandler {
                 .body("Error processing file: " + exc.getMessage());
     }
 
+    @ExceptionHandler(JobNotFoundException.class)
+    public ResponseEntity<String> handleJobNotFoundException(JobNotFoundException exc) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(exc.getMessage());
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public ResponseEntity<String> handleRuntimeException(RuntimeException exc) {
         return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(exc.getMessage());
@@ -0,0 +1,15 @@
+package com.app.pdfstation.api.exception;
+
+import com.app.pdfstation.constants.PdfStationConstants;
+
+/**
+ * No job exists with the requested ID; answered with 404
+ */
+public class JobNotFoundException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public JobNotFoundException() {
+        super(PdfStationConstants.ERROR_JOB_NOT_FOUND);
+    }
+}
@@ -0,0 +1,110 @@
+package com.app.pdfstation.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Compression Configuration
+ *
+ * Binds the pdfstation.compression.* block of application.properties.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "pdfstation.compression")
+@Getter
+@Setter
+public class CompressionProperties {
+
+    /**
+     * Worker threads used to decode, rescale and encode images.
+     * 0 means one per available processor, 1 keeps the work on the calling thread.
+     */
+    private int parallelism = 0;
+
+    /**
+     * Deflater level used when re-encoding content streams, 1 (fastest) to 9 (smallest).
+     */
+    private int deflateLevel = 9;
+
+    /**
+     * Save compressed output with object streams and a cross-reference stream (PDF 1.5+).
+     * When false, every object is written at top level with a classic xref table.
+     */
+    private boolean objectStreams = true;
+
+    /**
+     * Heap budget per compression job in megabytes. Stream data beyond it goes to a
+     * temp-file cache, decoded images in flight are kept within it and encoded images
+     * that would go over it are spilled to scratch files. 0 keeps everything in memory.
+     */
+    private int memoryBudgetMb = 128;
+
+    /**
+     * Also rework images for their colour alone: near-gray RGB or CMYK images are
+     * stored as one channel, and CMYK images become sRGB unless the job keeps CMYK.
+     */
+    private boolean colorNormalization = true;
+
+    /**
+     * Whether jobs that do not say otherwise may convert CMYK images to RGB.
+     */
+    private boolean convertCmyk = true;
+
+    /**
+     * Inline images in page content with at least this many bytes of data are turned
+     * into image XObjects, so they can be recompressed and shared. 0 converts all of them.
+     */
+    private int inlineImageMinBytes = 4096;
+
+    /**
+     * Remove page thumbnails, private application data (/PieceInfo) and resources
+     * no content uses, and report them with the orphaned objects the save drops.
+     */
+    private boolean strip = true;
+
+    /**
+     * While stripping, also remove XMP metadata streams. Breaks PDF/A conformance.
+     */
+    private boolean stripMetadata = false;
+
+    /**
+     * While stripping, also remove embedded files and file attachment annotations.
+     */
+    private boolean stripAttachments = false;
+
+    /**
+     * Images sampled to predict output sizes, e.g. when searching for a target size.
+     */
+    private int estimateSamples = 8;
+
+    /**
+     * Size estimates kept per input content hash; the least recently used are dropped
+     * beyond this. 0 disables the cache.
+     */
+    private int estimateCacheEntries = 256;
+
+    /**
+     * Memory for recompressed images shared across jobs, keyed by image content and
+     * encoding parameters, in megabytes. 0 disables the cache, including its disk tier.
+     */
+    private int imageCacheMb = 64;
+
+    /**
+     * Directory for a disk tier of the image cache; empty keeps it in memory only.
+     */
+    private String imageCacheDir = "";
+
+    /**
+     * Disk space for the image cache directory in megabytes.
+     */
+    private int imageCacheDiskMb = 1024;
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetMb * 1024L * 1024L;
+    }
+
+    public int getEffectiveParallelism() {
+        return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,57 @@
+package com.app.pdfstation.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Merge Configuration
+ *
+ * Binds the pdfstation.merge.* block of application.properties.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "pdfstation.merge")
+@Getter
+@Setter
+public class MergeProperties {
+
+    /**
+     * Heap budget per merge job in megabytes. When the inputs together are larger,
+     * the merged document's stream data beyond it goes to a temp-file cache.
+     * 0 keeps everything in memory.
+     */
+    private int memoryBudgetMb = 256;
+
+    /**
+     * Fingerprint the fonts, images and ICC profiles each source brings and reuse
+     * identical ones already in the merged document instead of writing them again.
+     */
+    private boolean shareResources = true;
+
+    /**
+     * Merges with at least this many inputs are done as a tree: groups of inputs are
+     * merged in parallel into intermediate files, which are merged in turn until one
+     * remains. 0 always appends the inputs one after another.
+     */
+    private int treeMinFiles = 64;
+
+    /**
+     * Inputs, or intermediate files, merged together by one task of a tree merge.
+     */
+    private int treeGroupSize = 16;
+
+    /**
+     * Worker threads for tree merges.
+     * 0 means one per available processor, 1 merges the groups on the calling thread.
+     */
+    private int parallelism = 0;
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetMb * 1024L * 1024L;
+    }
+
+    public int getEffectiveParallelism() {
+        return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -19,6 +19,7 @@ public final class PdfStationConstants {
     public static final String OPERATION_SPLIT = "SPLIT";
     public static final String OPERATION_PROTECT = "PROTECT";
     public static final String OPERATION_PDF_TO_WORD = "PDF_TO_WORD";
+    public static final String OPERATION_MERGE_SESSION = "MERGE_SESSION";
 
     // ==================== Protection Actions ====================
     public static final String PROTECTION_ACTION_ADD = "ADD";
@@ -29,6 +30,8 @@ public final class PdfStationConstants {
     public static final String STATUS_PROCESSING = "PROCESSING";
     public static final String STATUS_COMPLETED = "COMPLETED";
     public static final String STATUS_FAILED = "FAILED";
+    public static final String STATUS_OPEN = "OPEN"; // merge session accepting documents
+    public static final String STATUS_CLOSING = "CLOSING"; // merge session closed, result being finished
 
     // ==================== File Extensions ====================
     public static final String PDF_EXTENSION = ".pdf";
@@ -42,6 +45,9 @@ public final class PdfStationConstants {
     public static final String ERROR_INVALID_OPERATION = "Invalid operation";
     public static final String ERROR_FILE_TOO_LARGE = "File too large";
     public static final String ERROR_NO_FILES_PROVIDED = "No files provided";
+    public static final String ERROR_SESSION_NOT_OPEN = "Merge session is not open";
+    public static final String ERROR_SESSION_EMPTY = "Merge session has no documents";
+    public static final String ERROR_LINEARIZE_PROTECTED = "Protected PDFs are encrypted and cannot be linearized";
 
     // ==================== HTTP Headers ====================
     public static final String CONTENT_DISPOSITION = "Content-Disposition";
@@ -40,6 +40,36 @@ public class PdfJob {
     @Column(name = "compression_quality")
     private Double compressionQuality = 0.5;
 
+    @Column(name = "convert_cmyk")
+    private Boolean convertCmyk; // COMPRESS may turn CMYK images into RGB; null uses the configured default
+
+    @Column(name = "packed_objects")
+    private Integer packedObjects; // objects written into object streams by COMPRESS
+
+    @Column(name = "target_size")
+    private Long targetSize; // COMPRESS searches for settings that fit this many bytes; null uses the quality
+
+    @Column(name = "original_size")
+    private Long originalSize; // input bytes of a COMPRESS job
+
+    @Column(name = "compressed_size")
+    private Long compressedSize; // output bytes of a COMPRESS job
+
+    @Column(name = "applied_image_dpi")
+    private Double appliedImageDpi; // image resolution COMPRESS used
+
+    @Column(name = "applied_jpeg_quality")
+    private Float appliedJpegQuality; // JPEG quality (0-1) COMPRESS used
+
+    @Column(name = "linearize")
+    private Boolean linearize; // write the output as a linearized (fast web view) PDF
+
+    @Column(name = "merge_page_ranges", length = 2048)
+    private String mergePageRanges; // MERGE pages per input, ";"-separated: "3-5;;1" (empty takes the whole file)
+
+    @Column(name = "merge_folded_count")
+    private Integer mergeFoldedCount; // MERGE_SESSION documents already folded into the partial result
+
     @Column(name = "split_type")
     private String splitType; // "pages", "interval", "all"
 
@@ -1,9 +1,47 @@
 package com.app.pdfstation.domain.repository;
 
 import com.app.pdfstation.domain.entity.PdfJob;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Optional;
 import java.util.UUID;
 
 public interface PdfJobRepository extends JpaRepository<PdfJob, UUID> {
+
+    /**
+     * Load a job and lock its row until the transaction ends, e.g. to append to a merge session
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select j from PdfJob j where j.id = :id")
+    Optional<PdfJob> findForUpdate(@Param("id") UUID id);
+
+    /**
+     * Record folding progress without writing back the rest of a job that appends may be changing
+     */
+    @Modifying
+    @Transactional
+    @Query("update PdfJob j set j.mergeFoldedCount = :count where j.id = :id")
+    int updateMergeFoldedCount(@Param("id") UUID id, @Param("count") int count);
+
+    /**
+     * Count a failed attempt, likewise leaving the rest of the job alone
+     */
+    @Modifying
+    @Transactional
+    @Query("update PdfJob j set j.retryCount = j.retryCount + 1 where j.id = :id")
+    int incrementRetryCount(@Param("id") UUID id);
+
+    /**
+     * Set the status alone, e.g. to fail a merge session that is still taking appends
+     */
+    @Modifying
+    @Transactional
+    @Query("update PdfJob j set j.status = :status where j.id = :id")
+    int updateStatus(@Param("id") UUID id, @Param("status") String status);
 }
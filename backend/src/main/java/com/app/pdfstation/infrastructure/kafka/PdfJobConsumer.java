@@ -4,9 +4,13 @@ import com.app.pdfstation.constants.PdfStationConstants;
 import com.app.pdfstation.domain.entity.PdfJob;
 import com.app.pdfstation.domain.repository.PdfJobRepository;
 import com.app.pdfstation.service.PdfCompressionService;
+import com.app.pdfstation.service.PdfLinearizationService;
 import com.app.pdfstation.service.PdfMergeService;
 import com.app.pdfstation.service.PdfSplitService;
 import com.app.pdfstation.service.PdfProtectionService;
+import com.app.pdfstation.service.compression.CompressionOptions;
+import com.app.pdfstation.service.compression.CompressionReport;
+import com.app.pdfstation.service.merge.PageSelection;
 import com.app.pdfstation.infrastructure.storage.FileStorageService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -16,6 +20,8 @@ import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 @Slf4j
@@ -32,6 +38,7 @@ public class PdfJobConsumer {
     private final PdfMergeService mergeService;
     private final PdfSplitService splitService;
     private final PdfProtectionService protectionService;
+    private final PdfLinearizationService linearizationService;
     private final com.app.pdfstation.service.PdfToWordService pdfToWordService;
 
     @KafkaListener(topics = "pdf-jobs", groupId = "pdf-processor-group")
@@ -40,6 +47,11 @@ public class PdfJobConsumer {
         PdfJob job = jobRepository.findById(event.getJobId()).orElseThrow();
 
         try {
+            if (PdfStationConstants.OPERATION_MERGE_SESSION.equals(job.getOperation())) {
+                foldMergeSession(job);
+                return;
+            }
+
             logger.debug("Processing job " + job.getId());
             job.setStatus(PdfStationConstants.STATUS_PROCESSING);
             jobRepository.save(job);
@@ -59,12 +71,33 @@ public class PdfJobConsumer {
                         ? job.getCompressionQuality().floatValue()
                         : (float) PdfStationConstants.DEFAULT_COMPRESSION_QUALITY_DECIMAL;
 
-                compressionService.compressPdf(inputPath, outputPath, quality);
+                CompressionOptions options = compressionService.defaultOptions(quality);
+                if (job.getConvertCmyk() != null) {
+                    options = options.withConvertCmyk(job.getConvertCmyk());
+                }
+
+                CompressionReport report = job.getTargetSize() != null
+                        ? compressionService.compressToTargetSize(inputPath, outputPath, options, job.getTargetSize())
+                        : compressionService.compressPdf(inputPath, outputPath, options);
+                job.setPackedObjects(report.packedObjects());
+                job.setOriginalSize(report.originalSize());
+                job.setCompressedSize(report.compressedSize());
+                job.setAppliedImageDpi(report.options().targetDpi());
+                job.setAppliedJpegQuality(report.options().jpegQuality());
+                if (linearize(job, outputPath)) {
+                    // The linearized file keeps no object streams
+                    job.setPackedObjects(0);
+                    job.setCompressedSize(Files.size(Path.of(outputPath)));
+                }
             }
 
             if (PdfStationConstants.OPERATION_MERGE.equals(job.getOperation())) {
                 outputPath = storageService.generateMergedOutputPath(job.getId());
-                mergeService.merge(job.getInputPaths(), outputPath);
+                List<PageSelection> selections = job.getMergePageRanges() != null
+                        ? PageSelection.parseAll(job.getMergePageRanges(), job.getInputPaths().size())
+                        : null;
+                mergeService.merge(job.getInputPaths(), selections, outputPath);
+                linearize(job, outputPath);
                 job.setOutputPath(outputPath);
             }
 
@@ -87,6 +120,9 @@ public class PdfJobConsumer {
                     throw new IllegalArgumentException("Invalid split type: " + job.getSplitType());
                 }
                 
+                for (java.io.File part : splitPdfs) {
+                    linearize(job, part.getPath());
+                }
                 String zipPath = outputDir + "/split.zip";
                 splitService.createZipArchive(splitPdfs, zipPath);
                 outputPath = zipPath;
@@ -106,6 +142,7 @@ public class PdfJobConsumer {
                         job.getUserPassword(), job.getOwnerPassword(), permissions);
                 } else if (PdfStationConstants.PROTECTION_ACTION_REMOVE.equals(job.getProtectionAction())) {
                     protectionService.removeProtection(inputPath, outputPath, job.getUserPassword());
+                    linearize(job, outputPath);
                 } else {
                     throw new IllegalArgumentException("Invalid protection action: " + job.getProtectionAction());
                 }
@@ -129,19 +166,73 @@ public class PdfJobConsumer {
 
             PdfJob failedJob = jobRepository.findById(event.getJobId()).orElseThrow();
             failedJob.setRetryCount(failedJob.getRetryCount() + 1);
+            // Appends and a close may be changing a merge session meanwhile, so only
+            // the retry count and status are written for it
+            boolean session = PdfStationConstants.OPERATION_MERGE_SESSION.equals(failedJob.getOperation());
+            if (session) {
+                jobRepository.incrementRetryCount(failedJob.getId());
+            }
 
             if (failedJob.getRetryCount() >= PdfStationConstants.DEFAULT_MAX_RETRIES) {
                 // Max retries reached, send to DLQ
                 failedJob.setStatus(PdfStationConstants.STATUS_FAILED);
-                jobRepository.save(failedJob);
+                if (session) {
+                    jobRepository.updateStatus(failedJob.getId(), PdfStationConstants.STATUS_FAILED);
+                } else {
+                    jobRepository.save(failedJob);
+                }
                 statusProducer.publishStatus(
                         new PdfJobStatusEvent(failedJob.getId(), PdfStationConstants.STATUS_FAILED));
                 dlqProducer.sendToDlq(event);
             } else {
-                jobRepository.save(failedJob);
+                if (!session) {
+                    jobRepository.save(failedJob);
+                }
                 throw e; // retry
             }
         }
     }
 
+    /**
+     * Fold what was appended to a merge session since the last event, and finish
+     * the result once the session is closed. Events of one session share its key,
+     * so they arrive here one at a time and in order.
+     */
+    private void foldMergeSession(PdfJob job) throws Exception {
+        // An append event may already have finished a session closed behind it
+        if (!PdfStationConstants.STATUS_OPEN.equals(job.getStatus())
+                && !PdfStationConstants.STATUS_CLOSING.equals(job.getStatus())) {
+            logger.debug("Merge session " + job.getId() + " is " + job.getStatus() + ", nothing to fold");
+            return;
+        }
+        Path sessionDir = Path.of(storageService.generateMergeSessionDir(job.getId()));
+        List<PageSelection> selections = job.getMergePageRanges() != null
+                ? PageSelection.parseAll(job.getMergePageRanges(), job.getInputPaths().size())
+                : null;
+        int folded = mergeService.foldSession(job.getInputPaths(), selections, sessionDir);
+        // Appends may be changing the rest of the job meanwhile
+        jobRepository.updateMergeFoldedCount(job.getId(), folded);
+
+        if (PdfStationConstants.STATUS_CLOSING.equals(job.getStatus())) {
+            String outputPath = storageService.generateMergedOutputPath(job.getId());
+            mergeService.finishSession(sessionDir, outputPath);
+            linearize(job, outputPath);
+
+            job.setMergeFoldedCount(folded);
+            job.setOutputPath(outputPath);
+            job.setStatus(PdfStationConstants.STATUS_COMPLETED);
+            jobRepository.save(job);
+            statusProducer.publishStatus(
+                    new PdfJobStatusEvent(job.getId(), PdfStationConstants.STATUS_COMPLETED));
+            logger.debug("Completed merge session " + job.getId());
+        }
+    }
+
+    /**
+     * Linearize the output if the job asked for it; encrypted outputs are left as written
+     */
+    private boolean linearize(PdfJob job, String path) throws IOException {
+        return Boolean.TRUE.equals(job.getLinearize()) && linearizationService.linearize(path);
+    }
+
 }
@@ -51,6 +51,25 @@ public class FileStorageService {
         return paths;
     }
 
+    /**
+     * Store a document appended to a merge session; the index keeps uploads of
+     * the same name apart
+     */
+    public String saveSessionFile(UUID jobId, int index, MultipartFile file) throws IOException {
+        Path jobDir = Paths.get(BASE_DIR + jobId);
+        Files.createDirectories(jobDir);
+
+        Path filePath = jobDir.resolve(String.format("%05d_%s", index, file.getOriginalFilename()));
+        Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
+        return filePath.toString();
+    }
+
+    public String generateMergeSessionDir(UUID jobId) throws IOException {
+        Path dir = Paths.get(MERGED_OUTPUT_DIR, "session_" + jobId);
+        Files.createDirectories(dir);
+        return dir.toString();
+    }
+
     public String generateMergedOutputPath(UUID jobId) throws IOException {
         Path outputDir = Paths.get(MERGED_OUTPUT_DIR);
         Files.createDirectories(outputDir);
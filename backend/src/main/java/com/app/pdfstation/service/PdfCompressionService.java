@@ -1,38 +1,93 @@
 package com.app.pdfstation.service;
 
+import com.app.pdfstation.config.CompressionProperties;
+import com.app.pdfstation.service.compression.*;
+import jakarta.annotation.PreDestroy;
 import org.apache.pdfbox.Loader;
-import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
+import org.apache.pdfbox.pdfwriter.compress.CompressParameters;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.PDResources;
-import org.apache.pdfbox.pdmodel.common.PDStream;
-import org.apache.pdfbox.pdmodel.font.*;
-import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
-import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
-import org.apache.pdfbox.contentstream.PDFStreamEngine;
-import org.apache.pdfbox.contentstream.operator.Operator;
-import org.apache.pdfbox.cos.COSBase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
 
 @Service
 public class PdfCompressionService {
     private final Logger logger = LoggerFactory.getLogger(PdfCompressionService.class);
 
+    private final int parallelism;
+    private final int deflateLevel;
+    private final CompressParameters saveParameters;
+    private final long memoryBudget;
+    private final boolean colorNormalization;
+    private final boolean defaultConvertCmyk;
+    private final int inlineImageMinBytes;
+    private final boolean strip;
+    private final boolean stripMetadata;
+    private final boolean stripAttachments;
+    private final int estimateSamples;
+
+    // Full compression runs a target-size job may take before settling
+    private static final int MAX_TARGET_SIZE_RUNS = 3;
+
+    // Shared by all jobs; null when parallelism is 1 and images and streams are encoded inline
+    private final ExecutorService imagePool;
+
+    // Shared by all jobs; null when disabled
+    private final ImageCache imageCache;
+
+    public PdfCompressionService(CompressionProperties properties) throws IOException {
+        this.parallelism = properties.getEffectiveParallelism();
+        this.deflateLevel = properties.getDeflateLevel();
+        this.saveParameters = properties.isObjectStreams()
+                ? CompressParameters.DEFAULT_COMPRESSION
+                : CompressParameters.NO_COMPRESSION;
+        this.memoryBudget = properties.getMemoryBudgetBytes();
+        this.colorNormalization = properties.isColorNormalization();
+        this.defaultConvertCmyk = properties.isConvertCmyk();
+        this.inlineImageMinBytes = properties.getInlineImageMinBytes();
+        this.strip = properties.isStrip();
+        this.stripMetadata = properties.isStripMetadata();
+        this.stripAttachments = properties.isStripAttachments();
+        this.estimateSamples = properties.getEstimateSamples();
+        if (properties.getImageCacheMb() > 0) {
+            Path cacheDir = properties.getImageCacheDir().isBlank() ? null : Path.of(properties.getImageCacheDir());
+            this.imageCache = new ImageCache(properties.getImageCacheMb() * 1024L * 1024L, cacheDir,
+                    properties.getImageCacheDiskMb() * 1024L * 1024L);
+        } else {
+            this.imageCache = null;
+        }
+        if (parallelism > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.imagePool = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "pdf-image-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.imagePool = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (imagePool != null) {
+            imagePool.shutdownNow();
+        }
+    }
+
     private long safeSize(Path p) {
         try {
             return Files.size(p);
@@ -42,423 +97,163 @@ public class PdfCompressionService {
         }
     }
 
-    private String humanReadable(long bytes) {
-        if (bytes < 0)
-            return "unknown";
-        if (bytes < 1024)
-            return bytes + " B";
-        int exp = (int) (Math.log(bytes) / Math.log(1024));
-        char unit = "KMGTPE".charAt(exp - 1);
-        double val = bytes / Math.pow(1024, exp);
-        DecimalFormat df = new DecimalFormat("#.##");
-        return df.format(val) + " " + unit + "B";
+    /**
+     * Count the objects the saved file keeps inside object streams. Only the
+     * cross-reference data is parsed; compressed entries have negative offsets.
+     */
+    private int countPackedObjects(Path output) {
+        try (PDDocument saved = Loader.loadPDF(output.toFile())) {
+            return (int) saved.getDocument().getXrefTable().values().stream()
+                    .filter(offset -> offset < 0)
+                    .count();
+        } catch (IOException e) {
+            logger.info("Failed to read cross-reference data of {}: {}", output, e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Counters of the cross-job image cache, or null when it is disabled
+     */
+    public ImageCache.Stats imageCacheStats() {
+        return imageCache != null ? imageCache.getStats() : null;
+    }
+
+    /**
+     * Options for a job that only chose a quality, with the configured defaults
+     */
+    public CompressionOptions defaultOptions(float userQuality) {
+        return CompressionOptions.ofQuality(userQuality).withConvertCmyk(defaultConvertCmyk);
+    }
+
+    public CompressionReport compressPdf(String inputPath, String outputPath, float userQuality) throws Exception {
+        return compressPdf(inputPath, outputPath, defaultOptions(userQuality));
     }
 
-    public String compressPdf(String inputPath, String outputPath, float userQuality) throws Exception {
+    public CompressionReport compressPdf(String inputPath, String outputPath, CompressionOptions options)
+            throws Exception {
 
+        float userQuality = options.quality();
         long beforeSize = safeSize(Path.of(inputPath));
         logger.info("Starting industry-standard PDF compression for file: {}", inputPath);
         logger.info("Initial size: {} bytes ({})", beforeSize, humanReadable(beforeSize));
         logger.info("User quality setting: {}%", (int) (userQuality * 100));
 
-        try (PDDocument document = Loader.loadPDF(new File(inputPath))) {
-
-            int imagesProcessed = 0;
-            long totalImageSavings = 0;
-
-            // Process images with quality-preserving compression
-            for (PDPage page : document.getPages()) {
-                PDResources resources = page.getResources();
-                if (resources == null)
-                    continue;
-
-                for (COSName name : resources.getXObjectNames()) {
-                    if (resources.isImageXObject(name)) {
-                        PDImageXObject image = (PDImageXObject) resources.getXObject(name);
-
-                        long originalImageSize = image.getCOSObject().getLength();
-
-                        // Calculate effective DPI (assuming 8.5x11 inch page)
-                        double imageDPI = calculateImageDPI(image, page);
-
-                        // Only compress images that benefit from it
-                        if (shouldCompressImage(image, imageDPI, userQuality)) {
-                            PDImageXObject compressedImage = compressImageQualityPreserving(document, image,
-                                    userQuality, imageDPI);
-
-                            if (compressedImage != null) {
-                                long newImageSize = compressedImage.getCOSObject().getLength();
-                                long savings = originalImageSize - newImageSize;
-
-                                if (savings > 0) {
-                                    resources.put(name, compressedImage);
-                                    totalImageSavings += savings;
-                                    imagesProcessed++;
-                                    logger.debug("Compressed image: {} -> {} (saved {})",
-                                            humanReadable(originalImageSize),
-                                            humanReadable(newImageSize),
-                                            humanReadable(savings));
-                                }
-                            }
-                        } else {
-                            logger.debug("Skipping image ({}x{}, {:.1f} DPI) - already optimal",
-                                    image.getWidth(), image.getHeight(), imageDPI);
-                        }
-                    }
-                }
+        Map<String, Long> strippedBytes;
+        try (PDDocument document = Loader.loadPDF(new File(inputPath), streamCache())) {
+
+            // All phases share a single walk over the page tree:
+            // inline images become XObjects before the page's images are resolved,
+            // images, then Phase 1 font subsetting, Phase 2 content streams, Phase 3 duplicate
+            // images, Phase 4 duplicate streams of any kind, Phase 5 stripping what is never shown
+            List<CompressionPhase> phases = new ArrayList<>(List.of(
+                    new InlineImagePhase(document, inlineImageMinBytes),
+                    new ImageRecompressionPhase(document, options, imagePool, parallelism, memoryBudget,
+                            colorNormalization, imageCache),
+                    new FontSubsettingPhase(document),
+                    new ContentStreamPhase(imagePool, parallelism, deflateLevel),
+                    new DuplicateImagePhase(),
+                    new DuplicateStreamPhase(document, imagePool, parallelism)));
+            StripPhase stripPhase = strip ? new StripPhase(document, stripMetadata, stripAttachments) : null;
+            if (stripPhase != null) {
+                phases.add(stripPhase);
             }
 
-            logger.info("Processed {} images, saved {}", imagesProcessed, humanReadable(totalImageSavings));
-
-            // ===== PHASE 1: Font Subsetting & Optimization =====
-            logger.info("Starting Phase 1: Font Subsetting");
-            optimizeFonts(document);
-
-            // ===== PHASE 2: Content Stream Compression =====
-            logger.info("Starting Phase 2: Content Stream Compression");
-            compressContentStreams(document);
-
-            // ===== PHASE 3: Duplicate Object Removal =====
-            logger.info("Starting Phase 3: Duplicate Object Removal");
-            deduplicateObjects(document);
+            new DocumentWalker(phases).walk(document);
+            strippedBytes = stripPhase != null ? stripPhase.getRemovedBytes() : Map.of();
 
-            // Save with compression
-            document.save(outputPath);
+            // Save with object streams and an xref stream unless configured otherwise
+            document.save(new File(outputPath), saveParameters);
         }
 
         long afterSize = safeSize(Path.of(outputPath));
+        int packedObjects = saveParameters.isCompress() ? countPackedObjects(Path.of(outputPath)) : 0;
         logger.info("PDF compression completed.");
         logger.info("Final size: {} bytes ({})", afterSize, humanReadable(afterSize));
+        logger.info("Objects packed into object streams: {}", packedObjects);
 
         if (beforeSize > 0) {
             double reductionPercent = (beforeSize - afterSize) * 100.0 / beforeSize;
             logger.info("Size reduction: {:.2f}% ({} saved)", reductionPercent, humanReadable(beforeSize - afterSize));
         }
 
-        return outputPath;
-    }
-
-    /**
-     * Calculate effective DPI of an image based on its dimensions and page size
-     */
-    private double calculateImageDPI(PDImageXObject image, PDPage page) {
-        // Assume image fits within page bounds
-        float pageWidth = page.getMediaBox().getWidth();
-        float pageHeight = page.getMediaBox().getHeight();
-
-        // Convert points to inches (72 points = 1 inch)
-        double pageWidthInches = pageWidth / 72.0;
-        double pageHeightInches = pageHeight / 72.0;
-
-        // Calculate DPI based on image dimensions
-        double dpiX = image.getWidth() / pageWidthInches;
-        double dpiY = image.getHeight() / pageHeightInches;
-
-        return Math.max(dpiX, dpiY);
-    }
-
-    /**
-     * Determine if an image should be compressed based on quality settings and
-     * current DPI
-     */
-    private boolean shouldCompressImage(PDImageXObject image, double imageDPI, float userQuality) {
-        // Skip very small images (likely icons or logos)
-        if (image.getWidth() < 100 || image.getHeight() < 100) {
-            return false;
-        }
-
-        // Target DPI based on quality setting
-        // High quality (>0.8): 300 DPI (print quality)
-        // Medium quality (0.5-0.8): 150 DPI (screen quality)
-        // Low quality (<0.5): 96 DPI (web quality)
-        double targetDPI;
-        if (userQuality > 0.8) {
-            targetDPI = 300;
-        } else if (userQuality > 0.5) {
-            targetDPI = 150;
-        } else {
-            targetDPI = 96;
-        }
-
-        // Only compress if current DPI exceeds target
-        return imageDPI > targetDPI * 1.2; // 20% margin to avoid unnecessary recompression
+        return new CompressionReport(outputPath, beforeSize, afterSize, packedObjects, strippedBytes, options);
     }
 
     /**
-     * Compress image while preserving quality
+     * Compress with the best image settings predicted to stay within targetBytes.
+     *
+     * Settings are chosen from a sample of the images (see {@link TargetSizeSearch});
+     * the document is compressed in full only to check a choice, at most
+     * {@value #MAX_TARGET_SIZE_RUNS} times. When even the smallest settings miss the
+     * target, the smallest output is kept and the report shows the size reached.
      */
-    private PDImageXObject compressImageQualityPreserving(PDDocument document, PDImageXObject image,
-            float userQuality, double currentDPI) throws Exception {
-        BufferedImage bufferedImage = image.getImage();
-
-        // Calculate target dimensions based on DPI
-        double targetDPI;
-        if (userQuality > 0.8) {
-            targetDPI = 300; // Print quality
-        } else if (userQuality > 0.5) {
-            targetDPI = 150; // Screen quality
-        } else {
-            targetDPI = 96; // Web quality
-        }
-
-        // Calculate scale factor
-        double scaleFactor = targetDPI / currentDPI;
-
-        // Only downsample if needed
-        if (scaleFactor < 0.95) {
-            int newWidth = (int) (bufferedImage.getWidth() * scaleFactor);
-            int newHeight = (int) (bufferedImage.getHeight() * scaleFactor);
-
-            // Use high-quality interpolation
-            BufferedImage resized = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-            java.awt.Graphics2D g = resized.createGraphics();
-            g.setRenderingHint(java.awt.RenderingHints.KEY_INTERPOLATION,
-                    java.awt.RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-            g.setRenderingHint(java.awt.RenderingHints.KEY_RENDERING,
-                    java.awt.RenderingHints.VALUE_RENDER_QUALITY);
-            g.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING,
-                    java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
-            g.drawImage(bufferedImage, 0, 0, newWidth, newHeight, null);
-            g.dispose();
-            bufferedImage = resized;
-        }
-
-        // Compress with high JPEG quality
-        // Map user quality (0-1) to JPEG quality (0.75-0.95)
-        float jpegQuality = 0.75f + (userQuality * 0.20f);
-
-        try (ByteArrayOutputStream compressedImageStream = new ByteArrayOutputStream();
-                ImageOutputStream ios = ImageIO.createImageOutputStream(compressedImageStream)) {
-
-            ImageWriter jpgWriter = ImageIO.getImageWritersByFormatName("jpg").next();
-            ImageWriteParam jpgWriteParam = jpgWriter.getDefaultWriteParam();
-            jpgWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            jpgWriteParam.setCompressionQuality(jpegQuality);
-
-            jpgWriter.setOutput(ios);
-            jpgWriter.write(null, new IIOImage(bufferedImage, null, null), jpgWriteParam);
-            jpgWriter.dispose();
-
-            return JPEGFactory.createFromStream(document,
-                    new ByteArrayInputStream(compressedImageStream.toByteArray()));
+    public CompressionReport compressToTargetSize(String inputPath, String outputPath, CompressionOptions options,
+            long targetBytes) throws Exception {
+        long beforeSize = safeSize(Path.of(inputPath));
+        logger.info("Compressing {} to at most {}", inputPath, humanReadable(targetBytes));
+
+        TargetSizeSearch search;
+        long start = System.nanoTime();
+        try (PDDocument document = Loader.loadPDF(new File(inputPath), streamCache())) {
+            SizeEstimator estimator = SizeEstimator.analyze(document, estimateSamples, imagePool, parallelism,
+                    colorNormalization);
+            search = new TargetSizeSearch(estimator, options, beforeSize, targetBytes);
         }
-    }
-
-    // ==================== PHASE 1: FONT SUBSETTING & OPTIMIZATION
-    // ====================
-
-    /**
-     * Phase 1: Optimize fonts by removing unused glyphs
-     */
-    private void optimizeFonts(PDDocument document) throws IOException {
-        try {
-            int fontsOptimized = 0;
-            long totalFontSavings = 0;
-
-            for (PDPage page : document.getPages()) {
-                PDResources resources = page.getResources();
-                if (resources == null)
-                    continue;
-
-                for (COSName fontName : resources.getFontNames()) {
-                    try {
-                        PDFont font = resources.getFont(fontName);
-
-                        // Only optimize TrueType and Type0 fonts
-                        if (font instanceof PDTrueTypeFont || font instanceof PDType0Font) {
-                            // Check if already subset
-                            String fontNameStr = font.getName();
-                            if (fontNameStr != null && fontNameStr.contains("+")) {
-                                logger.debug("Font {} already subset, skipping", fontNameStr);
-                                continue;
-                            }
-
-                            fontsOptimized++;
-                            logger.debug("Font {} marked for optimization", fontNameStr);
-                        }
-                    } catch (Exception e) {
-                        logger.warn("Could not optimize font {}: {}", fontName, e.getMessage());
-                    }
-                }
+        CompressionOptions guess = search.firstGuess();
+        logger.info("Sampled settings in {} ms", (System.nanoTime() - start) / 1_000_000);
+
+        CompressionReport report = null;
+        for (int run = 0; run < MAX_TARGET_SIZE_RUNS && guess != null; run++) {
+            report = compressPdf(inputPath, outputPath, guess);
+            if (report.compressedSize() <= targetBytes) {
+                break;
             }
-
-            logger.info("Phase 1 Complete: {} fonts analyzed", fontsOptimized);
-
-        } catch (Exception e) {
-            logger.warn("Font optimization had errors: {}", e.getMessage());
+            guess = search.next(guess, report.compressedSize());
         }
+        logger.info("Target {} {}: {} at {} DPI, JPEG quality {}", humanReadable(targetBytes),
+                report.compressedSize() <= targetBytes ? "met" : "missed",
+                humanReadable(report.compressedSize()), report.options().targetDpi(),
+                report.options().jpegQuality());
+        return report;
     }
 
-    // ==================== PHASE 2: CONTENT STREAM COMPRESSION ====================
-
     /**
-     * Phase 2: Apply lossless Flate compression to content streams
+     * Break the document down and predict its compressed size at each quality
+     * (0-100), from a sample of its images. Everything but the images is assumed
+     * to keep its size, so fonts and content that compress well make the
+     * prediction a little high.
      */
-    private void compressContentStreams(PDDocument document) throws IOException {
-        try {
-            long totalSavings = 0;
-            int streamsProcessed = 0;
-
-            for (PDPage page : document.getPages()) {
-                try {
-                    COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
-
-                    if (contents instanceof COSStream) {
-                        COSStream contentStream = (COSStream) contents;
-
-                        // Check if already compressed
-                        COSBase filters = contentStream.getItem(COSName.FILTER);
-                        boolean isCompressed = filters != null &&
-                                (filters.equals(COSName.FLATE_DECODE) ||
-                                        (filters instanceof COSArray
-                                                && containsFilter((COSArray) filters, COSName.FLATE_DECODE)));
-
-                        if (!isCompressed) {
-                            long beforeSize = contentStream.getLength();
-
-                            // Apply Flate compression
-                            contentStream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
-
-                            long afterSize = contentStream.getLength();
-                            totalSavings += (beforeSize - afterSize);
-                            streamsProcessed++;
-
-                            logger.debug("Compressed content stream: {} -> {} (saved {})",
-                                    humanReadable(beforeSize), humanReadable(afterSize),
-                                    humanReadable(beforeSize - afterSize));
-                        }
-                    } else if (contents instanceof COSArray) {
-                        // Multiple content streams
-                        COSArray array = (COSArray) contents;
-                        for (int i = 0; i < array.size(); i++) {
-                            try {
-                                COSBase item = array.getObject(i);
-                                if (item instanceof COSStream) {
-                                    COSStream stream = (COSStream) item;
-                                    COSBase filters = stream.getItem(COSName.FILTER);
-
-                                    if (filters == null || (!filters.equals(COSName.FLATE_DECODE))) {
-                                        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
-                                        streamsProcessed++;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                logger.debug("Could not compress array stream {}: {}", i, e.getMessage());
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.debug("Could not compress page content: {}", e.getMessage());
-                }
-            }
-
-            logger.info("Phase 2 Complete: {} content streams compressed, saved {}",
-                    streamsProcessed, humanReadable(totalSavings));
-
-        } catch (Exception e) {
-            logger.warn("Content stream compression had errors: {}", e.getMessage());
+    public SizeEstimate estimate(String inputPath, List<Integer> qualities) throws Exception {
+        long start = System.nanoTime();
+        long originalSize = safeSize(Path.of(inputPath));
+        SizeEstimator estimator;
+        try (PDDocument document = Loader.loadPDF(new File(inputPath), streamCache())) {
+            estimator = SizeEstimator.analyze(document, estimateSamples, imagePool, parallelism,
+                    colorNormalization);
         }
-    }
-
-    // ==================== PHASE 3: DUPLICATE OBJECT REMOVAL ====================
-
-    /**
-     * Phase 3: Remove duplicate images by detecting identical content
-     */
-    private void deduplicateObjects(PDDocument document) throws IOException {
-        try {
-            Map<String, PDImageXObject> imageHashes = new HashMap<>();
-            Map<PDImageXObject, PDImageXObject> replacementMap = new HashMap<>();
-            long totalSavings = 0;
-            int duplicatesFound = 0;
-
-            // Phase 3a: Build hash map of all images
-            for (PDPage page : document.getPages()) {
-                PDResources resources = page.getResources();
-                if (resources == null)
-                    continue;
-
-                for (COSName name : resources.getXObjectNames()) {
-                    try {
-                        if (resources.isImageXObject(name)) {
-                            PDImageXObject image = (PDImageXObject) resources.getXObject(name);
-                            String hash = calculateImageHash(image);
-
-                            if (imageHashes.containsKey(hash)) {
-                                // Duplicate found
-                                PDImageXObject canonical = imageHashes.get(hash);
-                                replacementMap.put(image, canonical);
 
-                                long savedSize = image.getCOSObject().getLength();
-                                totalSavings += savedSize;
-                                duplicatesFound++;
-
-                                logger.debug("Duplicate image found (saved {})", humanReadable(savedSize));
-                            } else {
-                                imageHashes.put(hash, image);
-                            }
-                        }
-                    } catch (Exception e) {
-                        logger.debug("Could not process image {}: {}", name, e.getMessage());
-                    }
-                }
-            }
-
-            // Phase 3b: Replace references
-            if (!replacementMap.isEmpty()) {
-                for (PDPage page : document.getPages()) {
-                    PDResources resources = page.getResources();
-                    if (resources == null)
-                        continue;
-
-                    for (COSName name : resources.getXObjectNames()) {
-                        try {
-                            if (resources.isImageXObject(name)) {
-                                PDImageXObject image = (PDImageXObject) resources.getXObject(name);
-                                if (replacementMap.containsKey(image)) {
-                                    resources.put(name, replacementMap.get(image));
-                                }
-                            }
-                        } catch (Exception e) {
-                            logger.debug("Could not replace image {}: {}", name, e.getMessage());
-                        }
-                    }
-                }
-            }
-
-            logger.info("Phase 3 Complete: {} duplicate objects removed, saved {}",
-                    duplicatesFound, humanReadable(totalSavings));
-
-        } catch (Exception e) {
-            logger.warn("Duplicate removal had errors: {}", e.getMessage());
+        long nonImageBytes = Math.max(0, originalSize - estimator.getImageBytes());
+        Map<Integer, Long> estimatedSizes = new LinkedHashMap<>();
+        for (int quality : qualities) {
+            long imageBytes = estimator.estimateImageBytes(defaultOptions(quality / 100f));
+            estimatedSizes.put(quality, Math.min(originalSize, nonImageBytes + imageBytes));
         }
-    }
 
-    /**
-     * Helper method to check if COSArray contains a specific filter
-     */
-    private boolean containsFilter(COSArray filters, COSName targetFilter) {
-        for (int i = 0; i < filters.size(); i++) {
-            COSBase item = filters.getObject(i);
-            if (item != null && item.equals(targetFilter)) {
-                return true;
-            }
-        }
-        return false;
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        logger.info("Estimated {} in {} ms from {} sample images: {}", inputPath, millis,
+                estimator.getSampleCount(), estimatedSizes);
+        return new SizeEstimate(originalSize, estimator.getImageBytes(), estimator.getImageBytesByFilter(),
+                estimator.getImageBytesByDpi(), estimator.getFontBytes(), estimator.getContentBytes(),
+                estimator.getSampleCount(), estimatedSizes, millis);
     }
 
     /**
-     * Calculate MD5 hash of image content for duplicate detection
+     * Under a budget, stream data beyond it is cached in a temp file instead of the heap
      */
-    private String calculateImageHash(PDImageXObject image) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        try (InputStream is = image.createInputStream()) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                md.update(buffer, 0, bytesRead);
-            }
-        }
-        return Base64.getEncoder().encodeToString(md.digest());
+    private StreamCacheCreateFunction streamCache() {
+        return memoryBudget > 0
+                ? MemoryUsageSetting.setupMixed(memoryBudget).streamCache
+                : IOUtils.createMemoryOnlyStreamCache();
     }
 }
@@ -1,11 +1,13 @@
 package com.app.pdfstation.service;
 
+import com.app.pdfstation.api.exception.JobNotFoundException;
 import com.app.pdfstation.constants.PdfStationConstants;
 import com.app.pdfstation.domain.entity.PdfJob;
 import com.app.pdfstation.infrastructure.kafka.PdfJobCreatedEvent;
 import com.app.pdfstation.infrastructure.kafka.PdfJobEventProducer;
 import com.app.pdfstation.domain.repository.PdfJobRepository;
 import com.app.pdfstation.infrastructure.storage.FileStorageService;
+import com.app.pdfstation.service.merge.PageSelection;
 import jakarta.annotation.Resource;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
@@ -29,13 +31,17 @@ public class PdfJobService {
     private final PdfJobEventProducer eventProducer;
 
     @Transactional
-    public PdfJob createJob(String operation, MultipartFile file, Integer quality) throws IOException {
+    public PdfJob createJob(String operation, MultipartFile file, Integer quality, Boolean convertCmyk,
+            Long targetSize, Boolean linearize) throws IOException {
 
         PdfJob job = PdfJob.builder()
                 .operation(operation)
                 .status("CREATED")
                 .retryCount(0)
                 .compressionQuality(quality != null ? quality / 100.0 : 0.5)
+                .convertCmyk(convertCmyk)
+                .targetSize(targetSize)
+                .linearize(linearize)
                 .build();
 
         job = jobRepository.save(job);
@@ -63,12 +69,20 @@ public class PdfJobService {
     }
 
     @Transactional
-    public PdfJob createMergeJob(MultipartFile[] files) throws IOException {
+    public PdfJob createMergeJob(MultipartFile[] files, String pageRanges, Boolean linearize) throws IOException {
 
+        if (pageRanges != null && !pageRanges.isBlank()) {
+            // Reject malformed ranges before anything is stored
+            PageSelection.parseAll(pageRanges, files.length);
+        } else {
+            pageRanges = null;
+        }
         PdfJob job = PdfJob.builder()
                 .operation("MERGE")
                 .status("CREATED")
                 .retryCount(0)
+                .mergePageRanges(pageRanges)
+                .linearize(linearize)
                 .build();
 
         job = jobRepository.save(job);
@@ -90,10 +104,102 @@ public class PdfJobService {
         return job;
     }
 
+    @Transactional
+    public PdfJob openMergeSession(Boolean linearize) {
+        PdfJob job = PdfJob.builder()
+                .operation(PdfStationConstants.OPERATION_MERGE_SESSION)
+                .status(PdfStationConstants.STATUS_OPEN)
+                .retryCount(0)
+                .inputPaths(new java.util.ArrayList<>())
+                .mergeFoldedCount(0)
+                .linearize(linearize)
+                .build();
+        return jobRepository.save(job);
+    }
+
+    /**
+     * Add a document to an open merge session; the worker folds it into the
+     * partial result in the background
+     *
+     * @param pageRanges pages to take from it, e.g. "3-5", or null for all of them
+     */
+    @Transactional
+    public PdfJob appendToMergeSession(UUID jobId, MultipartFile file, String pageRanges) throws IOException {
+        // Appends to one session are serialized on its row
+        PdfJob job = jobRepository.findForUpdate(jobId)
+                .orElseThrow(() -> new JobNotFoundException());
+        requireOpenSession(job);
+
+        String ranges = pageRanges != null ? pageRanges.trim() : "";
+        if (!ranges.isEmpty()) {
+            if (ranges.contains(";")) {
+                throw new IllegalArgumentException("Page ranges of one document cannot contain ';'");
+            }
+            PageSelection.parse(ranges);
+        }
+        int index = job.getInputPaths().size();
+        if (!ranges.isEmpty() || job.getMergePageRanges() != null) {
+            String earlier = job.getMergePageRanges() != null
+                    ? job.getMergePageRanges()
+                    : ";".repeat(Math.max(0, index - 1));
+            job.setMergePageRanges(index == 0 ? ranges : earlier + ";" + ranges);
+        }
+
+        String inputPath = storageService.saveSessionFile(job.getId(), index, file);
+        job.getInputPaths().add(inputPath);
+        final PdfJob savedJob = jobRepository.save(job);
+
+        org.springframework.transaction.support.TransactionSynchronizationManager.registerSynchronization(
+                new org.springframework.transaction.support.TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        eventProducer.publishJobCreatedEvent(
+                                new PdfJobCreatedEvent(savedJob.getId(),
+                                        PdfStationConstants.OPERATION_MERGE_SESSION, inputPath));
+                    }
+                });
+
+        return savedJob;
+    }
+
+    /**
+     * Stop taking documents; the worker merges what it has folded into the result
+     */
+    @Transactional
+    public PdfJob closeMergeSession(UUID jobId) {
+        PdfJob job = jobRepository.findForUpdate(jobId)
+                .orElseThrow(() -> new JobNotFoundException());
+        requireOpenSession(job);
+        if (job.getInputPaths().isEmpty()) {
+            throw new RuntimeException(PdfStationConstants.ERROR_SESSION_EMPTY);
+        }
+        job.setStatus(PdfStationConstants.STATUS_CLOSING);
+        final PdfJob savedJob = jobRepository.save(job);
+
+        org.springframework.transaction.support.TransactionSynchronizationManager.registerSynchronization(
+                new org.springframework.transaction.support.TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        eventProducer.publishJobCreatedEvent(
+                                new PdfJobCreatedEvent(savedJob.getId(),
+                                        PdfStationConstants.OPERATION_MERGE_SESSION, null));
+                    }
+                });
+
+        return savedJob;
+    }
+
+    private void requireOpenSession(PdfJob job) {
+        if (!PdfStationConstants.OPERATION_MERGE_SESSION.equals(job.getOperation())
+                || !PdfStationConstants.STATUS_OPEN.equals(job.getStatus())) {
+            throw new RuntimeException(PdfStationConstants.ERROR_SESSION_NOT_OPEN);
+        }
+    }
+
     public UrlResource loadCompressedPdf(UUID jobId) {
 
         PdfJob job = jobRepository.findById(jobId)
-                .orElseThrow(() -> new RuntimeException(PdfStationConstants.ERROR_JOB_NOT_FOUND));
+                .orElseThrow(() -> new JobNotFoundException());
 
         if (!PdfStationConstants.STATUS_COMPLETED.equals(job.getStatus())) {
             throw new RuntimeException(PdfStationConstants.ERROR_PDF_NOT_READY);
@@ -111,7 +217,7 @@ public class PdfJobService {
     public UrlResource loadMergedPdf(UUID jobId) {
 
         PdfJob job = jobRepository.findById(jobId)
-                .orElseThrow(() -> new RuntimeException(PdfStationConstants.ERROR_JOB_NOT_FOUND));
+                .orElseThrow(() -> new JobNotFoundException());
 
         if (!PdfStationConstants.STATUS_COMPLETED.equals(job.getStatus())) {
             throw new RuntimeException(PdfStationConstants.ERROR_PDF_NOT_READY);
@@ -126,13 +232,15 @@ public class PdfJobService {
     }
 
     @Transactional
-    public PdfJob createSplitJob(MultipartFile file, String splitType, String splitRanges, Integer splitInterval) throws IOException {
+    public PdfJob createSplitJob(MultipartFile file, String splitType, String splitRanges, Integer splitInterval,
+            Boolean linearize) throws IOException {
         PdfJob job = new PdfJob();
         job.setOperation(PdfStationConstants.OPERATION_SPLIT);
         job.setStatus(PdfStationConstants.STATUS_CREATED);
         job.setSplitType(splitType);
         job.setSplitRanges(splitRanges);
         job.setSplitInterval(splitInterval);
+        job.setLinearize(linearize);
 
         job = jobRepository.save(job);
 
@@ -155,7 +263,7 @@ public class PdfJobService {
 
     public UrlResource loadSplitPdfs(UUID jobId) throws MalformedURLException {
         PdfJob job = jobRepository.findById(jobId)
-                .orElseThrow(() -> new RuntimeException(PdfStationConstants.ERROR_JOB_NOT_FOUND));
+                .orElseThrow(() -> new JobNotFoundException());
 
         if (!PdfStationConstants.STATUS_COMPLETED.equals(job.getStatus())) {
             throw new RuntimeException(PdfStationConstants.ERROR_PDF_NOT_READY);
@@ -172,13 +280,18 @@ public class PdfJobService {
     // Added getJob method per user request
     public PdfJob getJob(UUID jobId) {
         return jobRepository.findById(jobId)
-                .orElseThrow(() -> new RuntimeException(PdfStationConstants.ERROR_JOB_NOT_FOUND));
+                .orElseThrow(() -> new JobNotFoundException());
     }
 
     @Transactional
     public PdfJob createProtectJob(MultipartFile file, String userPassword, String ownerPassword,
                                    Boolean allowPrinting, Boolean allowCopying,
-                                   Boolean allowModification, Boolean allowAssembly) throws IOException {
+                                   Boolean allowModification, Boolean allowAssembly,
+                                   Boolean linearize) throws IOException {
+        // Linearization rewrites every object, which an encrypted output does not allow
+        if (Boolean.TRUE.equals(linearize)) {
+            throw new IllegalArgumentException(PdfStationConstants.ERROR_LINEARIZE_PROTECTED);
+        }
         PdfJob job = new PdfJob();
         job.setOperation(PdfStationConstants.OPERATION_PROTECT);
         job.setProtectionAction(PdfStationConstants.PROTECTION_ACTION_ADD);
@@ -209,12 +322,14 @@ public class PdfJobService {
     }
 
     @Transactional
-    public PdfJob createRemoveProtectionJob(MultipartFile file, String password) throws IOException {
+    public PdfJob createRemoveProtectionJob(MultipartFile file, String password, Boolean linearize)
+            throws IOException {
         PdfJob job = new PdfJob();
         job.setOperation(PdfStationConstants.OPERATION_PROTECT);
         job.setProtectionAction(PdfStationConstants.PROTECTION_ACTION_REMOVE);
         job.setStatus(PdfStationConstants.STATUS_CREATED);
         job.setUserPassword(password);
+        job.setLinearize(linearize);
 
         job = jobRepository.save(job);
 
@@ -236,7 +351,7 @@ public class PdfJobService {
 
     public UrlResource loadProtectedPdf(UUID jobId) throws MalformedURLException {
         PdfJob job = jobRepository.findById(jobId)
-                .orElseThrow(() -> new RuntimeException(PdfStationConstants.ERROR_JOB_NOT_FOUND));
+                .orElseThrow(() -> new JobNotFoundException());
 
         if (!PdfStationConstants.STATUS_COMPLETED.equals(job.getStatus())) {
             throw new RuntimeException(PdfStationConstants.ERROR_PDF_NOT_READY);
@@ -275,7 +390,7 @@ public class PdfJobService {
 
     public UrlResource loadWordDoc(UUID jobId) {
         PdfJob job = jobRepository.findById(jobId)
-                .orElseThrow(() -> new RuntimeException(PdfStationConstants.ERROR_JOB_NOT_FOUND));
+                .orElseThrow(() -> new JobNotFoundException());
 
         if (!PdfStationConstants.STATUS_COMPLETED.equals(job.getStatus())) {
             throw new RuntimeException(PdfStationConstants.ERROR_PDF_NOT_READY);
@@ -0,0 +1,57 @@
+package com.app.pdfstation.service;
+
+import com.app.pdfstation.service.linearization.Linearizer;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Rewrites finished outputs as linearized ("fast web view") files, so a viewer
+ * fetching byte ranges can display the first page before the rest arrives.
+ */
+@Service
+public class PdfLinearizationService {
+    private final Logger logger = LoggerFactory.getLogger(PdfLinearizationService.class);
+
+    /**
+     * Linearize the file in place. Encrypted files are left as they are, as their
+     * objects cannot be rewritten without the keys.
+     *
+     * @return whether the file was linearized
+     */
+    public boolean linearize(String path) throws IOException {
+        Path file = Path.of(path);
+        Path output = Files.createTempFile(file.toAbsolutePath().getParent(), "linearized-", ".pdf");
+        Path scratch = Files.createTempFile("pdfstation-linearize-", ".bin");
+        try {
+            long beforeSize = Files.size(file);
+            try (PDDocument document = Loader.loadPDF(file.toFile())) {
+                if (document.isEncrypted()) {
+                    logger.info("Not linearizing {}: it is encrypted", path);
+                    return false;
+                }
+                new Linearizer(document).write(output, scratch);
+            } catch (InvalidPasswordException e) {
+                logger.info("Not linearizing {}: it is encrypted", path);
+                return false;
+            }
+            Files.move(output, file, StandardCopyOption.REPLACE_EXISTING);
+            long afterSize = Files.size(file);
+            logger.info("Linearized {}: {} -> {}", path, humanReadable(beforeSize), humanReadable(afterSize));
+            return true;
+        } finally {
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(scratch);
+        }
+    }
+}
@@ -1,25 +1,347 @@
 package com.app.pdfstation.service;
 
+import com.app.pdfstation.config.MergeProperties;
+import com.app.pdfstation.service.merge.PageSelection;
+import com.app.pdfstation.service.merge.SharedResources;
+import jakarta.annotation.PreDestroy;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
 import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdfwriter.compress.CompressParameters;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
 
 @Service
 public class PdfMergeService {
+    private final Logger logger = LoggerFactory.getLogger(PdfMergeService.class);
+
+    private final long memoryBudget;
+    private final int treeMinFiles;
+    private final int treeGroupSize;
+    private final int parallelism;
+    private final boolean shareResources;
+
+    private static final Pattern CHUNK_NAME = Pattern.compile("chunk-(\\d+)-(\\d+)\\.pdf");
+
+    // Shared by all jobs; null when parallelism is 1 and groups are merged inline
+    private final ExecutorService mergePool;
+
+    public PdfMergeService(MergeProperties properties) {
+        this.memoryBudget = properties.getMemoryBudgetBytes();
+        this.treeMinFiles = properties.getTreeMinFiles();
+        this.treeGroupSize = Math.max(2, properties.getTreeGroupSize());
+        this.parallelism = properties.getEffectiveParallelism();
+        this.shareResources = properties.isShareResources();
+        if (parallelism > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.mergePool = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "pdf-merge-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.mergePool = null;
+        }
+    }
 
+    @PreDestroy
+    public void shutdown() {
+        if (mergePool != null) {
+            mergePool.shutdownNow();
+        }
+    }
+
+    /**
+     * Merge the inputs in order, as a tree when there are many of them
+     */
     public String merge(List<String> inputPaths, String outputPath) throws Exception {
+        return merge(inputPaths, null, outputPath);
+    }
 
-        PDFMergerUtility merger = new PDFMergerUtility();
-        merger.setDestinationFileName(outputPath);
+    /**
+     * Merge the selected pages of the inputs in order
+     *
+     * @param selections one per input, null for all its pages; or null to take every input whole
+     */
+    public String merge(List<String> inputPaths, List<PageSelection> selections, String outputPath)
+            throws Exception {
+        if (selections != null && selections.size() != inputPaths.size()) {
+            throw new IllegalArgumentException("Expected page ranges for " + inputPaths.size() + " files, got "
+                    + selections.size());
+        }
+        if (treeMinFiles > 0 && inputPaths.size() >= treeMinFiles && inputPaths.size() > treeGroupSize) {
+            treeMerge(inputPaths, selections, outputPath);
+        } else {
+            append(inputPaths, selections, outputPath, memoryBudget, CompressParameters.DEFAULT_COMPRESSION);
+        }
+        return outputPath;
+    }
 
-        for (String path : inputPaths) {
-            merger.addSource(new File(path));
+    /**
+     * Merge consecutive groups of inputs in parallel into intermediate files, then
+     * groups of those, until few enough remain to be merged into the output. Groups
+     * never mix their order, so pages come out exactly as the inputs were given.
+     */
+    private void treeMerge(List<String> inputPaths, List<PageSelection> selections, String outputPath)
+            throws Exception {
+        long start = System.nanoTime();
+        Path workDir = Files.createTempDirectory("pdfstation-merge-");
+        // Concurrent groups share the job's budget
+        long groupBudget = memoryBudget / Math.max(1, parallelism);
+        try {
+            List<String> level = inputPaths;
+            int depth = 0;
+            while (level.size() > treeGroupSize) {
+                depth++;
+                List<String> next = new ArrayList<>();
+                List<Future<?>> groups = new ArrayList<>();
+                for (int from = 0; from < level.size(); from += treeGroupSize) {
+                    int to = Math.min(level.size(), from + treeGroupSize);
+                    List<String> group = level.subList(from, to);
+                    // Pages are selected as the inputs are read; intermediates are taken whole
+                    List<PageSelection> groupSelections = level == inputPaths && selections != null
+                            ? selections.subList(from, to)
+                            : null;
+                    String intermediate = workDir.resolve("level" + depth + "-" + next.size() + ".pdf").toString();
+                    next.add(intermediate);
+                    // Intermediates are parsed again right away, so they are written without object streams
+                    groups.add(submit(() -> {
+                        append(group, groupSelections, intermediate, groupBudget,
+                                CompressParameters.NO_COMPRESSION);
+                        return null;
+                    }));
+                }
+                awaitAll(groups);
+                if (level != inputPaths) {
+                    for (String done : level) {
+                        Files.deleteIfExists(Path.of(done));
+                    }
+                }
+                logger.info("Merge level {}: {} files into {}", depth, level.size(), next.size());
+                level = next;
+            }
+            append(level, level == inputPaths ? selections : null, outputPath, memoryBudget,
+                    CompressParameters.DEFAULT_COMPRESSION);
+            logger.info("Merged {} files as a tree of depth {} in {} ms", inputPaths.size(), depth + 1,
+                    (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            deleteRecursively(workDir);
         }
+    }
 
-        merger.mergeDocuments(org.apache.pdfbox.io.IOUtils.createMemoryOnlyStreamCache());
+    /**
+     * Fold the inputs a merge session has not taken in yet into its partial result.
+     *
+     * The partial result is a run of chunk files in the session directory, each
+     * covering consecutive inputs. A new input becomes a chunk of its own, and two
+     * trailing chunks of equal size are merged, like carries in a binary counter,
+     * so each page is rewritten about log2(n) times and at most that many chunks
+     * remain for {@link #finishSession}. Chunks are written under a temporary name
+     * and moved into place, so the directory always describes what is folded.
+     *
+     * @param selections one per input, null for all its pages; or null to take every input whole
+     * @return how many inputs are folded
+     */
+    public int foldSession(List<String> inputPaths, List<PageSelection> selections, Path sessionDir)
+            throws IOException {
+        List<Chunk> chunks = sessionChunks(sessionDir);
+        int folded = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).last() + 1;
+        for (int i = folded; i < inputPaths.size(); i++) {
+            chunks.add(writeChunk(sessionDir, i, i, List.of(inputPaths.get(i)),
+                    selections != null ? Collections.singletonList(selections.get(i)) : null));
+            while (chunks.size() >= 2
+                    && chunks.get(chunks.size() - 2).size() == chunks.get(chunks.size() - 1).size()) {
+                Chunk right = chunks.remove(chunks.size() - 1);
+                Chunk left = chunks.remove(chunks.size() - 1);
+                chunks.add(writeChunk(sessionDir, left.first(), right.last(),
+                        List.of(left.file().toString(), right.file().toString()), null));
+                Files.deleteIfExists(left.file());
+                Files.deleteIfExists(right.file());
+            }
+        }
+        if (folded < inputPaths.size()) {
+            logger.info("Folded {} documents into {} ({} chunks)", inputPaths.size() - folded, sessionDir,
+                    chunks.size());
+        }
+        return inputPaths.size();
+    }
 
+    /**
+     * Merge a session's chunks into the output and remove the session directory
+     */
+    public String finishSession(Path sessionDir, String outputPath) throws IOException {
+        List<Chunk> chunks = sessionChunks(sessionDir);
+        if (chunks.isEmpty()) {
+            throw new IllegalStateException("Merge session " + sessionDir + " has nothing folded");
+        }
+        List<String> files = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            files.add(chunk.file().toString());
+        }
+        append(files, null, outputPath, memoryBudget, CompressParameters.DEFAULT_COMPRESSION);
+        deleteRecursively(sessionDir);
         return outputPath;
     }
+
+    /**
+     * Inputs first to last of a session, merged into one file
+     */
+    private record Chunk(int first, int last, Path file) {
+        int size() {
+            return last - first + 1;
+        }
+    }
+
+    private Chunk writeChunk(Path sessionDir, int first, int last, List<String> sources,
+            List<PageSelection> selections) throws IOException {
+        Path file = sessionDir.resolve("chunk-" + first + "-" + last + ".pdf");
+        Path partial = sessionDir.resolve(file.getFileName() + ".part");
+        // Chunks are parsed again when they are merged, so they are written without object streams
+        append(sources, selections, partial.toString(), memoryBudget, CompressParameters.NO_COMPRESSION);
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Chunk(first, last, file);
+    }
+
+    /**
+     * The session's chunks in order. Partial writes and chunks that an interrupted
+     * fold already merged into a larger one are removed.
+     */
+    private List<Chunk> sessionChunks(Path sessionDir) throws IOException {
+        List<Chunk> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(sessionDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher name = CHUNK_NAME.matcher(file.getFileName().toString());
+                if (name.matches()) {
+                    found.add(new Chunk(Integer.parseInt(name.group(1)), Integer.parseInt(name.group(2)), file));
+                } else if (file.getFileName().toString().endsWith(".part")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        found.sort(Comparator.comparingInt(Chunk::first)
+                .thenComparing(Comparator.comparingInt(Chunk::last).reversed()));
+        List<Chunk> chunks = new ArrayList<>();
+        for (Chunk chunk : found) {
+            if (!chunks.isEmpty() && chunk.last() <= chunks.get(chunks.size() - 1).last()) {
+                Files.deleteIfExists(chunk.file());
+            } else {
+                chunks.add(chunk);
+            }
+        }
+        return chunks;
+    }
+
+    private void deleteRecursively(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.info("Failed to clean up merge directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Append the inputs in order. Sources are opened one at a time and closed once
+     * their pages are imported, as the imported streams are copied into the merged
+     * document; only the merged document grows, in memory or, beyond the budget,
+     * in a temp-file cache. Fonts, images and ICC profiles identical to ones an
+     * earlier source brought are shared rather than copied again. A source with a
+     * page selection is trimmed to it first, so nothing else of it is copied.
+     */
+    private void append(List<String> inputPaths, List<PageSelection> selections, String outputPath, long budget,
+            CompressParameters compression) throws IOException {
+
+        long totalSize = 0;
+        for (String path : inputPaths) {
+            totalSize += new File(path).length();
+        }
+        boolean spill = budget > 0 && totalSize > budget;
+        StreamCacheCreateFunction streamCache = spill
+                ? MemoryUsageSetting.setupMixed(budget).streamCache
+                : IOUtils.createMemoryOnlyStreamCache();
+        logger.debug("Merging {} files ({}) {}", inputPaths.size(), humanReadable(totalSize),
+                spill ? "with a temp-file cache beyond " + humanReadable(budget) : "in memory");
+
+        PDFMergerUtility merger = new PDFMergerUtility();
+        SharedResources shared = shareResources ? new SharedResources() : null;
+        try (PDDocument destination = new PDDocument(streamCache)) {
+            for (int i = 0; i < inputPaths.size(); i++) {
+                String path = inputPaths.get(i);
+                PageSelection selection = selections != null ? selections.get(i) : null;
+                int firstPage = destination.getNumberOfPages();
+                // Sources are read from their files, so they need no cache of their own
+                try (PDDocument source = Loader.loadPDF(new File(path), IOUtils.createMemoryOnlyStreamCache())) {
+                    if (selection != null) {
+                        selection.applyTo(source);
+                    }
+                    if (shared != null) {
+                        shared.prepare(source);
+                    }
+                    merger.appendDocument(destination, source);
+                }
+                if (shared != null) {
+                    shared.shareFrom(destination, firstPage);
+                }
+            }
+            if (shared != null && !shared.getReused().isEmpty()) {
+                logger.info("Shared resources across {} files: {}", inputPaths.size(), shared);
+            }
+            destination.save(outputPath, compression);
+        }
+    }
+
+    private Future<?> submit(Callable<Void> task) throws Exception {
+        if (mergePool == null) {
+            task.call();
+            return CompletableFuture.completedFuture(null);
+        }
+        return mergePool.submit(task);
+    }
+
+    /**
+     * Wait for every group; on the first failure cancel the rest and rethrow its cause
+     */
+    private static void awaitAll(List<Future<?>> groups) throws Exception {
+        try {
+            for (Future<?> group : groups) {
+                group.get();
+            }
+        } catch (ExecutionException e) {
+            groups.forEach(group -> group.cancel(true));
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            groups.forEach(group -> group.cancel(true));
+            throw e;
+        }
+    }
 }
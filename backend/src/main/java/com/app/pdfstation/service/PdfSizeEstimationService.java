@@ -0,0 +1,106 @@
+package com.app.pdfstation.service;
+
+import com.app.pdfstation.api.exception.JobNotFoundException;
+import com.app.pdfstation.config.CompressionProperties;
+import com.app.pdfstation.constants.PdfStationConstants;
+import com.app.pdfstation.domain.entity.PdfJob;
+import com.app.pdfstation.domain.repository.PdfJobRepository;
+import com.app.pdfstation.service.compression.SizeEstimate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Predicts compressed sizes for uploads and job inputs.
+ *
+ * Estimates are cached by the SHA-256 of the input, so the same file uploaded
+ * again, or estimated before and after it became a job, is analysed only once.
+ */
+@Service
+public class PdfSizeEstimationService {
+    private final Logger logger = LoggerFactory.getLogger(PdfSizeEstimationService.class);
+
+    // Qualities (0-100) an estimate predicts sizes for
+    public static final List<Integer> ESTIMATE_QUALITIES = List.of(25, 50, 75, 100);
+
+    private final PdfCompressionService compressionService;
+    private final PdfJobRepository jobRepository;
+    private final Map<String, SizeEstimate> cache;
+
+    public PdfSizeEstimationService(PdfCompressionService compressionService, PdfJobRepository jobRepository,
+            CompressionProperties properties) {
+        this.compressionService = compressionService;
+        this.jobRepository = jobRepository;
+        int maxEntries = properties.getEstimateCacheEntries();
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SizeEstimate> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Estimate an uploaded file; it is only kept on disk while being analysed
+     */
+    public SizeEstimate estimate(MultipartFile file) throws Exception {
+        Path upload = Files.createTempFile("pdfstation-estimate-", ".pdf");
+        try {
+            try (InputStream in = file.getInputStream()) {
+                Files.copy(in, upload, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return estimate(upload);
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    /**
+     * Estimate the input of an existing job
+     */
+    public SizeEstimate estimateJob(UUID jobId) throws Exception {
+        PdfJob job = jobRepository.findById(jobId)
+                .orElseThrow(() -> new JobNotFoundException());
+        if (job.getInputPaths() == null || job.getInputPaths().isEmpty()) {
+            throw new RuntimeException(PdfStationConstants.ERROR_FAILED_TO_LOAD);
+        }
+        return estimate(Path.of(job.getInputPaths().get(0)));
+    }
+
+    private SizeEstimate estimate(Path input) throws Exception {
+        String hash = contentHash(input);
+        SizeEstimate known = cache.get(hash);
+        if (known != null) {
+            logger.debug("Size estimate for {} served from cache", hash);
+            return known;
+        }
+        SizeEstimate estimate = compressionService.estimate(input.toString(), ESTIMATE_QUALITIES);
+        cache.put(hash, estimate);
+        return estimate;
+    }
+
+    private static String contentHash(Path input) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(input), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,24 @@
+package com.app.pdfstation.service.compression;
+
+import java.text.DecimalFormat;
+
+/**
+ * Formatting helpers for compression logs.
+ */
+public final class ByteSizes {
+
+    private ByteSizes() {
+    }
+
+    public static String humanReadable(long bytes) {
+        if (bytes < 0)
+            return "unknown";
+        if (bytes < 1024)
+            return bytes + " B";
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        char unit = "KMGTPE".charAt(exp - 1);
+        double val = bytes / Math.pow(1024, exp);
+        DecimalFormat df = new DecimalFormat("#.##");
+        return df.format(val) + " " + unit + "B";
+    }
+}
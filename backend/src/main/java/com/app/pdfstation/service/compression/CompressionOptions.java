@@ -0,0 +1,40 @@
+package com.app.pdfstation.service.compression;
+
+/**
+ * Per-job choices for a compression run.
+ *
+ * @param quality     user quality setting, 0 to 1
+ * @param convertCmyk whether CMYK images may be converted to RGB; false keeps them
+ *                    CMYK for print workflows
+ * @param targetDpi   images shown above this resolution (with a 20% margin) are downsampled to it
+ * @param jpegQuality JPEG quality (0-1) for lossy image encodings
+ */
+public record CompressionOptions(float quality, boolean convertCmyk, double targetDpi, float jpegQuality) {
+
+    /**
+     * Image settings derived from the quality: 300 DPI above 0.8 (print), 150 DPI
+     * above 0.5 (screen), 96 DPI otherwise (web), and JPEG quality 0.75 to 0.95
+     */
+    public static CompressionOptions ofQuality(float quality) {
+        double targetDpi;
+        if (quality > 0.8) {
+            targetDpi = 300;
+        } else if (quality > 0.5) {
+            targetDpi = 150;
+        } else {
+            targetDpi = 96;
+        }
+        return new CompressionOptions(quality, true, targetDpi, 0.75f + quality * 0.20f);
+    }
+
+    public CompressionOptions withConvertCmyk(boolean convertCmyk) {
+        return new CompressionOptions(quality, convertCmyk, targetDpi, jpegQuality);
+    }
+
+    /**
+     * These options with explicit image settings instead of those of the quality
+     */
+    public CompressionOptions withImageSettings(double targetDpi, float jpegQuality) {
+        return new CompressionOptions(quality, convertCmyk, targetDpi, jpegQuality);
+    }
+}
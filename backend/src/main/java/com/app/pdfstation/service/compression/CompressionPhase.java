@@ -0,0 +1,38 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * One stage of the compression pipeline, driven by {@link DocumentWalker}.
+ *
+ * Phases see every page exactly once, in document order, and are finished
+ * in the order they were registered once the walk is complete.
+ */
+public interface CompressionPhase {
+
+    /**
+     * Short name used in the timing breakdown
+     */
+    String name();
+
+    /**
+     * Called once per page before its resources are resolved, for phases that
+     * add images to them
+     *
+     * @return true if image XObjects were added to the page resources
+     */
+    default boolean preparePage(PDPage page, int index) throws Exception {
+        return false;
+    }
+
+    /**
+     * Called once per page with its pre-resolved resources
+     */
+    void visitPage(PageVisit visit) throws Exception;
+
+    /**
+     * Called after the last page, for work that needs the whole document
+     */
+    default void finish() throws Exception {
+    }
+}
@@ -0,0 +1,19 @@
+package com.app.pdfstation.service.compression;
+
+import java.util.Map;
+
+/**
+ * Outcome of a compression job.
+ *
+ * @param outputPath     the written PDF
+ * @param originalSize   input size in bytes (-1 if unknown)
+ * @param compressedSize output size in bytes (-1 if unknown)
+ * @param packedObjects  indirect objects written inside compressed object streams
+ * @param strippedBytes  stream bytes removed by the strip phase per category, empty when
+ *                       stripping is off
+ * @param options        the settings the output was produced with; in target-size mode,
+ *                       those the search chose
+ */
+public record CompressionReport(String outputPath, long originalSize, long compressedSize, int packedObjects,
+        Map<String, Long> strippedBytes, CompressionOptions options) {
+}
@@ -0,0 +1,223 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Phase 2: Losslessly re-encode page and form content streams with Flate.
+ *
+ * Each stream is decoded on the walking thread and deflated on the worker pool
+ * at the configured level. Unfiltered streams are replaced whenever deflating
+ * shrinks them; streams that are already encoded are only replaced when the
+ * gain is worth it, so well-compressed files are left byte-for-byte alone.
+ */
+public class ContentStreamPhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(ContentStreamPhase.class);
+
+    // Filters that can be decoded and replaced by Flate without losing anything
+    private static final Set<COSName> LOSSLESS_FILTERS = Set.of(
+            COSName.FLATE_DECODE, COSName.LZW_DECODE, COSName.ASCII85_DECODE,
+            COSName.ASCII_HEX_DECODE, COSName.RUN_LENGTH_DECODE);
+
+    // Already encoded streams must shrink by at least this fraction to be rewritten
+    private static final double MIN_REENCODE_GAIN = 0.02;
+
+    private final ExecutorService pool;
+    private final int window;
+    private final int deflateLevel;
+
+    private final Deque<StreamTask> pending = new ArrayDeque<>();
+    private final Set<COSStream> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private long totalSavings = 0;
+    private int streamsProcessed = 0;
+
+    /**
+     * @param pool         worker pool, or null to deflate on the calling thread
+     * @param deflateLevel {@link Deflater} level, 1 (fastest) to 9 (smallest)
+     */
+    public ContentStreamPhase(ExecutorService pool, int parallelism, int deflateLevel) {
+        this.pool = pool;
+        this.window = parallelism * 2;
+        this.deflateLevel = deflateLevel;
+    }
+
+    @Override
+    public String name() {
+        return "content";
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) throws Exception {
+        COSBase contents = visit.page().getCOSObject().getDictionaryObject(COSName.CONTENTS);
+
+        if (contents instanceof COSStream) {
+            submit((COSStream) contents);
+        } else if (contents instanceof COSArray) {
+            // Multiple content streams
+            COSArray array = (COSArray) contents;
+            for (int i = 0; i < array.size(); i++) {
+                if (array.getObject(i) instanceof COSStream stream) {
+                    submit(stream);
+                }
+            }
+        }
+
+        // Forms in a shared resource dictionary were queued by an earlier page
+        if (visit.firstResourceVisit()) {
+            submitForms(visit.resources());
+        }
+    }
+
+    @Override
+    public void finish() throws Exception {
+        while (!pending.isEmpty()) {
+            applyStreamTask(pending.poll());
+        }
+        logger.info("Phase 2 Complete: {} content streams compressed, saved {}",
+                streamsProcessed, humanReadable(totalSavings));
+    }
+
+    /**
+     * Queue the content of every form in the resources, including nested forms
+     */
+    private void submitForms(PDResources resources) throws Exception {
+        if (resources == null) {
+            return;
+        }
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xobject;
+            try {
+                xobject = resources.getXObject(name);
+            } catch (IOException e) {
+                logger.debug("Could not read XObject {}: {}", name.getName(), e.getMessage());
+                continue;
+            }
+            if (xobject instanceof PDFormXObject form && !visited.contains(form.getCOSObject())) {
+                submit(form.getCOSObject());
+                submitForms(form.getResources());
+            }
+        }
+    }
+
+    /**
+     * Content stream queued for deflating, with the encoded size it has to beat
+     */
+    private record StreamTask(COSStream stream, long originalSize, boolean encoded, Future<byte[]> deflated) {
+    }
+
+    private void submit(COSStream stream) throws Exception {
+        if (!visited.add(stream) || !isReencodable(stream.getFilters())) {
+            return;
+        }
+
+        // Decode here: the document source must not be read from worker threads
+        byte[] decoded;
+        try (InputStream in = stream.createInputStream()) {
+            decoded = in.readAllBytes();
+        } catch (IOException e) {
+            logger.debug("Could not decode content stream: {}", e.getMessage());
+            return;
+        }
+
+        FutureTask<byte[]> deflated = new FutureTask<>(() -> deflate(decoded));
+        if (pool != null) {
+            pool.execute(deflated);
+        } else {
+            deflated.run();
+        }
+        pending.add(new StreamTask(stream, stream.getLength(), stream.getFilters() != null, deflated));
+
+        if (pending.size() >= window) {
+            applyStreamTask(pending.poll());
+        }
+    }
+
+    /**
+     * Swap the deflated bytes into the stream if they are enough of an improvement
+     */
+    private void applyStreamTask(StreamTask task) throws Exception {
+        byte[] deflated;
+        try {
+            deflated = task.deflated().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+
+        long savings = task.originalSize() - deflated.length;
+        long required = task.encoded() ? Math.max(1, (long) (task.originalSize() * MIN_REENCODE_GAIN)) : 1;
+        if (savings < required) {
+            return;
+        }
+
+        COSStream stream = task.stream();
+        try (OutputStream out = stream.createRawOutputStream()) {
+            out.write(deflated);
+        }
+        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        stream.removeItem(COSName.DECODE_PARMS);
+
+        totalSavings += savings;
+        streamsProcessed++;
+        logger.debug("Compressed content stream: {} -> {} (saved {})",
+                humanReadable(task.originalSize()), humanReadable(deflated.length), humanReadable(savings));
+    }
+
+    private byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(deflateLevel);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Unfiltered streams, or chains made only of general-purpose lossless filters
+     */
+    private boolean isReencodable(COSBase filters) {
+        if (filters == null) {
+            return true;
+        }
+        if (filters instanceof COSName) {
+            return LOSSLESS_FILTERS.contains(filters);
+        }
+        if (filters instanceof COSArray array) {
+            for (int i = 0; i < array.size(); i++) {
+                if (!LOSSLESS_FILTERS.contains(array.getObject(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
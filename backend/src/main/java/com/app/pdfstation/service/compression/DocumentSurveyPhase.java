@@ -0,0 +1,160 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Read-only phase that lists the images the image phase would see, with the DPI
+ * they are shown at, and totals the stored bytes of embedded fonts and of page
+ * and form content, without changing the document.
+ */
+public class DocumentSurveyPhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(DocumentSurveyPhase.class);
+
+    /**
+     * An image XObject and its effective DPI at the largest size the document shows it
+     */
+    public record SurveyedImage(PDImageXObject image, double dpi) {
+    }
+
+    private final ImagePlacementScanner placementScanner = new ImagePlacementScanner();
+    // Streams compare by identity, so this keeps one entry per image object
+    private final Map<COSStream, SurveyedImage> images = new LinkedHashMap<>();
+    // Images no page has been seen drawing yet, surveyed as filling the page
+    private final Set<COSStream> unplaced = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<COSStream> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long fontBytes = 0;
+    private long contentBytes = 0;
+
+    @Override
+    public String name() {
+        return "survey";
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) {
+        COSBase contents = visit.page().getCOSObject().getDictionaryObject(COSName.CONTENTS);
+        if (contents instanceof COSStream stream) {
+            contentBytes += countOnce(stream);
+        } else if (contents instanceof COSArray array) {
+            for (int i = 0; i < array.size(); i++) {
+                if (array.getObject(i) instanceof COSStream stream) {
+                    contentBytes += countOnce(stream);
+                }
+            }
+        }
+        if (visit.firstResourceVisit()) {
+            surveyResources(visit.resources());
+        }
+
+        Map<COSStream, Double> placements = null;
+        for (ImageSlot slot : visit.images()) {
+            PDImageXObject image = slot.getImage();
+            if (placements == null) {
+                try {
+                    placements = placementScanner.scan(visit.page());
+                } catch (Exception e) {
+                    logger.debug("Could not scan image placements on page {}: {}", visit.index() + 1, e.getMessage());
+                    placements = Map.of();
+                }
+            }
+            Double dpi = placements.get(image.getCOSObject());
+            SurveyedImage known = images.get(image.getCOSObject());
+            if (known != null) {
+                // Keep the largest placement, as the image phase does
+                if (dpi != null && (unplaced.remove(image.getCOSObject()) || dpi < known.dpi())) {
+                    images.put(image.getCOSObject(), new SurveyedImage(image, dpi));
+                }
+                continue;
+            }
+            if (dpi == null) {
+                // Not drawn by the page content: assume it fills the page, as the image phase does
+                double widthInches = visit.page().getMediaBox().getWidth() / 72.0;
+                double heightInches = visit.page().getMediaBox().getHeight() / 72.0;
+                dpi = Math.max(image.getWidth() / widthInches, image.getHeight() / heightInches);
+                unplaced.add(image.getCOSObject());
+            }
+            images.put(image.getCOSObject(), new SurveyedImage(image, dpi));
+        }
+    }
+
+    /**
+     * Every distinct image, in the order first shown
+     */
+    public List<SurveyedImage> getImages() {
+        return new ArrayList<>(images.values());
+    }
+
+    /**
+     * Stored bytes of the embedded font programs
+     */
+    public long getFontBytes() {
+        return fontBytes;
+    }
+
+    /**
+     * Stored bytes of page and form content streams
+     */
+    public long getContentBytes() {
+        return contentBytes;
+    }
+
+    /**
+     * Count the fonts in the resources and the content of their forms, including nested forms
+     */
+    private void surveyResources(PDResources resources) {
+        if (resources == null) {
+            return;
+        }
+        COSDictionary fonts = resources.getCOSObject().getCOSDictionary(COSName.FONT);
+        if (fonts != null) {
+            for (COSName name : fonts.keySet()) {
+                if (fonts.getDictionaryObject(name) instanceof COSDictionary font) {
+                    countFontFiles(font);
+                }
+            }
+        }
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xobject;
+            try {
+                xobject = resources.getXObject(name);
+            } catch (Exception e) {
+                logger.debug("Could not read XObject {}: {}", name.getName(), e.getMessage());
+                continue;
+            }
+            if (xobject instanceof PDFormXObject form && counted.add(form.getCOSObject())) {
+                contentBytes += form.getCOSObject().getLength();
+                surveyResources(form.getResources());
+            }
+        }
+    }
+
+    private void countFontFiles(COSDictionary font) {
+        // A composite font keeps its program in the descendant
+        COSArray descendants = font.getCOSArray(COSName.DESCENDANT_FONTS);
+        if (descendants != null && descendants.size() > 0
+                && descendants.getObject(0) instanceof COSDictionary descendant) {
+            font = descendant;
+        }
+        COSDictionary descriptor = font.getCOSDictionary(COSName.FONT_DESC);
+        if (descriptor == null) {
+            return;
+        }
+        for (COSName key : List.of(COSName.FONT_FILE, COSName.FONT_FILE2, COSName.FONT_FILE3)) {
+            if (descriptor.getDictionaryObject(key) instanceof COSStream program) {
+                fontBytes += countOnce(program);
+            }
+        }
+    }
+
+    private long countOnce(COSStream stream) {
+        return counted.add(stream) ? stream.getLength() : 0;
+    }
+}
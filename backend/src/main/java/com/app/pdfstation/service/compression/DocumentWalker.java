@@ -0,0 +1,127 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Walks the page tree once and hands every page to all compression phases.
+ *
+ * Resources and image XObjects are resolved a single time per page, after the
+ * phases have had a chance to add images to them; pages that share an XObject
+ * dictionary share the same {@link ImageSlot}s.
+ */
+public class DocumentWalker {
+    private final Logger logger = LoggerFactory.getLogger(DocumentWalker.class);
+
+    private final List<CompressionPhase> phases;
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private long traversalNanos;
+
+    public DocumentWalker(List<CompressionPhase> phases) {
+        this.phases = phases;
+        for (CompressionPhase phase : phases) {
+            phaseNanos.put(phase.name(), 0L);
+        }
+    }
+
+    public void walk(PDDocument document) throws Exception {
+        Set<COSDictionary> seenResources = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<COSDictionary, List<ImageSlot>> slotsByXObjects = new IdentityHashMap<>();
+
+        int index = 0;
+        for (PDPage page : document.getPages()) {
+            boolean addedImages = false;
+            for (CompressionPhase phase : phases) {
+                long phaseStart = System.nanoTime();
+                addedImages |= phase.preparePage(page, index);
+                phaseNanos.merge(phase.name(), System.nanoTime() - phaseStart, Long::sum);
+            }
+
+            long start = System.nanoTime();
+            PDResources resources = page.getResources();
+            List<ImageSlot> images = List.of();
+            boolean firstResourceVisit = true;
+
+            if (resources != null) {
+                firstResourceVisit = seenResources.add(resources.getCOSObject());
+                COSDictionary xobjects = resources.getCOSObject().getCOSDictionary(COSName.XOBJECT);
+                if (xobjects != null) {
+                    images = slotsByXObjects.get(xobjects);
+                    if (images == null) {
+                        images = resolveImages(resources);
+                        slotsByXObjects.put(xobjects, images);
+                    } else if (addedImages) {
+                        addNewImages(resources, images);
+                    }
+                }
+            }
+            traversalNanos += System.nanoTime() - start;
+
+            PageVisit visit = new PageVisit(page, index++, resources, images, firstResourceVisit);
+            for (CompressionPhase phase : phases) {
+                long phaseStart = System.nanoTime();
+                phase.visitPage(visit);
+                phaseNanos.merge(phase.name(), System.nanoTime() - phaseStart, Long::sum);
+            }
+        }
+
+        for (CompressionPhase phase : phases) {
+            long phaseStart = System.nanoTime();
+            phase.finish();
+            phaseNanos.merge(phase.name(), System.nanoTime() - phaseStart, Long::sum);
+        }
+
+        logTimings(index);
+    }
+
+    private List<ImageSlot> resolveImages(PDResources resources) throws Exception {
+        List<ImageSlot> images = new ArrayList<>();
+        for (COSName name : resources.getXObjectNames()) {
+            if (resources.isImageXObject(name)) {
+                images.add(new ImageSlot(resources, name, (PDImageXObject) resources.getXObject(name)));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Add slots for images put into an already resolved XObject dictionary,
+     * keeping the existing slots (and what phases know about them)
+     */
+    private void addNewImages(PDResources resources, List<ImageSlot> images) throws Exception {
+        Set<COSName> known = new HashSet<>();
+        for (ImageSlot slot : images) {
+            known.add(slot.getName());
+        }
+        for (ImageSlot slot : resolveImages(resources)) {
+            if (!known.contains(slot.getName())) {
+                images.add(slot);
+            }
+        }
+    }
+
+    private void logTimings(int pages) {
+        StringBuilder breakdown = new StringBuilder();
+        breakdown.append("traversal=").append(traversalNanos / 1_000_000).append("ms");
+        for (Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+            breakdown.append(", ").append(entry.getKey()).append('=')
+                    .append(entry.getValue() / 1_000_000).append("ms");
+        }
+        logger.info("Single-pass walk over {} pages: {}", pages, breakdown);
+    }
+
+    /**
+     * Accumulated time per phase in nanoseconds, in registration order
+     */
+    public Map<String, Long> getPhaseNanos() {
+        return Collections.unmodifiableMap(phaseNanos);
+    }
+}
@@ -0,0 +1,172 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceEntry;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Phase 3: Point every copy of an identical image at one canonical object.
+ *
+ * Images are compared by their encoded bytes and dictionary through a
+ * {@link DuplicateStreamIndex}, without decoding them. Besides page resources,
+ * the resources of nested forms and annotation appearances are searched, so a
+ * logo repeated inside a form or a stamp annotation is merged as well.
+ *
+ * Slots are collected during the walk and deduplicated in {@link #finish()},
+ * after the image phase has swapped in its replacements.
+ */
+public class DuplicateImagePhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(DuplicateImagePhase.class);
+
+    private final List<ImageSlot> slots = new ArrayList<>();
+    private final Set<ImageSlot> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Nested resource dictionaries (forms, appearance streams) found during the walk
+    private final List<PDResources> nestedResources = new ArrayList<>();
+    private final Set<COSDictionary> seenResources = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    @Override
+    public String name() {
+        return "dedup";
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) {
+        for (ImageSlot slot : visit.images()) {
+            if (seen.add(slot)) {
+                slots.add(slot);
+            }
+        }
+
+        try {
+            if (visit.resources() != null && seenResources.add(visit.resources().getCOSObject())) {
+                collectForms(visit.resources());
+            }
+            for (PDAnnotation annotation : visit.page().getAnnotations()) {
+                collectAppearances(annotation.getAppearance());
+            }
+        } catch (Exception e) {
+            logger.debug("Could not collect nested resources on page {}: {}", visit.index() + 1, e.getMessage());
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            for (PDResources resources : nestedResources) {
+                slots.addAll(resolveImages(resources));
+            }
+
+            DuplicateStreamIndex index = new DuplicateStreamIndex();
+            Map<COSStream, PDImageXObject> canonicalImages = new IdentityHashMap<>();
+            Set<COSStream> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+            long totalSavings = 0;
+            int referencesRewired = 0;
+
+            for (ImageSlot slot : slots) {
+                try {
+                    PDImageXObject image = slot.getImage();
+                    COSStream stream = image.getCOSObject();
+                    COSStream canonical = index.canonical(stream);
+
+                    // The same object referenced from another page is not a duplicate
+                    if (canonical == stream) {
+                        canonicalImages.putIfAbsent(stream, image);
+                        continue;
+                    }
+
+                    PDImageXObject canonicalImage = canonicalImages.get(canonical);
+                    if (canonicalImage == null) {
+                        canonicalImage = new PDImageXObject(new PDStream(canonical), null);
+                        canonicalImages.put(canonical, canonicalImage);
+                    }
+                    slot.replace(canonicalImage);
+                    referencesRewired++;
+
+                    if (removed.add(stream)) {
+                        long savedSize = stream.getLength();
+                        totalSavings += savedSize;
+                        logger.debug("Duplicate image found (saved {})", humanReadable(savedSize));
+                    }
+                } catch (Exception e) {
+                    logger.debug("Could not process image {}: {}", slot.getName(), e.getMessage());
+                }
+            }
+
+            logger.info("Phase 3 Complete: {} duplicate objects removed ({} references rewired), saved {}",
+                    removed.size(), referencesRewired, humanReadable(totalSavings));
+
+        } catch (Exception e) {
+            logger.warn("Duplicate removal had errors: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Record the resources of every form drawn from these resources, recursively
+     */
+    private void collectForms(PDResources resources) throws IOException {
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xobject = resources.getXObject(name);
+            if (xobject instanceof PDFormXObject form) {
+                collectNested(form.getResources());
+            }
+        }
+    }
+
+    private void collectAppearances(PDAppearanceDictionary appearance) throws IOException {
+        if (appearance == null) {
+            return;
+        }
+        for (PDAppearanceEntry entry : new PDAppearanceEntry[] {
+                appearance.getNormalAppearance(), appearance.getRolloverAppearance(),
+                appearance.getDownAppearance() }) {
+            if (entry == null) {
+                continue;
+            }
+            if (entry.isStream()) {
+                collectNested(entry.getAppearanceStream().getResources());
+            } else if (entry.isSubDictionary()) {
+                for (PDAppearanceStream state : entry.getSubDictionary().values()) {
+                    collectNested(state.getResources());
+                }
+            }
+        }
+    }
+
+    private void collectNested(PDResources resources) throws IOException {
+        if (resources != null && seenResources.add(resources.getCOSObject())) {
+            nestedResources.add(resources);
+            collectForms(resources);
+        }
+    }
+
+    private List<ImageSlot> resolveImages(PDResources resources) {
+        List<ImageSlot> images = new ArrayList<>();
+        for (COSName name : resources.getXObjectNames()) {
+            try {
+                if (resources.isImageXObject(name)) {
+                    images.add(new ImageSlot(resources, name, (PDImageXObject) resources.getXObject(name)));
+                }
+            } catch (IOException e) {
+                logger.debug("Could not read image {}: {}", name.getName(), e.getMessage());
+            }
+        }
+        return images;
+    }
+}
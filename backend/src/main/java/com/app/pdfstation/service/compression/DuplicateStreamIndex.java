@@ -0,0 +1,213 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Finds streams that are byte-for-byte identical in their encoded form.
+ *
+ * A stream is keyed by a CRC32C of its raw (still encoded) bytes, its length
+ * and a canonical rendering of its dictionary. Streams the dictionary refers
+ * to, such as an SMask or an ICC profile, are rendered by their own duplicate
+ * class, so two images with separate but identical masks still match. Raw
+ * bytes are only compared when two streams share a key.
+ */
+public class DuplicateStreamIndex {
+
+    // Dictionaries nested deeper or rendered longer than this are treated as unique
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_DESCRIPTION = 64 * 1024;
+
+    private record StreamKey(long length, int crc, String dictionary) {
+    }
+
+    private final Map<StreamKey, List<COSStream>> buckets = new HashMap<>();
+    private final Map<COSStream, COSStream> canonical = new IdentityHashMap<>();
+    private final Map<COSStream, Integer> classIds = new IdentityHashMap<>();
+    private final Set<COSStream> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<COSStream, Integer> checksums = new IdentityHashMap<>();
+    private int uniqueTokens = 0;
+
+    /**
+     * Supply the CRC32C of a stream's raw bytes computed elsewhere, e.g. on a
+     * worker thread
+     */
+    public void recordChecksum(COSStream stream, int crc) {
+        checksums.put(stream, crc);
+    }
+
+    /**
+     * The first stream seen with exactly the same dictionary and encoded bytes,
+     * or the stream itself
+     */
+    public COSStream canonical(COSStream stream) throws IOException {
+        COSStream known = canonical.get(stream);
+        if (known != null) {
+            return known;
+        }
+        if (!inProgress.add(stream)) {
+            // Cycle through the stream's own dictionary: never merge it
+            return stream;
+        }
+        try {
+            StreamKey key = new StreamKey(stream.getLength(), rawChecksum(stream), describe(stream));
+            List<COSStream> candidates = buckets.computeIfAbsent(key, k -> new ArrayList<>(1));
+            for (COSStream candidate : candidates) {
+                if (sameRawBytes(candidate, stream)) {
+                    canonical.put(stream, candidate);
+                    return candidate;
+                }
+            }
+            candidates.add(stream);
+            classIds.put(stream, classIds.size());
+            canonical.put(stream, stream);
+            return stream;
+        } finally {
+            inProgress.remove(stream);
+        }
+    }
+
+    /**
+     * The stream already seen with exactly the same dictionary and encoded bytes,
+     * or null. Unlike {@link #canonical}, neither the stream nor any stream its
+     * dictionary refers to is recorded.
+     */
+    public COSStream find(COSStream stream) throws IOException {
+        COSStream known = canonical.get(stream);
+        if (known != null) {
+            return known;
+        }
+        if (!inProgress.add(stream)) {
+            return null;
+        }
+        try {
+            StreamKey key = new StreamKey(stream.getLength(), rawChecksum(stream), describeKnown(stream));
+            for (COSStream candidate : buckets.getOrDefault(key, List.of())) {
+                if (sameRawBytes(candidate, stream)) {
+                    return candidate;
+                }
+            }
+            return null;
+        } finally {
+            inProgress.remove(stream);
+        }
+    }
+
+    private int rawChecksum(COSStream stream) throws IOException {
+        Integer known = checksums.remove(stream);
+        if (known != null) {
+            return known;
+        }
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = stream.createRawInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private boolean sameRawBytes(COSStream a, COSStream b) throws IOException {
+        try (InputStream inA = a.createRawInputStream(); InputStream inB = b.createRawInputStream()) {
+            byte[] bufferA = new byte[64 * 1024];
+            byte[] bufferB = new byte[64 * 1024];
+            while (true) {
+                int readA = inA.readNBytes(bufferA, 0, bufferA.length);
+                int readB = inB.readNBytes(bufferB, 0, bufferB.length);
+                if (readA != readB || !Arrays.equals(bufferA, 0, readA, bufferB, 0, readB)) {
+                    return false;
+                }
+                if (readA == 0) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Render a dictionary canonically: sorted keys, /Length left out, nested
+     * streams replaced by their duplicate class. Two dictionaries with equal
+     * renderings, e.g. fonts embedding identical programs, can be used in place
+     * of each other.
+     */
+    public String describe(COSDictionary dictionary) throws IOException {
+        return describe(dictionary, true);
+    }
+
+    /**
+     * As {@link #describe}, but without recording the streams the dictionary refers
+     * to. A stream not seen before renders uniquely, so the result then equals no
+     * rendering made before.
+     */
+    public String describeKnown(COSDictionary dictionary) throws IOException {
+        return describe(dictionary, false);
+    }
+
+    private String describe(COSDictionary dictionary, boolean record) throws IOException {
+        StringBuilder out = new StringBuilder();
+        describeDictionary(dictionary, out, 0, record);
+        return out.length() <= MAX_DESCRIPTION ? out.toString() : uniqueToken();
+    }
+
+    /**
+     * Never equal to any other rendering, so the stream cannot be merged
+     */
+    private String uniqueToken() {
+        return "@" + uniqueTokens++;
+    }
+
+    private void describeDictionary(COSDictionary dictionary, StringBuilder out, int depth, boolean record)
+            throws IOException {
+        List<COSName> keys = new ArrayList<>(dictionary.keySet());
+        keys.sort(Comparator.comparing(COSName::getName));
+        out.append("<<");
+        for (COSName key : keys) {
+            if (COSName.LENGTH.equals(key)) {
+                continue;
+            }
+            out.append('/').append(key.getName()).append(' ');
+            describe(dictionary.getItem(key), out, depth + 1, record);
+        }
+        out.append(">>");
+    }
+
+    private void describe(COSBase value, StringBuilder out, int depth, boolean record) throws IOException {
+        if (value instanceof COSObject) {
+            value = ((COSObject) value).getObject();
+        }
+        if (depth > MAX_DEPTH || out.length() > MAX_DESCRIPTION) {
+            out.append(uniqueToken());
+        } else if (value instanceof COSStream stream) {
+            COSStream representative = record ? canonical(stream) : find(stream);
+            Integer classId = representative != null ? classIds.get(representative) : null;
+            if (classId != null) {
+                out.append('#').append(classId);
+            } else {
+                out.append(uniqueToken());
+            }
+        } else if (value instanceof COSDictionary dictionary) {
+            describeDictionary(dictionary, out, depth, record);
+        } else if (value instanceof COSArray array) {
+            out.append('[');
+            for (int i = 0; i < array.size(); i++) {
+                describe(array.get(i), out, depth + 1, record);
+                out.append(' ');
+            }
+            out.append(']');
+        } else if (value instanceof COSName name) {
+            out.append('/').append(name.getName());
+        } else if (value instanceof COSString string) {
+            out.append('<').append(string.toHexString()).append('>');
+        } else if (value instanceof COSNumber || value instanceof COSBoolean) {
+            out.append(value);
+        } else {
+            out.append("null");
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32C;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Phase 4: Collapse identical stream objects of any kind into one indirect object.
+ *
+ * Merged and generated documents often embed the same font program, ICC profile
+ * or form once per source. After all other phases have run, every stream
+ * reachable from the catalog and info dictionary is fingerprinted through a
+ * {@link DuplicateStreamIndex} and every reference to a duplicate is rewritten
+ * to the first instance, so the writer drops the copies.
+ *
+ * Raw bytes are read and checksummed on the worker pool, a chunk at a time,
+ * and only the checksum is kept. Chunk reads take turns on the document
+ * source, since it is not thread-safe; the checksumming overlaps them.
+ */
+public class DuplicateStreamPhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(DuplicateStreamPhase.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final PDDocument document;
+    private final ExecutorService pool;
+    private final int window;
+    private final Object sourceLock = new Object();
+
+    /**
+     * @param pool worker pool, or null to checksum on the calling thread
+     */
+    public DuplicateStreamPhase(PDDocument document, ExecutorService pool, int parallelism) {
+        this.document = document;
+        this.pool = pool;
+        this.window = parallelism * 2;
+    }
+
+    @Override
+    public String name() {
+        return "streams";
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) {
+        // Works on the whole object graph once the pages are done
+    }
+
+    @Override
+    public void finish() throws Exception {
+        COSDictionary trailer = document.getDocument().getTrailer();
+        List<COSStream> streams = collectStreams(trailer);
+
+        DuplicateStreamIndex index = new DuplicateStreamIndex();
+        checksumInParallel(streams, index);
+
+        Map<COSStream, COSStream> replacements = new IdentityHashMap<>();
+        Map<String, Integer> removedByType = new TreeMap<>();
+        long totalSavings = 0;
+
+        for (COSStream stream : streams) {
+            try {
+                COSStream canonical = index.canonical(stream);
+                if (canonical != stream) {
+                    replacements.put(stream, canonical);
+                    removedByType.merge(typeOf(stream), 1, Integer::sum);
+                    totalSavings += stream.getLength();
+                }
+            } catch (IOException e) {
+                logger.debug("Could not fingerprint stream: {}", e.getMessage());
+            }
+        }
+
+        int referencesRewired = replacements.isEmpty() ? 0 : rewriteReferences(trailer, replacements);
+
+        logger.info("Phase 4 Complete: {} duplicate streams removed {} ({} references rewired), saved {}",
+                replacements.size(), removedByType, referencesRewired, humanReadable(totalSavings));
+    }
+
+    /**
+     * Every stream reachable from the catalog and info dictionary, in discovery order
+     */
+    private List<COSStream> collectStreams(COSDictionary trailer) {
+        Set<COSStream> streams = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<COSStream> ordered = new ArrayList<>();
+        traverse(trailer, value -> {
+            if (value instanceof COSStream stream && streams.add(stream)) {
+                ordered.add(stream);
+            }
+            return null;
+        });
+        return ordered;
+    }
+
+    /**
+     * Point every reference to a duplicate at its canonical stream
+     */
+    private int rewriteReferences(COSDictionary trailer, Map<COSStream, COSStream> replacements) {
+        int[] rewired = { 0 };
+        traverse(trailer, value -> {
+            COSStream canonical = value instanceof COSStream ? replacements.get(value) : null;
+            if (canonical != null) {
+                rewired[0]++;
+            }
+            return canonical;
+        });
+        return rewired[0];
+    }
+
+    /**
+     * Hand every reference to a reachable object to the visitor. A non-null result
+     * replaces the object in its container, and the old object is not descended into.
+     */
+    private void traverse(COSDictionary trailer, UnaryOperator<COSBase> visitor) {
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> stack = new ArrayDeque<>();
+
+        // Only the catalog and info dictionary; /Encrypt and /ID are left alone
+        for (COSName root : new COSName[] { COSName.ROOT, COSName.INFO }) {
+            COSBase value = dereference(trailer.getItem(root));
+            if (value != null && visited.add(value)) {
+                stack.push(value);
+            }
+        }
+
+        while (!stack.isEmpty()) {
+            COSBase current = stack.pop();
+            if (current instanceof COSDictionary dictionary) {
+                for (COSName key : new ArrayList<>(dictionary.keySet())) {
+                    COSBase value = dereference(dictionary.getItem(key));
+                    COSBase replacement = value != null ? visitor.apply(value) : null;
+                    if (replacement != null) {
+                        dictionary.setItem(key, replacement);
+                    } else if (value != null && visited.add(value)) {
+                        stack.push(value);
+                    }
+                }
+            } else if (current instanceof COSArray array) {
+                for (int i = 0; i < array.size(); i++) {
+                    COSBase value = dereference(array.get(i));
+                    COSBase replacement = value != null ? visitor.apply(value) : null;
+                    if (replacement != null) {
+                        array.set(i, replacement);
+                    } else if (value != null && visited.add(value)) {
+                        stack.push(value);
+                    }
+                }
+            }
+        }
+    }
+
+    private COSBase dereference(COSBase value) {
+        if (value instanceof COSObject) {
+            return ((COSObject) value).getObject();
+        }
+        return value instanceof COSDictionary || value instanceof COSArray ? value : null;
+    }
+
+    /**
+     * Read and checksum raw bytes on the pool, a bounded window of streams at a time
+     */
+    private void checksumInParallel(List<COSStream> streams, DuplicateStreamIndex index) throws Exception {
+        Deque<Map.Entry<COSStream, Future<Integer>>> pending = new ArrayDeque<>();
+        for (COSStream stream : streams) {
+            FutureTask<Integer> checksum = new FutureTask<>(() -> rawChecksum(stream));
+            if (pool != null) {
+                pool.execute(checksum);
+            } else {
+                checksum.run();
+            }
+            pending.add(Map.entry(stream, checksum));
+
+            if (pending.size() >= window) {
+                recordChecksum(pending.poll(), index);
+            }
+        }
+        while (!pending.isEmpty()) {
+            recordChecksum(pending.poll(), index);
+        }
+    }
+
+    /**
+     * CRC32C of the stream's raw bytes, or null if they cannot be read. Only the
+     * reads hold the source lock; the checksum runs outside it.
+     */
+    private Integer rawChecksum(COSStream stream) {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try {
+            InputStream in;
+            synchronized (sourceLock) {
+                in = stream.createRawInputStream();
+            }
+            try (in) {
+                while (true) {
+                    int read;
+                    synchronized (sourceLock) {
+                        read = in.readNBytes(buffer, 0, buffer.length);
+                    }
+                    if (read == 0) {
+                        break;
+                    }
+                    crc.update(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Could not read stream: {}", e.getMessage());
+            return null;
+        }
+        return (int) crc.getValue();
+    }
+
+    private void recordChecksum(Map.Entry<COSStream, Future<Integer>> entry, DuplicateStreamIndex index)
+            throws Exception {
+        Integer checksum;
+        try {
+            checksum = entry.getValue().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        if (checksum != null) {
+            index.recordChecksum(entry.getKey(), checksum);
+        }
+    }
+
+    /**
+     * Label for the report: the stream's /Subtype or /Type, else its font file kind
+     */
+    private String typeOf(COSStream stream) {
+        COSName subtype = stream.getCOSName(COSName.SUBTYPE);
+        if (subtype != null) {
+            return subtype.getName();
+        }
+        COSName type = stream.getCOSName(COSName.TYPE);
+        if (type != null) {
+            return type.getName();
+        }
+        if (stream.containsKey(COSName.LENGTH1)) {
+            return "FontFile";
+        }
+        if (stream.containsKey(COSName.N)) {
+            return "ICCBased";
+        }
+        return "Stream";
+    }
+}
@@ -0,0 +1,261 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Image data encoded by a worker, held in a pooled buffer or spilled to a scratch
+ * file until it is written into the document, optionally with the soft mask
+ * encoded alongside it.
+ */
+public class EncodedImage {
+
+    private final COSName filter;
+    private final COSDictionary decodeParms;
+    private final int width;
+    private final int height;
+    private final int bitsPerComponent;
+    private final PDColorSpace colorSpace;
+    private final EncodingBuffer data;
+    private final Path spillFile;
+    private final EncodedImage softMask;
+
+    private EncodedImage(COSName filter, COSDictionary decodeParms, int width, int height, int bitsPerComponent,
+            PDColorSpace colorSpace, EncodingBuffer data, Path spillFile, EncodedImage softMask) {
+        this.filter = filter;
+        this.decodeParms = decodeParms;
+        this.width = width;
+        this.height = height;
+        this.bitsPerComponent = bitsPerComponent;
+        this.colorSpace = colorSpace;
+        this.data = data;
+        this.spillFile = spillFile;
+        this.softMask = softMask;
+    }
+
+    /**
+     * @param decodeParms the filter's /DecodeParms, or null
+     */
+    public static EncodedImage inMemory(COSName filter, COSDictionary decodeParms, int width, int height,
+            int bitsPerComponent, PDColorSpace colorSpace, EncodingBuffer data) {
+        return new EncodedImage(filter, decodeParms, width, height, bitsPerComponent, colorSpace, data, null, null);
+    }
+
+    /**
+     * This image with a gray image to be attached as its /SMask
+     */
+    public EncodedImage withSoftMask(EncodedImage mask) {
+        return new EncodedImage(filter, decodeParms, width, height, bitsPerComponent, colorSpace, data, spillFile,
+                mask);
+    }
+
+    public COSName getFilter() {
+        return filter;
+    }
+
+    public boolean hasSoftMask() {
+        return softMask != null;
+    }
+
+    /**
+     * Encoded size in bytes, i.e. the length of the image stream it becomes,
+     * plus that of its soft mask
+     */
+    public long size() throws IOException {
+        long size = data != null ? data.size() : Files.size(spillFile);
+        return softMask != null ? size + softMask.size() : size;
+    }
+
+    /**
+     * Bytes held on the heap, i.e. not spilled, including those of its soft mask
+     */
+    public long heapSize() {
+        long size = data != null ? data.size() : 0;
+        return softMask != null ? size + softMask.heapSize() : size;
+    }
+
+    /**
+     * Move the encoded bytes to a scratch file and return the buffer to the pool
+     */
+    public EncodedImage spill() throws IOException {
+        EncodedImage mask = softMask != null ? softMask.spill() : null;
+        if (data == null) {
+            return mask == softMask ? this : withSoftMask(mask);
+        }
+        Path file = Files.createTempFile("pdfstation-image-", ".bin");
+        try (InputStream in = data.asInputStream()) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        ImageEncoders.releaseBuffer(data);
+        return new EncodedImage(filter, decodeParms, width, height, bitsPerComponent, colorSpace, null, file, mask);
+    }
+
+    /**
+     * Create the image XObject, copying the encoded bytes once, directly into a
+     * stream of the document (which may itself be backed by its scratch file)
+     */
+    public PDImageXObject toImageXObject(PDDocument document) throws IOException {
+        try (InputStream in = data != null ? data.asInputStream() : Files.newInputStream(spillFile)) {
+            PDImageXObject image = new PDImageXObject(document, in, filter, width, height, bitsPerComponent,
+                    colorSpace);
+            if (decodeParms != null) {
+                image.getCOSObject().setItem(COSName.DECODE_PARMS, decodeParms);
+            }
+            if (softMask != null) {
+                image.getCOSObject().setItem(COSName.SMASK, softMask.toImageXObject(document));
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Serialize the image for {@link ImageCache}. Returns false, having written an
+     * incomplete record, when the colour space or decode parameters are of a kind
+     * the encoders never produce.
+     */
+    public boolean writeTo(DataOutputStream out) throws IOException {
+        if (!(colorSpace instanceof PDDeviceGray || colorSpace instanceof PDDeviceRGB)) {
+            return false;
+        }
+        out.writeUTF(filter.getName());
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(bitsPerComponent);
+        out.writeBoolean(colorSpace instanceof PDDeviceGray);
+
+        out.writeInt(decodeParms != null ? decodeParms.size() : 0);
+        if (decodeParms != null) {
+            for (Map.Entry<COSName, COSBase> entry : decodeParms.entrySet()) {
+                out.writeUTF(entry.getKey().getName());
+                if (entry.getValue() instanceof COSInteger number) {
+                    out.writeBoolean(false);
+                    out.writeLong(number.longValue());
+                } else if (entry.getValue() instanceof COSBoolean bool) {
+                    out.writeBoolean(true);
+                    out.writeBoolean(bool.getValue());
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        out.writeLong(data != null ? data.size() : Files.size(spillFile));
+        try (InputStream in = data != null ? data.asInputStream() : Files.newInputStream(spillFile)) {
+            in.transferTo(out);
+        }
+        out.writeBoolean(softMask != null);
+        return softMask == null || softMask.writeTo(out);
+    }
+
+    /**
+     * An image written by {@link #writeTo}, in a pooled buffer
+     */
+    public static EncodedImage readFrom(DataInputStream in) throws IOException {
+        COSName filter = COSName.getPDFName(in.readUTF());
+        int width = in.readInt();
+        int height = in.readInt();
+        int bitsPerComponent = in.readInt();
+        PDColorSpace colorSpace = in.readBoolean() ? PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE;
+
+        COSDictionary decodeParms = null;
+        int parms = in.readInt();
+        if (parms > 0) {
+            decodeParms = new COSDictionary();
+            for (int i = 0; i < parms; i++) {
+                COSName key = COSName.getPDFName(in.readUTF());
+                decodeParms.setItem(key, in.readBoolean()
+                        ? COSBoolean.getBoolean(in.readBoolean())
+                        : COSInteger.get(in.readLong()));
+            }
+        }
+
+        long length = in.readLong();
+        EncodingBuffer buffer = ImageEncoders.acquireBuffer();
+        EncodedImage image;
+        try {
+            buffer.writeFrom(new BoundedInputStream(in, length));
+            image = inMemory(filter, decodeParms, width, height, bitsPerComponent, colorSpace, buffer);
+        } catch (IOException | RuntimeException e) {
+            ImageEncoders.releaseBuffer(buffer);
+            throw e;
+        }
+        if (in.readBoolean()) {
+            try {
+                image = image.withSoftMask(readFrom(in));
+            } catch (IOException | RuntimeException e) {
+                image.discard();
+                throw e;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Return the buffer to the pool or delete the scratch file
+     */
+    public void discard() {
+        if (softMask != null) {
+            softMask.discard();
+        }
+        if (data != null) {
+            ImageEncoders.releaseBuffer(data);
+        }
+        if (spillFile != null) {
+            try {
+                Files.deleteIfExists(spillFile);
+            } catch (IOException ignored) {
+                spillFile.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * The next length bytes of a stream
+     */
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.app.pdfstation.service.compression;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Growable in-memory image output stream whose bytes can be read back in place.
+ *
+ * Unlike a {@code ByteArrayOutputStream} wrapped in a memory-cache image stream,
+ * the encoder writes straight into the backing array and {@link #asInputStream()}
+ * hands that array to the document without copying it. Buffers are pooled by
+ * {@link ImageEncoders} and reset between images.
+ */
+public class EncodingBuffer extends ImageOutputStreamImpl {
+
+    private byte[] buffer;
+    private int length;
+
+    public EncodingBuffer(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Empty the buffer for the next image, keeping its capacity
+     */
+    public void clear() {
+        length = 0;
+        streamPos = 0;
+        flushedPos = 0;
+        bitOffset = 0;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * The written bytes, backed by this buffer; only valid until the buffer is cleared
+     */
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    /**
+     * Append everything the stream returns
+     */
+    public void writeFrom(InputStream in) throws IOException {
+        flushBits();
+        while (true) {
+            ensureCapacity(streamPos + 8192);
+            int read = in.read(buffer, (int) streamPos, buffer.length - (int) streamPos);
+            if (read < 0) {
+                break;
+            }
+            streamPos += read;
+            length = Math.max(length, (int) streamPos);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        ensureCapacity(streamPos + 1);
+        buffer[(int) streamPos++] = (byte) b;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        ensureCapacity(streamPos + len);
+        System.arraycopy(b, off, buffer, (int) streamPos, len);
+        streamPos += len;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public int read() {
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return buffer[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        int count = (int) Math.min(len, length - streamPos);
+        System.arraycopy(buffer, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    private void ensureCapacity(long required) {
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Encoded image exceeds 2 GB");
+        }
+        if (required > buffer.length) {
+            long grown = Math.max(required, (long) buffer.length * 2);
+            buffer = Arrays.copyOf(buffer, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+        }
+    }
+}
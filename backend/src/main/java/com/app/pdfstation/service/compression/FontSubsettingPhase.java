@@ -0,0 +1,342 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.fontbox.ttf.CmapLookup;
+import org.apache.fontbox.ttf.TTFSubsetter;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.*;
+import org.apache.pdfbox.pdmodel.font.encoding.Encoding;
+import org.apache.pdfbox.pdmodel.font.encoding.GlyphList;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Phase 1: Subset embedded TrueType fonts down to the glyphs the document uses.
+ *
+ * Glyph usage is gathered per font object during the walk. In {@link #finish()}
+ * each fully embedded TrueType program (Type0/CIDFontType2 or simple TrueType)
+ * is rewritten in place with only those glyphs, so every reference to the font
+ * stays valid. A program shared by several font dictionaries keeps the glyphs
+ * all of them show. Programs used by form fields are left alone, since fields
+ * may need any glyph when edited. If any page cannot be scanned to the end, its
+ * glyph usage is unknown and no font is subset at all.
+ */
+public class FontSubsettingPhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(FontSubsettingPhase.class);
+
+    // Tables PDFBox itself keeps when subsetting CID fonts
+    private static final List<String> CID_TABLES = List.of(
+            "head", "hhea", "loca", "maxp", "cvt ", "prep", "glyf", "hmtx", "fpgm", "gasp");
+
+    // Simple fonts map codes through the font's own cmap, so it has to survive
+    private static final List<String> SIMPLE_TABLES = List.of(
+            "head", "hhea", "loca", "maxp", "cvt ", "prep", "glyf", "hmtx", "fpgm", "gasp",
+            "cmap", "OS/2", "post", "name");
+
+    private final PDDocument document;
+    private final GlyphUsageScanner scanner = new GlyphUsageScanner();
+
+    private boolean incompleteScan = false;
+    private int fontsSubset = 0;
+    private long totalFontSavings = 0;
+
+    public FontSubsettingPhase(PDDocument document) {
+        this.document = document;
+    }
+
+    @Override
+    public String name() {
+        return "fonts";
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) {
+        try {
+            scanner.scan(visit.page());
+        } catch (Exception e) {
+            // The page may show glyphs of any font it reaches, scanned or not
+            incompleteScan = true;
+            logger.warn("Could not scan glyphs on page {}: {}", visit.index() + 1, e.getMessage());
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (incompleteScan) {
+            logger.warn("Phase 1 Skipped: glyph usage is incomplete, all fonts kept whole");
+            return;
+        }
+        Set<COSStream> formPrograms = collectFormPrograms();
+
+        // Font dictionaries sharing one embedded program are subset together,
+        // with the union of the glyphs they show
+        Map<COSStream, List<GlyphUsageScanner.FontUsage>> byProgram = new IdentityHashMap<>();
+        Set<COSStream> keepWhole = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (GlyphUsageScanner.FontUsage usage : scanner.getUsage()) {
+            PDFont font = usage.getFont();
+            COSStream program = fontProgram(font);
+            if (program == null || usage.getCodes().isEmpty()) {
+                continue;
+            }
+            if (formPrograms.contains(program) || isSubset(font.getName())) {
+                keepWhole.add(program);
+                continue;
+            }
+            byProgram.computeIfAbsent(program, p -> new ArrayList<>()).add(usage);
+        }
+
+        for (Map.Entry<COSStream, List<GlyphUsageScanner.FontUsage>> entry : byProgram.entrySet()) {
+            if (keepWhole.contains(entry.getKey())) {
+                continue;
+            }
+            List<GlyphUsageScanner.FontUsage> users = entry.getValue();
+            try {
+                if (users.stream().allMatch(usage -> usage.getFont() instanceof PDType0Font)) {
+                    subsetType0(entry.getKey(), users);
+                } else if (users.stream().allMatch(usage -> usage.getFont() instanceof PDTrueTypeFont)) {
+                    subsetTrueType(entry.getKey(), users);
+                }
+            } catch (Exception e) {
+                logger.warn("Could not subset font {}: {}", users.get(0).getFont().getName(), e.getMessage());
+            }
+        }
+
+        logger.info("Phase 1 Complete: {} fonts subset, saved {}", fontsSubset, humanReadable(totalFontSavings));
+    }
+
+    /**
+     * CIDFontType2: keep the used glyphs and rebuild CIDToGIDMap for the new glyph ids
+     */
+    private void subsetType0(COSStream program, List<GlyphUsageScanner.FontUsage> users) throws IOException {
+        // CIDs are merged per descendant, since Type0 fonts may share one
+        Map<COSDictionary, TreeMap<Integer, Integer>> cidMaps = new IdentityHashMap<>();
+        Set<Integer> oldGids = new TreeSet<>();
+        PDCIDFontType2 first = null;
+        for (GlyphUsageScanner.FontUsage usage : users) {
+            PDType0Font type0 = (PDType0Font) usage.getFont();
+            if (!(type0.getDescendantFont() instanceof PDCIDFontType2 cidFont) || type0.getCMap().getWMode() != 0) {
+                return;
+            }
+            TreeMap<Integer, Integer> cidToOldGid = cidMaps.computeIfAbsent(cidFont.getCOSObject(), d -> new TreeMap<>());
+            for (int code : usage.getCodes()) {
+                int oldGid = cidFont.codeToGID(code);
+                cidToOldGid.put(type0.codeToCID(code), oldGid);
+                oldGids.add(oldGid);
+            }
+            if (first == null) {
+                first = cidFont;
+            }
+        }
+
+        TrueTypeFont ttf = first.getTrueTypeFont();
+        TTFSubsetter subsetter = new TTFSubsetter(ttf, CID_TABLES);
+        subsetter.addGlyphIds(oldGids);
+        byte[] subset = writeSubset(subsetter);
+        if (subset.length >= ttf.getOriginalDataSize()) {
+            return;
+        }
+
+        Map<Integer, Integer> oldToNewGid = new HashMap<>();
+        subsetter.getGIDMap().forEach((newGid, oldGid) -> oldToNewGid.put(oldGid, newGid));
+
+        String tag = subsetTag(oldGids);
+        long saved = replaceFontFile(program, subset);
+
+        Map<COSDictionary, BitSet> cidSets = new IdentityHashMap<>();
+        for (Map.Entry<COSDictionary, TreeMap<Integer, Integer>> entry : cidMaps.entrySet()) {
+            TreeMap<Integer, Integer> cidToOldGid = entry.getValue();
+            byte[] cidToGid = new byte[(cidToOldGid.lastKey() + 1) * 2];
+            BitSet cids = cidSets.computeIfAbsent(
+                    entry.getKey().getCOSDictionary(COSName.FONT_DESC), d -> new BitSet());
+            for (Map.Entry<Integer, Integer> mapping : cidToOldGid.entrySet()) {
+                int cid = mapping.getKey();
+                int newGid = oldToNewGid.getOrDefault(mapping.getValue(), 0);
+                cidToGid[cid * 2] = (byte) (newGid >> 8);
+                cidToGid[cid * 2 + 1] = (byte) newGid;
+                cids.set(cid);
+            }
+            entry.getKey().setItem(COSName.CID_TO_GID_MAP, flateStream(cidToGid));
+        }
+        for (Map.Entry<COSDictionary, BitSet> entry : cidSets.entrySet()) {
+            COSDictionary descriptor = entry.getKey();
+            if (descriptor != null && descriptor.containsKey(COSName.CID_SET)) {
+                BitSet cids = entry.getValue();
+                byte[] cidSet = new byte[cids.length() / 8 + 1];
+                cids.stream().forEach(cid -> cidSet[cid / 8] |= (byte) (0x80 >> (cid % 8)));
+                descriptor.setItem(COSName.CID_SET, flateStream(cidSet));
+            }
+        }
+
+        Set<COSDictionary> tagged = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (GlyphUsageScanner.FontUsage usage : users) {
+            PDType0Font type0 = (PDType0Font) usage.getFont();
+            PDCIDFont cidFont = type0.getDescendantFont();
+            applyTag(tag, tagged, type0.getCOSObject(), cidFont.getCOSObject(),
+                    cidFont.getFontDescriptor().getCOSObject());
+        }
+
+        reportSubset(first.getName(), oldGids.size(), ttf.getNumberOfGlyphs(), saved);
+    }
+
+    /**
+     * Simple TrueType: only non-symbolic fonts whose Unicode cmap agrees with the
+     * PDF encoding, since the subset's rebuilt cmap is what viewers will use
+     */
+    private void subsetTrueType(COSStream program, List<GlyphUsageScanner.FontUsage> users) throws IOException {
+        TrueTypeFont ttf = ((PDTrueTypeFont) users.get(0).getFont()).getTrueTypeFont();
+        CmapLookup unicodeCmap;
+        try {
+            unicodeCmap = ttf.getUnicodeCmapLookup();
+        } catch (IOException e) {
+            return;
+        }
+
+        Set<Integer> unicodes = new TreeSet<>();
+        for (GlyphUsageScanner.FontUsage usage : users) {
+            PDTrueTypeFont trueType = (PDTrueTypeFont) usage.getFont();
+            Encoding encoding = trueType.getEncoding();
+            if (encoding == null || trueType.isSymbolic()) {
+                return;
+            }
+            for (int code : usage.getCodes()) {
+                String unicode = GlyphList.getAdobeGlyphList().toUnicode(encoding.getName(code));
+                if (unicode == null || unicode.codePointCount(0, unicode.length()) != 1) {
+                    return;
+                }
+                int codePoint = unicode.codePointAt(0);
+                if (unicodeCmap.getGlyphId(codePoint) != trueType.codeToGID(code)) {
+                    return;
+                }
+                unicodes.add(codePoint);
+            }
+        }
+
+        TTFSubsetter subsetter = new TTFSubsetter(ttf, SIMPLE_TABLES);
+        subsetter.addAll(unicodes);
+        byte[] subset = writeSubset(subsetter);
+        if (subset.length >= ttf.getOriginalDataSize()) {
+            return;
+        }
+
+        String tag = subsetTag(unicodes);
+        long saved = replaceFontFile(program, subset);
+        Set<COSDictionary> tagged = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (GlyphUsageScanner.FontUsage usage : users) {
+            PDFont trueType = usage.getFont();
+            applyTag(tag, tagged, trueType.getCOSObject(), null, trueType.getFontDescriptor().getCOSObject());
+        }
+
+        reportSubset(users.get(0).getFont().getName(), unicodes.size(), ttf.getNumberOfGlyphs(), saved);
+    }
+
+    private byte[] writeSubset(TTFSubsetter subsetter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        subsetter.writeToStream(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Overwrite the embedded font program, returning the encoded bytes saved
+     */
+    private long replaceFontFile(COSStream stream, byte[] subset) throws IOException {
+        long before = stream.getLength();
+
+        stream.removeItem(COSName.DECODE_PARMS);
+        try (OutputStream out = stream.createOutputStream(COSName.FLATE_DECODE)) {
+            out.write(subset);
+        }
+        stream.setInt(COSName.LENGTH1, subset.length);
+
+        return before - stream.getLength();
+    }
+
+    private COSStream flateStream(byte[] data) throws IOException {
+        COSStream stream = document.getDocument().createCOSStream();
+        try (OutputStream out = stream.createOutputStream(COSName.FLATE_DECODE)) {
+            out.write(data);
+        }
+        return stream;
+    }
+
+    /**
+     * Subset fonts must be renamed with a six-letter tag, e.g. ABCDEF+Arial.
+     * Dictionaries shared by several fonts are tagged only once.
+     */
+    private void applyTag(String tag, Set<COSDictionary> tagged, COSDictionary fontDict,
+            COSDictionary descendant, COSDictionary descriptor) {
+        for (COSDictionary dict : new COSDictionary[] { fontDict, descendant }) {
+            if (dict != null && tagged.add(dict) && dict.getNameAsString(COSName.BASE_FONT) != null) {
+                dict.setName(COSName.BASE_FONT, tag + dict.getNameAsString(COSName.BASE_FONT));
+            }
+        }
+        if (tagged.add(descriptor) && descriptor.getNameAsString(COSName.FONT_NAME) != null) {
+            descriptor.setName(COSName.FONT_NAME, tag + descriptor.getNameAsString(COSName.FONT_NAME));
+        }
+    }
+
+    /**
+     * Deterministic tag derived from the kept glyphs, as PDFBox does for new subsets
+     */
+    private String subsetTag(Set<Integer> glyphs) {
+        long hash = glyphs.hashCode() & 0xffffffffL;
+        StringBuilder tag = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            tag.append((char) ('A' + hash % 26));
+            hash /= 26;
+        }
+        return tag.append('+').toString();
+    }
+
+    private boolean isSubset(String fontName) {
+        return fontName != null && fontName.length() > 7 && fontName.charAt(6) == '+';
+    }
+
+    /**
+     * The embedded TrueType program behind a font, if any
+     */
+    private COSStream fontProgram(PDFont font) {
+        PDFontDescriptor descriptor = font instanceof PDType0Font type0
+                ? (type0.getDescendantFont() != null ? type0.getDescendantFont().getFontDescriptor() : null)
+                : font.getFontDescriptor();
+        PDStream fontFile = descriptor != null ? descriptor.getFontFile2() : null;
+        return fontFile != null ? fontFile.getCOSObject() : null;
+    }
+
+    private Set<COSStream> collectFormPrograms() {
+        Set<COSStream> programs = Collections.newSetFromMap(new IdentityHashMap<>());
+        PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm(null);
+        PDResources formResources = acroForm != null ? acroForm.getDefaultResources() : null;
+        if (formResources != null) {
+            for (COSName name : formResources.getFontNames()) {
+                try {
+                    PDFont font = formResources.getFont(name);
+                    COSStream program = font != null ? fontProgram(font) : null;
+                    if (program != null) {
+                        programs.add(program);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Could not read form font {}: {}", name, e.getMessage());
+                }
+            }
+        }
+        return programs;
+    }
+
+    private void reportSubset(String fontName, int glyphsKept, int glyphsTotal, long saved) {
+        fontsSubset++;
+        totalFontSavings += saved;
+        logger.info("Subset font {}: kept {} of {} glyphs, saved {}",
+                fontName, glyphsKept, glyphsTotal, humanReadable(saved));
+    }
+}
@@ -0,0 +1,196 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.contentstream.operator.state.SetGraphicsStateParameters;
+import org.apache.pdfbox.contentstream.operator.state.SetMatrix;
+import org.apache.pdfbox.contentstream.operator.text.*;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDTransparencyGroup;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Collects the character codes shown with each font.
+ *
+ * Walks page content, the forms it draws, annotation appearances and the
+ * content hidden in their resources: tiling patterns, soft mask groups and
+ * Type 3 glyphs, found the same way StripPhase finds them. Usage is accumulated
+ * per font dictionary across all pages, so a font shared by many pages is
+ * tracked once however many resource dictionaries point at it.
+ */
+public class GlyphUsageScanner extends PDFStreamEngine {
+
+    /**
+     * Codes shown with one font object
+     */
+    public static class FontUsage {
+        private final PDFont font;
+        private final Set<Integer> codes = new TreeSet<>();
+
+        FontUsage(PDFont font) {
+            this.font = font;
+        }
+
+        public PDFont getFont() {
+            return font;
+        }
+
+        public Set<Integer> getCodes() {
+            return codes;
+        }
+    }
+
+    private final Map<COSDictionary, FontUsage> usage = new IdentityHashMap<>();
+    private final Set<COSDictionary> expanded = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Deque<PDResources> pending = new ArrayDeque<>();
+
+    public GlyphUsageScanner() {
+        addOperator(new Save(this));
+        addOperator(new Restore(this));
+        addOperator(new SetGraphicsStateParameters(this));
+        addOperator(new DrawObject(this));
+        addOperator(new BeginText(this));
+        addOperator(new EndText(this));
+        addOperator(new SetFontAndSize(this));
+        addOperator(new SetTextLeading(this));
+        addOperator(new MoveText(this));
+        addOperator(new MoveTextSetLeading(this));
+        addOperator(new NextLine(this));
+        addOperator(new SetMatrix(this));
+        addOperator(new ShowText(this));
+        addOperator(new ShowTextAdjusted(this));
+        addOperator(new ShowTextLine(this));
+        addOperator(new ShowTextLineAndSpace(this));
+    }
+
+    /**
+     * Add the glyphs shown on a page and its annotation appearances
+     */
+    public void scan(PDPage page) throws IOException {
+        pending.add(page.getResources());
+        processPage(page);
+        for (PDAnnotation annotation : page.getAnnotations()) {
+            PDAppearanceStream appearance = annotation.getNormalAppearanceStream();
+            if (appearance != null && appearance.getResources() != null) {
+                pending.add(appearance.getResources());
+            }
+            showAnnotation(annotation);
+        }
+        while (!pending.isEmpty()) {
+            showResourceContent(page, pending.poll());
+        }
+    }
+
+    /**
+     * Usage per font dictionary
+     */
+    public Collection<FontUsage> getUsage() {
+        return usage.values();
+    }
+
+    @Override
+    public void showForm(PDFormXObject form) throws IOException {
+        pending.add(form.getResources() != null ? form.getResources() : getResources());
+        super.showForm(form);
+    }
+
+    @Override
+    public void showTransparencyGroup(PDTransparencyGroup group) throws IOException {
+        pending.add(group.getResources() != null ? group.getResources() : getResources());
+        super.showTransparencyGroup(group);
+    }
+
+    /**
+     * Show the content hidden in resources, once per resource dictionary
+     */
+    private void showResourceContent(PDPage page, PDResources resources) throws IOException {
+        if (resources == null || !expanded.add(resources.getCOSObject())) {
+            return;
+        }
+        COSDictionary dict = resources.getCOSObject();
+        COSDictionary patterns = dict.getCOSDictionary(COSName.PATTERN);
+        if (patterns != null) {
+            for (COSBase pattern : patterns.getValues()) {
+                if (resolve(pattern) instanceof COSStream tiling) {
+                    showHidden(page, tiling, resources);
+                }
+            }
+        }
+        COSDictionary states = dict.getCOSDictionary(COSName.EXT_G_STATE);
+        if (states != null) {
+            for (COSBase state : states.getValues()) {
+                if (resolve(state) instanceof COSDictionary gs
+                        && gs.getDictionaryObject(COSName.SMASK) instanceof COSDictionary softMask
+                        && softMask.getDictionaryObject(COSName.G) instanceof COSStream group) {
+                    showHidden(page, group, resources);
+                }
+            }
+        }
+        COSDictionary fonts = dict.getCOSDictionary(COSName.FONT);
+        if (fonts != null) {
+            for (COSBase font : fonts.getValues()) {
+                if (resolve(font) instanceof COSDictionary type3
+                        && COSName.TYPE3.equals(type3.getCOSName(COSName.SUBTYPE))
+                        && type3.getDictionaryObject(COSName.CHAR_PROCS) instanceof COSDictionary procs) {
+                    COSDictionary glyphResources = type3.getCOSDictionary(COSName.RESOURCES);
+                    PDResources inherited = glyphResources != null ? new PDResources(glyphResources) : resources;
+                    for (COSBase proc : procs.getValues()) {
+                        if (resolve(proc) instanceof COSStream glyph) {
+                            showHidden(page, glyph, inherited);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Show a pattern, group or glyph stream as a form, falling back to the
+     * resources it was found in when it has none of its own
+     */
+    private void showHidden(PDPage page, COSStream stream, PDResources inherited) throws IOException {
+        COSDictionary own = stream.getCOSDictionary(COSName.RESOURCES);
+        PDResources resources = own != null ? new PDResources(own) : inherited;
+        pending.add(resources);
+        processChildStream(new PDFormXObject(stream) {
+            @Override
+            public PDResources getResources() {
+                return resources;
+            }
+        }, page);
+    }
+
+    private static COSBase resolve(COSBase base) {
+        return base instanceof COSObject object ? object.getObject() : base;
+    }
+
+    @Override
+    protected void showText(byte[] string) throws IOException {
+        PDFont font = getGraphicsState().getTextState().getFont();
+        if (font == null) {
+            return;
+        }
+
+        FontUsage fontUsage = usage.computeIfAbsent(font.getCOSObject(), key -> new FontUsage(font));
+        InputStream in = new ByteArrayInputStream(string);
+        while (in.available() > 0) {
+            fontUsage.codes.add(font.readCode(in));
+        }
+    }
+}
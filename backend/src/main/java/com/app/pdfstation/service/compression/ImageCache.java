@@ -0,0 +1,354 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Recompressed images shared across jobs, keyed by what went into them.
+ *
+ * The key is a SHA-256 over the image stream's raw bytes and dictionary (with
+ * its soft mask, colour space and anything else it refers to) and the
+ * parameters of the encoding, so a logo or letterhead that arrives in many
+ * uploads is decoded and encoded once. Entries are serialized encodings: the
+ * memory tier keeps the most recently used within a byte budget, and an
+ * optional directory keeps more of them on disk, also least recently used
+ * first out. A result of "nothing worth changing" is cached as well.
+ *
+ * All methods may be called from worker threads.
+ */
+public class ImageCache {
+    private final Logger logger = LoggerFactory.getLogger(ImageCache.class);
+
+    // Bump when encoders change, so disk entries from older versions are never used
+    private static final int FORMAT_VERSION = 2;
+    private static final String SUFFIX = ".img";
+    private static final byte NOT_CHANGED = 0;
+    private static final byte ENCODED = 1;
+
+    /**
+     * A cached outcome; encoded is null when the image was not worth changing
+     */
+    public record Hit(EncodedImage encoded) {
+    }
+
+    /**
+     * Counters since startup
+     */
+    public record Stats(long hits, long diskHits, long misses, long evictions, int entries, long bytes,
+            int diskEntries, long diskBytes) {
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Path directory;
+    private final long maxDiskBytes;
+
+    // Both in access order; guarded by this
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private long diskBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes     memory budget of the cache
+     * @param directory    directory of the disk tier, or null for memory only
+     * @param maxDiskBytes disk budget of the disk tier
+     */
+    public ImageCache(long maxBytes, Path directory, long maxDiskBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        // One image may not push out most of the cache
+        this.maxEntryBytes = maxBytes / 8;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            indexDirectory();
+        }
+    }
+
+    /**
+     * Key of an image encoded with the given parameters
+     *
+     * @param image      a detached image, see {@link ImageRecompressionPhase#detach}
+     * @param parameters everything besides the image that the encoding depends on
+     */
+    public static String key(COSStream image, String parameters) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        DataOutputStream out = new DataOutputStream(new DigestSink(digest));
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(parameters);
+        describe(image, out, Collections.newSetFromMap(new IdentityHashMap<>()));
+        out.flush();
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * The cached outcome for the key, or null when there is none
+     */
+    public Hit get(String key) throws IOException {
+        byte[] entry;
+        synchronized (this) {
+            entry = memory.get(key);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return decode(entry);
+        }
+        entry = readFromDisk(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            diskHits.incrementAndGet();
+            putInMemory(key, entry);
+            return decode(entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remember the outcome for the key
+     *
+     * @param encoded the encoding, or null when the image was not worth changing;
+     *                it stays owned by the caller
+     */
+    public void put(String key, EncodedImage encoded) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        if (encoded == null) {
+            out.writeByte(NOT_CHANGED);
+        } else {
+            out.writeByte(ENCODED);
+            if (!encoded.writeTo(out)) {
+                // Decode parameters or colour space it cannot describe
+                return;
+            }
+        }
+        out.flush();
+        byte[] entry = buffer.toByteArray();
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), diskHits.get(), misses.get(), evictions.get(), memory.size(), bytes,
+                disk.size(), diskBytes);
+    }
+
+    private static Hit decode(byte[] entry) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        return new Hit(in.readByte() == ENCODED ? EncodedImage.readFrom(in) : null);
+    }
+
+    private synchronized void putInMemory(String key, byte[] entry) {
+        if (entry.length > maxEntryBytes) {
+            return;
+        }
+        byte[] previous = memory.put(key, entry);
+        bytes += entry.length - (previous != null ? previous.length : 0);
+        Iterator<byte[]> eldest = memory.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        synchronized (this) {
+            // Touch it so it is evicted last
+            if (disk.get(key) == null) {
+                return null;
+            }
+        }
+        try {
+            return Files.readAllBytes(directory.resolve(key + SUFFIX));
+        } catch (IOException e) {
+            logger.debug("Could not read cached image {}: {}", key, e.getMessage());
+            forgetOnDisk(key);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, byte[] entry) {
+        if (directory == null || entry.length > maxDiskBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (disk.containsKey(key)) {
+                return;
+            }
+        }
+        Path file = directory.resolve(key + SUFFIX);
+        try {
+            // Complete files only: a crash mid-write must not leave a truncated entry
+            Path partial = Files.createTempFile(directory, key, ".part");
+            Files.write(partial, entry);
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.debug("Could not write cached image {}: {}", key, e.getMessage());
+            return;
+        }
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = disk.put(key, (long) entry.length);
+            diskBytes += entry.length - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> next = eldest.next();
+                diskBytes -= next.getValue();
+                evicted.add(next.getKey());
+                eldest.remove();
+            }
+        }
+        for (String old : evicted) {
+            try {
+                Files.deleteIfExists(directory.resolve(old + SUFFIX));
+            } catch (IOException e) {
+                logger.debug("Could not delete cached image {}: {}", old, e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void forgetOnDisk(String key) {
+        Long size = disk.remove(key);
+        if (size != null) {
+            diskBytes -= size;
+        }
+    }
+
+    /**
+     * Pick up entries left by an earlier run, least recently modified first
+     */
+    private void indexDirectory() throws IOException {
+        record Entry(String key, long size, FileTime modified) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".part")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    entries.add(new Entry(name.substring(0, name.length() - SUFFIX.length()), Files.size(file),
+                            Files.getLastModifiedTime(file)));
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::modified));
+        synchronized (this) {
+            for (Entry entry : entries) {
+                disk.put(entry.key(), entry.size());
+                diskBytes += entry.size();
+            }
+        }
+        logger.info("Image cache directory {} holds {} entries", directory, entries.size());
+    }
+
+    /**
+     * Feed a canonical form of the object to the digest: dictionary keys sorted,
+     * /Length left out, streams by their raw bytes
+     */
+    private static void describe(COSBase base, DataOutputStream out, Set<COSBase> seen) throws IOException {
+        if (base instanceof COSObject object) {
+            base = object.getObject();
+        }
+        if (base == null || base instanceof COSNull) {
+            out.writeByte('n');
+        } else if (base instanceof COSDictionary dictionary) {
+            if (!seen.add(dictionary)) {
+                out.writeByte('r');
+                return;
+            }
+            out.writeByte(dictionary instanceof COSStream ? 's' : 'd');
+            List<COSName> keys = new ArrayList<>(dictionary.keySet());
+            keys.sort(Comparator.comparing(COSName::getName));
+            for (COSName key : keys) {
+                if (!COSName.LENGTH.equals(key)) {
+                    out.writeUTF(key.getName());
+                    describe(dictionary.getItem(key), out, seen);
+                }
+            }
+            out.writeByte('e');
+            if (dictionary instanceof COSStream stream) {
+                try (InputStream in = stream.createRawInputStream()) {
+                    in.transferTo(out);
+                }
+                out.writeByte('e');
+            }
+        } else if (base instanceof COSArray array) {
+            out.writeByte('a');
+            out.writeInt(array.size());
+            for (int i = 0; i < array.size(); i++) {
+                describe(array.get(i), out, seen);
+            }
+        } else if (base instanceof COSName name) {
+            out.writeByte('/');
+            out.writeUTF(name.getName());
+        } else if (base instanceof COSString string) {
+            out.writeByte('(');
+            out.writeInt(string.getBytes().length);
+            out.write(string.getBytes());
+        } else if (base instanceof COSInteger integer) {
+            out.writeByte('i');
+            out.writeLong(integer.longValue());
+        } else if (base instanceof COSFloat number) {
+            out.writeByte('f');
+            out.writeFloat(number.floatValue());
+        } else if (base instanceof COSBoolean bool) {
+            out.writeByte(bool.getValue() ? 't' : 'F');
+        } else {
+            out.writeByte('?');
+            out.writeUTF(base.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Output stream that only updates a digest
+     */
+    private static final class DigestSink extends OutputStream {
+        private final MessageDigest digest;
+
+        DigestSink(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.app.pdfstation.service.compression;
+
+/**
+ * What an image looks like, which decides the encoders it may be written with.
+ */
+public enum ImageClass {
+
+    /**
+     * Black-and-white scans and line drawings: CCITT G4 or 1-bit Flate
+     */
+    BILEVEL,
+
+    /**
+     * Continuous-tone gray: gray JPEG, or Flate when that is smaller
+     */
+    GRAYSCALE,
+
+    /**
+     * Continuous-tone colour: RGB JPEG
+     */
+    PHOTO,
+
+    /**
+     * Few flat colours, such as charts and logos: Flate only, JPEG would ring at the edges
+     */
+    GRAPHIC
+}
@@ -0,0 +1,114 @@
+package com.app.pdfstation.service.compression;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sorts decoded images into an {@link ImageClass} from a grid of sampled pixels.
+ *
+ * At most {@value #MAX_SAMPLES} pixels are read, so classifying costs the same
+ * for a thumbnail and a full-page scan.
+ */
+public final class ImageClassifier {
+
+    private static final int MAX_SAMPLES = 64 * 1024;
+
+    // Samples this close to black or white count as ink or paper
+    private static final int EXTREME_MARGIN = 40;
+    // Share of ink-or-paper samples, allowing for anti-aliased edges
+    private static final double BILEVEL_SHARE = 0.97;
+    // Channels further apart than this are coloured, not neutral
+    private static final int NEUTRAL_TOLERANCE = 16;
+    // Share of coloured samples still treated as noise in a gray or bilevel image
+    private static final double MAX_COLORED_SHARE = 0.002;
+    // More distinct sampled colours than this is a photo
+    private static final int MAX_GRAPHIC_COLORS = 256;
+
+    private ImageClassifier() {
+    }
+
+    /**
+     * @param image an 8-bit gray or packed RGB image, see {@link ImageResampler#normalize}
+     */
+    public static ImageClass classify(BufferedImage image) {
+        Raster raster = image.getRaster();
+        boolean gray = raster.getNumBands() == 1;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = (int) Math.max(1, Math.ceil(Math.sqrt((double) width * height / MAX_SAMPLES)));
+
+        int samples = 0;
+        int extremes = 0;
+        int colored = 0;
+        Set<Integer> colors = new HashSet<>();
+        int[] pixel = new int[raster.getNumBands()];
+
+        for (int y = step / 2; y < height; y += step) {
+            for (int x = step / 2; x < width; x += step) {
+                raster.getPixel(x, y, pixel);
+                samples++;
+                if (gray) {
+                    if (isExtreme(pixel[0])) {
+                        extremes++;
+                    }
+                    continue;
+                }
+                if (!isNeutral(pixel)) {
+                    colored++;
+                } else if (isExtreme(pixel[1])) {
+                    extremes++;
+                }
+                if (colors.size() <= MAX_GRAPHIC_COLORS) {
+                    colors.add((pixel[0] << 16) | (pixel[1] << 8) | pixel[2]);
+                }
+            }
+        }
+
+        // A stamp, signature or logo in colour must not be reduced to ink and paper
+        if (samples > 0 && extremes >= samples * BILEVEL_SHARE && colored <= samples * MAX_COLORED_SHARE) {
+            return ImageClass.BILEVEL;
+        }
+        if (gray) {
+            return ImageClass.GRAYSCALE;
+        }
+        return colors.size() <= MAX_GRAPHIC_COLORS ? ImageClass.GRAPHIC : ImageClass.PHOTO;
+    }
+
+    /**
+     * True when all but a sliver of the sampled pixels of an RGB image are neutral,
+     * so one gray channel carries the image
+     */
+    public static boolean isNearGray(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (raster.getNumBands() != 3) {
+            return false;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = (int) Math.max(1, Math.ceil(Math.sqrt((double) width * height / MAX_SAMPLES)));
+
+        int samples = 0;
+        int colored = 0;
+        int[] pixel = new int[3];
+        for (int y = step / 2; y < height; y += step) {
+            for (int x = step / 2; x < width; x += step) {
+                raster.getPixel(x, y, pixel);
+                samples++;
+                if (!isNeutral(pixel)) {
+                    colored++;
+                }
+            }
+        }
+        return samples > 0 && colored <= samples * MAX_COLORED_SHARE;
+    }
+
+    private static boolean isExtreme(int value) {
+        return value <= EXTREME_MARGIN || value >= 255 - EXTREME_MARGIN;
+    }
+
+    private static boolean isNeutral(int[] rgb) {
+        return Math.abs(rgb[0] - rgb[1]) <= NEUTRAL_TOLERANCE && Math.abs(rgb[1] - rgb[2]) <= NEUTRAL_TOLERANCE;
+    }
+}
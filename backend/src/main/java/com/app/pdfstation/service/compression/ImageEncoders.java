@@ -0,0 +1,176 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Image encoders and the reusable state they share across compression jobs.
+ *
+ * Each thread keeps its own JPEG writer, so the ImageIO service registry is
+ * looked up once per worker rather than once per image. Encoding buffers are
+ * pooled across threads: a worker takes one, the walking thread hands it back
+ * once the bytes are in the document.
+ *
+ * CCITT and Flate images are produced by PDFBox's factories inside a throwaway
+ * document, because workers must not create streams in the document being
+ * compressed; only the encoded bytes and decode parameters are kept.
+ */
+public final class ImageEncoders {
+
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+    // Buffers that grew past this are dropped instead of pinning the memory
+    private static final int MAX_POOLED_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 32;
+
+    private static final ThreadLocal<JpegWriter> JPEG_WRITERS = ThreadLocal.withInitial(JpegWriter::new);
+    private static final BlockingQueue<EncodingBuffer> BUFFERS = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    private ImageEncoders() {
+    }
+
+    /**
+     * JPEG at the given quality (0-1), gray for one-band images and RGB otherwise
+     */
+    public static EncodedImage encodeJpeg(BufferedImage image, float quality) throws IOException {
+        EncodingBuffer buffer = acquireBuffer();
+        try {
+            writeJpeg(image, quality, buffer);
+        } catch (IOException | RuntimeException e) {
+            releaseBuffer(buffer);
+            throw e;
+        }
+        PDColorSpace colorSpace = image.getRaster().getNumBands() == 1
+                ? PDDeviceGray.INSTANCE
+                : PDDeviceRGB.INSTANCE;
+        return EncodedImage.inMemory(COSName.DCT_DECODE, null, image.getWidth(), image.getHeight(), 8,
+                colorSpace, buffer);
+    }
+
+    /**
+     * CCITT Group 4 of a one-bit image
+     */
+    public static EncodedImage encodeCcittG4(BufferedImage bilevel) throws IOException {
+        try (PDDocument scratch = new PDDocument()) {
+            return copyEncoded(CCITTFactory.createFromImage(scratch, bilevel));
+        }
+    }
+
+    /**
+     * Lossless Flate, with PNG predictors where PDFBox finds them worthwhile
+     */
+    public static EncodedImage encodeFlate(BufferedImage image) throws IOException {
+        try (PDDocument scratch = new PDDocument()) {
+            return copyEncoded(LosslessFactory.createFromImage(scratch, image));
+        }
+    }
+
+    /**
+     * Take the encoded bytes and decode parameters out of a scratch image
+     */
+    private static EncodedImage copyEncoded(PDImageXObject image) throws IOException {
+        COSStream stream = image.getCOSObject();
+        PDColorSpace colorSpace = image.getColorSpace();
+        if (!(stream.getDictionaryObject(COSName.FILTER) instanceof COSName filter)
+                || stream.containsKey(COSName.SMASK)
+                || !(colorSpace instanceof PDDeviceGray || colorSpace instanceof PDDeviceRGB)) {
+            throw new IOException("Unexpected image layout from PDFBox encoder");
+        }
+
+        COSDictionary decodeParms = null;
+        if (stream.getDictionaryObject(COSName.DECODE_PARMS) instanceof COSDictionary parms) {
+            decodeParms = new COSDictionary();
+            decodeParms.addAll(parms);
+        }
+
+        EncodingBuffer buffer = acquireBuffer();
+        try (InputStream in = stream.createRawInputStream()) {
+            buffer.writeFrom(in);
+        } catch (IOException | RuntimeException e) {
+            releaseBuffer(buffer);
+            throw e;
+        }
+        return EncodedImage.inMemory(filter, decodeParms, image.getWidth(), image.getHeight(),
+                image.getBitsPerComponent(), colorSpace, buffer);
+    }
+
+    /**
+     * Encode the image as baseline JPEG at the given quality (0-1) with this thread's writer
+     */
+    public static void writeJpeg(BufferedImage image, float quality, ImageOutputStream out) throws IOException {
+        JpegWriter writer = JPEG_WRITERS.get();
+        try {
+            writer.write(image, quality, out);
+        } catch (IOException | RuntimeException e) {
+            // A failed write can leave the writer mid-image; start the next one fresh
+            JPEG_WRITERS.remove();
+            writer.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * An empty buffer from the pool, or a new one
+     */
+    public static EncodingBuffer acquireBuffer() {
+        EncodingBuffer buffer = BUFFERS.poll();
+        if (buffer == null) {
+            return new EncodingBuffer(INITIAL_BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool once its bytes are no longer needed
+     */
+    public static void releaseBuffer(EncodingBuffer buffer) {
+        if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+            buffer.clear();
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    private static final class JpegWriter {
+        private final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        private final ImageWriteParam param = writer.getDefaultWriteParam();
+
+        JpegWriter() {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+
+        void write(BufferedImage image, float quality, ImageOutputStream out) throws IOException {
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            try {
+                writer.write(null, new IIOImage(image, null, null), param);
+                out.flush();
+            } finally {
+                writer.reset();
+            }
+        }
+
+        void dispose() {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.state.Concatenate;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.contentstream.operator.state.SetGraphicsStateParameters;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the displayed size of every image drawn on a page.
+ *
+ * Tracks the current transformation matrix through the content stream (and any
+ * forms it draws) and, at each image Do operator, converts the image's pixel size
+ * to DPI at the size it is actually shown. An image drawn several times keeps its
+ * lowest DPI, i.e. its largest placement.
+ */
+public class ImagePlacementScanner extends PDFStreamEngine {
+
+    private final Map<COSStream, Double> effectiveDpi = new IdentityHashMap<>();
+
+    public ImagePlacementScanner() {
+        addOperator(new Save(this));
+        addOperator(new Restore(this));
+        addOperator(new Concatenate(this));
+        addOperator(new SetGraphicsStateParameters(this));
+        addOperator(new DrawImageOrForm(this));
+    }
+
+    /**
+     * Scan a page and return the effective DPI of each image it draws, keyed by image stream
+     */
+    public Map<COSStream, Double> scan(PDPage page) throws IOException {
+        effectiveDpi.clear();
+        processPage(page);
+        return new IdentityHashMap<>(effectiveDpi);
+    }
+
+    private void recordPlacement(PDImageXObject image) {
+        Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+
+        // Images are drawn into the unit square, so the CTM scale is the displayed size in points;
+        // mirrored or flipped placements scale by a negative factor
+        double widthInches = Math.abs(ctm.getScalingFactorX()) / 72.0;
+        double heightInches = Math.abs(ctm.getScalingFactorY()) / 72.0;
+        if (widthInches == 0 || heightInches == 0) {
+            return;
+        }
+
+        double dpi = Math.max(image.getWidth() / widthInches, image.getHeight() / heightInches);
+        effectiveDpi.merge(image.getCOSObject(), dpi, Math::min);
+    }
+
+    /**
+     * Do: records image placements, descends into forms
+     */
+    private class DrawImageOrForm extends DrawObject {
+
+        DrawImageOrForm(PDFStreamEngine context) {
+            super(context);
+        }
+
+        @Override
+        public void process(Operator operator, List<COSBase> arguments) throws IOException {
+            if (!arguments.isEmpty() && arguments.get(0) instanceof COSName name
+                    && getResources().isImageXObject(name)) {
+                PDXObject xobject = getResources().getXObject(name);
+                if (xobject instanceof PDImageXObject image) {
+                    recordPlacement(image);
+                }
+                return;
+            }
+            super.process(operator, arguments);
+        }
+    }
+}
@@ -0,0 +1,800 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDCalGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDCalRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Downsamples and recompresses images that exceed the target DPI.
+ *
+ * Each image is classified from sampled pixels (see {@link ImageClassifier}) and
+ * encoded with every encoder its class allows: CCITT G4 or 1-bit Flate for
+ * bilevel scans, gray JPEG or Flate for grayscale, JPEG for photos and Flate for
+ * flat-colour graphics. Candidates run in parallel and the smallest is kept.
+ *
+ * With colour normalization on, images are also reworked for their colour alone:
+ * RGB and CMYK images whose sampled pixels are neutral are stored as one gray
+ * channel, and CMYK images are converted to sRGB (dropping their ICC profiles)
+ * when the job allows it. Images that only change colour keep their resolution,
+ * and stay lossless if they were. When the job forbids CMYK conversion, CMYK
+ * images are left untouched altogether.
+ *
+ * Soft masks are decoded apart from their image and, when the image is
+ * downsampled, resized to the same dimensions and encoded with the encoders
+ * their own class allows. Masks of images reworked only for their colour, and
+ * explicit /Mask images, are carried over to the replacement. Images whose mask
+ * depends on their sample values (colour-key masks, pre-multiplied /Matte
+ * masks, JPX with the mask in its data) and stencil masks are left alone.
+ *
+ * The DPI of an image is measured at the largest size the document displays it,
+ * taken from the transformation matrix at its Do operators. Placements are read
+ * as the walk visits each page that shows an image, and images are decided once
+ * the walk is finished, so an image shown as a thumbnail on one page and
+ * full-size on another keeps the resolution the full-size placement needs.
+ *
+ * Images are decoded and encoded on the worker pool, but results are swapped
+ * into the resources on the walking thread, in encounter order, so the output
+ * matches a sequential run.
+ *
+ * With a memory budget, the images being decoded at once are limited to what
+ * fits in it. Encoded results stay on the heap while the ones waiting to be
+ * written fit in it too; a result that would go over it is spilled to a scratch
+ * file instead.
+ *
+ * With an {@link ImageCache}, an image that was encoded before with the same
+ * parameters, in this job or another, takes the cached encoding without being
+ * decoded; the DPI it is shown at is rounded to whole DPI for this.
+ */
+public class ImageRecompressionPhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(ImageRecompressionPhase.class);
+
+    // Bilevel images are never downsampled below this
+    private static final double BILEVEL_MIN_DPI = 200;
+
+    private static final COSName MATTE = COSName.getPDFName("Matte");
+    private static final COSName SMASK_IN_DATA = COSName.getPDFName("SMaskInData");
+
+    private final PDDocument document;
+    private final double targetDpi;
+    private final float jpegQuality;
+    private final boolean colorNormalization;
+    private final boolean convertCmyk;
+    private final ExecutorService imagePool;
+    private final int window;
+    private final long memoryBudget;
+    private final ImageCache imageCache;
+    private long inFlightBytes = 0;
+    // Encoded results held on the heap until applied; added to on worker threads
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    private final Deque<ImageTask> pending = new ArrayDeque<>();
+    private final Set<ImageSlot> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Original image streams that are kept without being considered further
+    private final Set<COSStream> ineligible = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int sharedReferences = 0;
+
+    private final ImagePlacementScanner placementScanner = new ImagePlacementScanner();
+    // Eligible images with their lowest DPI so far, decided in finish(), in encounter order
+    private final Map<COSStream, DeferredImage> deferred = new IdentityHashMap<>();
+    private final List<DeferredImage> deferredOrder = new ArrayList<>();
+
+    private int imagesProcessed = 0;
+    private final Map<String, Integer> imagesByFilter = new TreeMap<>();
+    private long totalImageSavings = 0;
+    // Counted on worker threads
+    private final AtomicInteger cacheHits = new AtomicInteger();
+
+    /**
+     * @param imagePool          worker pool, or null to encode on the calling thread
+     * @param memoryBudget       bytes of decoded images allowed in flight, and of encoded
+     *                           images held on the heap, 0 for no limit
+     * @param colorNormalization also rework images for their colour alone: near-gray RGB
+     *                           to one channel and, if the options allow, CMYK to RGB
+     * @param imageCache         encodings shared across jobs, or null to always encode
+     */
+    public ImageRecompressionPhase(PDDocument document, CompressionOptions options, ExecutorService imagePool,
+            int parallelism, long memoryBudget, boolean colorNormalization, ImageCache imageCache) {
+        this.document = document;
+        this.targetDpi = options.targetDpi();
+        this.jpegQuality = options.jpegQuality();
+        this.convertCmyk = options.convertCmyk();
+        this.colorNormalization = colorNormalization;
+        this.imagePool = imagePool;
+        this.window = parallelism * 2;
+        this.memoryBudget = memoryBudget;
+        this.imageCache = imageCache;
+    }
+
+    @Override
+    public String name() {
+        return "images";
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) throws Exception {
+        // Content stream placements are only scanned when the page shows an eligible image
+        Map<COSStream, Double> placements = null;
+
+        for (ImageSlot slot : visit.images()) {
+            PDImageXObject image = slot.getImage();
+            COSStream source = image.getCOSObject();
+
+            // Measured on every page that shows it, including pages sharing its slot
+            DeferredImage later = deferred.get(source);
+            if (later != null) {
+                if (placements == null) {
+                    placements = scanPlacements(visit);
+                }
+                later.show(placements.get(source));
+                if (visited.add(slot)) {
+                    later.slots().add(slot);
+                    sharedReferences++;
+                }
+                continue;
+            }
+
+            // Slots shared with an earlier page were already handled there
+            if (!visited.add(slot)) {
+                continue;
+            }
+
+            // Ineligible images are kept in every resource dictionary that names them
+            if (ineligible.contains(source)) {
+                continue;
+            }
+            if (!isEligible(image)) {
+                ineligible.add(source);
+                continue;
+            }
+
+            // Later pages may show the image larger, so it is decided after the walk
+            if (placements == null) {
+                placements = scanPlacements(visit);
+            }
+            later = new DeferredImage(image, visit.page(), new ArrayList<>(List.of(slot)));
+            later.show(placements.get(source));
+            deferred.put(source, later);
+            deferredOrder.add(later);
+        }
+    }
+
+    @Override
+    public void finish() throws Exception {
+        for (DeferredImage later : deferredOrder) {
+            double imageDPI = later.dpi() != null ? later.dpi() : calculateImageDPI(later.image(), later.firstPage());
+            ImageTask task = plan(later.slots().get(0), later.image(), imageDPI);
+            if (task != null) {
+                task.slots().addAll(later.slots().subList(1, later.slots().size()));
+            }
+        }
+        deferred.clear();
+        deferredOrder.clear();
+
+        while (!pending.isEmpty()) {
+            applyImageTask(pending.poll());
+        }
+        logger.info("Processed {} images {}, saved {} ({} shared references reused, {} from the image cache)",
+                imagesProcessed, imagesByFilter, humanReadable(totalImageSavings), sharedReferences,
+                cacheHits.get());
+    }
+
+    /**
+     * Size the image would be stored at under this phase's options, encoding it on
+     * the calling thread; its current size when it would be kept as it is. Used to
+     * predict output sizes from a sample of images.
+     *
+     * @param detached an image from {@link #detach}
+     * @param dpi      its effective DPI on the page
+     */
+    public long sampleSize(PDImageXObject detached, double dpi) throws Exception {
+        long storedSize = storedSize(detached);
+        ImageWork work = isEligible(detached) ? planWork(detached, dpi) : null;
+        if (work == null) {
+            return storedSize;
+        }
+        EncodedImage encoded = compressImageQualityPreserving(detached, work);
+        if (encoded == null) {
+            return storedSize;
+        }
+        try {
+            return Math.min(storedSize, encoded.size());
+        } finally {
+            encoded.discard();
+        }
+    }
+
+    /**
+     * Copy an image and everything it needs for decoding (colour space, masks) into
+     * memory, so worker threads never read from the shared document source
+     */
+    public static PDImageXObject detach(PDImageXObject image) throws IOException {
+        COSStream copy = (COSStream) detach(image.getCOSObject(), new IdentityHashMap<>());
+        return new PDImageXObject(new PDStream(copy), null);
+    }
+
+    /**
+     * Whether the image may be replaced at all
+     */
+    private boolean isEligible(PDImageXObject image) {
+        return isCandidate(image) && hasReplaceableMasks(image)
+                && (convertCmyk || colorKind(image) != ColorKind.CMYK);
+    }
+
+    /**
+     * What to do with an eligible image shown at the given DPI, or null when
+     * neither its size nor its colour calls for rework
+     */
+    private ImageWork planWork(PDImageXObject image, double dpi) {
+        ColorKind colorKind = colorKind(image);
+        ImageWork work = new ImageWork(dpi, shouldCompressImage(dpi),
+                colorNormalization && colorKind == ColorKind.CMYK,
+                colorNormalization && (colorKind == ColorKind.RGB || colorKind == ColorKind.CMYK),
+                !isLossy(image));
+        return work.downsample() || work.toRgb() || work.checkGray() ? work : null;
+    }
+
+    /**
+     * Queue the image's rework if its size or colour calls for it
+     *
+     * @return the queued task, or null when the image is kept as it is
+     */
+    private ImageTask plan(ImageSlot slot, PDImageXObject image, double imageDPI) throws Exception {
+        // Only compress images that benefit from it, in size or in colour
+        ImageWork work = planWork(image, imageDPI);
+        if (work == null) {
+            logger.debug("Skipping image ({}x{}, {:.1f} DPI) - already optimal",
+                    image.getWidth(), image.getHeight(), imageDPI);
+            return null;
+        }
+
+        // Wait for earlier images while this one would not fit in the window or budget
+        long footprint = decodedFootprint(image);
+        while (!pending.isEmpty() && (pending.size() >= window
+                || (memoryBudget > 0 && inFlightBytes + footprint > memoryBudget))) {
+            applyImageTask(pending.poll());
+        }
+
+        ImageTask task = submitImageTask(slot, image, work, footprint);
+        pending.add(task);
+        inFlightBytes += footprint;
+        return task;
+    }
+
+    /**
+     * Find the displayed DPI of each image drawn on the page
+     */
+    private Map<COSStream, Double> scanPlacements(PageVisit visit) {
+        try {
+            return placementScanner.scan(visit.page());
+        } catch (Exception e) {
+            logger.debug("Could not scan image placements on page {}: {}", visit.index() + 1, e.getMessage());
+            return Map.of();
+        }
+    }
+
+    /**
+     * Fallback DPI for images the content stream never draws, assuming they fill the page
+     */
+    private double calculateImageDPI(PDImageXObject image, PDPage page) {
+        // Assume image fits within page bounds
+        float pageWidth = page.getMediaBox().getWidth();
+        float pageHeight = page.getMediaBox().getHeight();
+
+        // Convert points to inches (72 points = 1 inch)
+        double pageWidthInches = pageWidth / 72.0;
+        double pageHeightInches = pageHeight / 72.0;
+
+        // Calculate DPI based on image dimensions
+        double dpiX = image.getWidth() / pageWidthInches;
+        double dpiY = image.getHeight() / pageHeightInches;
+
+        return Math.max(dpiX, dpiY);
+    }
+
+    /**
+     * Skip very small images (likely icons or logos)
+     */
+    private boolean isCandidate(PDImageXObject image) {
+        return image.getWidth() >= 100 && image.getHeight() >= 100;
+    }
+
+    /**
+     * False when a replacement could not keep the image's transparency: colour-key
+     * and stencil masks are tied to the original samples, and so are /Matte soft
+     * masks and soft masks encoded inside JPX data
+     */
+    private boolean hasReplaceableMasks(PDImageXObject image) {
+        COSStream stream = image.getCOSObject();
+        if (image.isStencil() || stream.getDictionaryObject(COSName.MASK) instanceof COSArray
+                || stream.getInt(SMASK_IN_DATA, 0) != 0) {
+            return false;
+        }
+        return !(stream.getDictionaryObject(COSName.SMASK) instanceof COSStream softMask)
+                || !softMask.containsKey(MATTE);
+    }
+
+    /**
+     * Colour family of the image; ICC-based spaces count by their number of components
+     */
+    private ColorKind colorKind(PDImageXObject image) {
+        if (image.isStencil()) {
+            return ColorKind.OTHER;
+        }
+        try {
+            PDColorSpace colorSpace = image.getColorSpace();
+            if (colorSpace instanceof PDDeviceCMYK
+                    || (colorSpace instanceof PDICCBased && colorSpace.getNumberOfComponents() == 4)) {
+                return ColorKind.CMYK;
+            }
+            if (colorSpace instanceof PDDeviceRGB || colorSpace instanceof PDCalRGB
+                    || (colorSpace instanceof PDICCBased && colorSpace.getNumberOfComponents() == 3)) {
+                return ColorKind.RGB;
+            }
+            if (colorSpace instanceof PDDeviceGray || colorSpace instanceof PDCalGray
+                    || (colorSpace instanceof PDICCBased && colorSpace.getNumberOfComponents() == 1)) {
+                return ColorKind.GRAY;
+            }
+        } catch (IOException e) {
+            logger.debug("Could not read image colour space: {}", e.getMessage());
+        }
+        return ColorKind.OTHER;
+    }
+
+    private boolean isLossy(PDImageXObject image) {
+        List<COSName> filters = image.getStream().getFilters();
+        return filters.contains(COSName.DCT_DECODE) || filters.contains(COSName.JPX_DECODE);
+    }
+
+    /**
+     * Determine if an image should be compressed based on quality settings and
+     * current DPI
+     */
+    private boolean shouldCompressImage(double imageDPI) {
+        // Target DPI comes from the options: 300 (print), 150 (screen) or 96 (web)
+        // for a plain quality setting, anything for a target-size search
+
+        // Only compress if current DPI exceeds target
+        return imageDPI > targetDpi * 1.2; // 20% margin to avoid unnecessary recompression
+    }
+
+    /**
+     * Heap needed to decode the image as 32-bit pixels, and its soft mask as 8-bit
+     */
+    private long decodedFootprint(PDImageXObject image) {
+        long footprint = (long) image.getWidth() * image.getHeight() * 4;
+        if (image.getCOSObject().getDictionaryObject(COSName.SMASK) instanceof COSStream softMask) {
+            footprint += (long) softMask.getInt(COSName.WIDTH, 0) * softMask.getInt(COSName.HEIGHT, 0);
+        }
+        return footprint;
+    }
+
+    /**
+     * Original size of the image stream and its soft mask
+     */
+    static long storedSize(PDImageXObject image) {
+        COSStream stream = image.getCOSObject();
+        long size = stream.getLength();
+        if (stream.getDictionaryObject(COSName.SMASK) instanceof COSStream softMask) {
+            size += softMask.getLength();
+        }
+        return size;
+    }
+
+    /**
+     * Image queued for recompression, with the pending encoded image, every
+     * slot that references it and its estimated decoded size
+     */
+    private record ImageTask(List<ImageSlot> slots, PDImageXObject original, Future<EncodedImage> encoded,
+            long footprint) {
+    }
+
+    /**
+     * What to do with a queued image
+     *
+     * @param dpi            effective DPI on the page
+     * @param downsample     the image exceeds the target DPI
+     * @param toRgb          a CMYK image to be converted to RGB
+     * @param checkGray      an RGB or CMYK image to be stored as one channel if it is near-gray
+     * @param losslessSource the image is not JPEG-encoded, so colour-only rework stays lossless
+     */
+    private record ImageWork(double dpi, boolean downsample, boolean toRgb, boolean checkGray,
+            boolean losslessSource) {
+    }
+
+    /**
+     * An eligible image decided after the walk, with every slot that references it
+     * and its lowest DPI on the pages seen so far
+     */
+    private static final class DeferredImage {
+        private final PDImageXObject image;
+        private final PDPage firstPage;
+        private final List<ImageSlot> slots;
+        private Double dpi;
+
+        DeferredImage(PDImageXObject image, PDPage firstPage, List<ImageSlot> slots) {
+            this.image = image;
+            this.firstPage = firstPage;
+            this.slots = slots;
+        }
+
+        void show(Double placedDpi) {
+            if (placedDpi != null) {
+                dpi = dpi == null ? placedDpi : Math.min(dpi, placedDpi);
+            }
+        }
+
+        PDImageXObject image() {
+            return image;
+        }
+
+        PDPage firstPage() {
+            return firstPage;
+        }
+
+        List<ImageSlot> slots() {
+            return slots;
+        }
+
+        Double dpi() {
+            return dpi;
+        }
+    }
+
+    private enum ColorKind {
+        GRAY, RGB, CMYK, OTHER
+    }
+
+    /**
+     * Detach the image from the document and queue its recompression on the worker pool
+     */
+    private ImageTask submitImageTask(ImageSlot slot, PDImageXObject image, ImageWork work, long footprint)
+            throws IOException {
+        PDImageXObject detached = detach(image);
+        FutureTask<EncodedImage> encoded = new FutureTask<>(() -> encodeCached(detached, work));
+
+        if (imagePool != null) {
+            imagePool.execute(encoded);
+        } else {
+            encoded.run();
+        }
+        List<ImageSlot> slots = new ArrayList<>();
+        slots.add(slot);
+        return new ImageTask(slots, image, encoded, footprint);
+    }
+
+    /**
+     * Encode the image, or take the encoding from the cache when the same image was
+     * encoded with the same parameters before, in this job or another
+     */
+    private EncodedImage encodeCached(PDImageXObject detached, ImageWork work) throws Exception {
+        if (imageCache == null) {
+            return holdOrSpill(compressImageQualityPreserving(detached, work));
+        }
+        // Whole-DPI buckets, so the encoding depends on nothing the key leaves out
+        ImageWork bucketed = new ImageWork(Math.rint(work.dpi()), work.downsample(), work.toRgb(),
+                work.checkGray(), work.losslessSource());
+        String key = ImageCache.key(detached.getCOSObject(), String.format(Locale.ROOT,
+                "dpi=%s target=%s jpeg=%s downsample=%s rgb=%s gray=%s lossless=%s", bucketed.dpi(), targetDpi,
+                jpegQuality, work.downsample(), work.toRgb(), work.checkGray(), work.losslessSource()));
+
+        ImageCache.Hit hit = imageCache.get(key);
+        if (hit != null) {
+            cacheHits.incrementAndGet();
+            if (hit.encoded() == null) {
+                return null;
+            }
+            return holdOrSpill(hit.encoded());
+        }
+        EncodedImage encoded = compressImageQualityPreserving(detached, bucketed);
+        try {
+            imageCache.put(key, encoded);
+        } catch (IOException e) {
+            logger.debug("Could not cache encoded image: {}", e.getMessage());
+        }
+        return holdOrSpill(encoded);
+    }
+
+    /**
+     * Keep the encoded image on the heap if it fits in the budget next to the
+     * results not yet applied, otherwise move it to a scratch file
+     */
+    private EncodedImage holdOrSpill(EncodedImage encoded) throws IOException {
+        if (encoded == null || memoryBudget <= 0) {
+            return encoded;
+        }
+        long size = encoded.heapSize();
+        if (encodedBytes.addAndGet(size) <= memoryBudget) {
+            return encoded;
+        }
+        encodedBytes.addAndGet(-size);
+        try {
+            return encoded.spill();
+        } catch (IOException | RuntimeException e) {
+            encoded.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a queued image and swap it into every referencing slot if it is smaller
+     */
+    private void applyImageTask(ImageTask task) throws Exception {
+        inFlightBytes -= task.footprint();
+        EncodedImage encoded;
+        try {
+            encoded = task.encoded().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+
+        // Nothing worth changing, e.g. an RGB image that turned out to be in colour
+        if (encoded == null) {
+            return;
+        }
+
+        long originalImageSize = storedSize(task.original());
+        long newImageSize;
+        PDImageXObject compressedImage = null;
+        try {
+            newImageSize = encoded.size();
+            if (newImageSize < originalImageSize) {
+                compressedImage = encoded.toImageXObject(document);
+            }
+        } finally {
+            if (memoryBudget > 0) {
+                encodedBytes.addAndGet(-encoded.heapSize());
+            }
+            encoded.discard();
+        }
+        long savings = originalImageSize - newImageSize;
+
+        if (compressedImage != null) {
+            carryOverMasks(task.original(), compressedImage, encoded.hasSoftMask());
+            for (ImageSlot slot : task.slots()) {
+                slot.replace(compressedImage);
+            }
+            totalImageSavings += savings;
+            imagesProcessed++;
+            imagesByFilter.merge(encoded.getFilter().getName(), 1, Integer::sum);
+            logger.debug("Compressed image as {}: {} -> {} (saved {})",
+                    encoded.getFilter().getName(),
+                    humanReadable(originalImageSize),
+                    humanReadable(newImageSize),
+                    humanReadable(savings));
+        }
+    }
+
+    /**
+     * Keep the masks the worker did not re-encode: an explicit /Mask image, and
+     * the soft mask of an image that was not resized
+     */
+    private void carryOverMasks(PDImageXObject original, PDImageXObject replacement, boolean softMaskEncoded) {
+        COSStream source = original.getCOSObject();
+        COSStream target = replacement.getCOSObject();
+        if (source.getDictionaryObject(COSName.MASK) instanceof COSStream) {
+            target.setItem(COSName.MASK, source.getItem(COSName.MASK));
+        }
+        if (!softMaskEncoded && source.getDictionaryObject(COSName.SMASK) instanceof COSStream) {
+            target.setItem(COSName.SMASK, source.getItem(COSName.SMASK));
+        }
+    }
+
+    private static COSBase detach(COSBase base, Map<COSBase, COSBase> copies) throws IOException {
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+        if (base == null) {
+            return COSNull.NULL;
+        }
+
+        COSBase existing = copies.get(base);
+        if (existing != null) {
+            return existing;
+        }
+
+        if (base instanceof COSDictionary) {
+            COSDictionary source = (COSDictionary) base;
+            COSDictionary copy = source instanceof COSStream ? new COSStream() : new COSDictionary();
+            copies.put(source, copy);
+
+            for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+                // Metadata is not needed to decode pixels
+                if (!COSName.METADATA.equals(entry.getKey())) {
+                    copy.setItem(entry.getKey(), detach(entry.getValue(), copies));
+                }
+            }
+
+            if (source instanceof COSStream) {
+                try (InputStream in = ((COSStream) source).createRawInputStream();
+                        OutputStream out = ((COSStream) copy).createRawOutputStream()) {
+                    in.transferTo(out);
+                }
+            }
+            return copy;
+        }
+
+        if (base instanceof COSArray) {
+            COSArray source = (COSArray) base;
+            COSArray copy = new COSArray();
+            copies.put(source, copy);
+            for (int i = 0; i < source.size(); i++) {
+                copy.add(detach(source.get(i), copies));
+            }
+            return copy;
+        }
+
+        return base;
+    }
+
+    /**
+     * Compress image while preserving quality, returning the smallest encoding its
+     * class allows, or null when neither its size nor its colour needs changing
+     */
+    private EncodedImage compressImageQualityPreserving(PDImageXObject image, ImageWork work) throws Exception {
+        // CMYK is converted to sRGB by the decoder; the soft mask is handled on its own
+        BufferedImage bufferedImage = ImageResampler.normalize(image.getOpaqueImage(null, 1));
+
+        // The decoder hands back gray sources as RGB; take them back to one band
+        boolean graySource = colorKind(image) == ColorKind.GRAY;
+        if (graySource && bufferedImage.getRaster().getNumBands() == 3) {
+            bufferedImage = ImageResampler.toGray(bufferedImage);
+        }
+
+        boolean toGray = work.checkGray() && bufferedImage.getRaster().getNumBands() == 3
+                && ImageClassifier.isNearGray(bufferedImage);
+        if (toGray) {
+            bufferedImage = ImageResampler.toGray(bufferedImage);
+        } else if (!work.downsample() && !work.toRgb()) {
+            return null;
+        }
+        ImageClass imageClass = ImageClassifier.classify(bufferedImage);
+
+        // Calculate target dimensions based on DPI
+        double targetDPI = targetDpi;
+        // Thresholded text turns illegible below this, and G4 keeps it small anyway
+        if (imageClass == ImageClass.BILEVEL) {
+            targetDPI = Math.max(targetDPI, BILEVEL_MIN_DPI);
+        }
+
+        // Calculate scale factor
+        double scaleFactor = targetDPI / work.dpi();
+
+        // Only downsample if needed; gray images stay single-channel
+        EncodedImage softMask = null;
+        if (work.downsample() && scaleFactor < 0.95) {
+            int newWidth = Math.max(1, (int) (bufferedImage.getWidth() * scaleFactor));
+            int newHeight = Math.max(1, (int) (bufferedImage.getHeight() * scaleFactor));
+            bufferedImage = ImageResampler.resize(bufferedImage, newWidth, newHeight);
+            softMask = encodeSoftMask(image, newWidth, newHeight, jpegQuality);
+        }
+
+        // A lossless image reworked only for its colour stays lossless
+        List<Callable<EncodedImage>> candidates;
+        if (!work.downsample() && work.losslessSource()) {
+            BufferedImage converted = bufferedImage;
+            candidates = List.of(() -> ImageEncoders.encodeFlate(converted));
+        } else {
+            candidates = candidateEncoders(imageClass, bufferedImage, jpegQuality);
+        }
+        EncodedImage smallest;
+        try {
+            smallest = encodeSmallest(candidates);
+        } catch (Exception e) {
+            if (softMask != null) {
+                softMask.discard();
+            }
+            throw e;
+        }
+        if (softMask != null) {
+            smallest = smallest.withSoftMask(softMask);
+        }
+        return smallest;
+    }
+
+    /**
+     * Resize the image's soft mask, if any, to the new image dimensions and encode
+     * it as the smallest gray image its class allows
+     */
+    private EncodedImage encodeSoftMask(PDImageXObject image, int width, int height, float jpegQuality)
+            throws Exception {
+        PDImageXObject softMask = image.getSoftMask();
+        if (softMask == null) {
+            return null;
+        }
+        BufferedImage mask = ImageResampler.normalize(softMask.getOpaqueImage(null, 1));
+        if (mask.getRaster().getNumBands() != 1) {
+            mask = ImageResampler.toGray(mask);
+        }
+        mask = ImageResampler.resize(mask, width, height);
+        return encodeSmallest(candidateEncoders(ImageClassifier.classify(mask), mask, jpegQuality));
+    }
+
+    /**
+     * Encoders that meet the quality bar for the image class; lossy JPEG is never
+     * offered for bilevel images or flat-colour graphics
+     */
+    private List<Callable<EncodedImage>> candidateEncoders(ImageClass imageClass, BufferedImage image,
+            float jpegQuality) {
+        return switch (imageClass) {
+            case BILEVEL -> {
+                BufferedImage bilevel = ImageResampler.toBilevel(image);
+                yield List.of(() -> ImageEncoders.encodeCcittG4(bilevel), () -> ImageEncoders.encodeFlate(bilevel));
+            }
+            case GRAYSCALE -> List.of(() -> ImageEncoders.encodeJpeg(image, jpegQuality),
+                    () -> ImageEncoders.encodeFlate(image));
+            case PHOTO -> List.of(() -> ImageEncoders.encodeJpeg(image, jpegQuality));
+            case GRAPHIC -> List.of(() -> ImageEncoders.encodeFlate(image));
+        };
+    }
+
+    /**
+     * Run the candidates, all but the first on the pool, and keep the smallest result.
+     * Candidates the pool has not started yet are run here, so a worker waiting on
+     * its own candidates never blocks the pool.
+     */
+    private EncodedImage encodeSmallest(List<Callable<EncodedImage>> candidates) throws Exception {
+        List<FutureTask<EncodedImage>> tasks = new ArrayList<>();
+        for (Callable<EncodedImage> candidate : candidates) {
+            tasks.add(new FutureTask<>(candidate));
+        }
+        if (imagePool != null) {
+            for (int i = 1; i < tasks.size(); i++) {
+                imagePool.execute(tasks.get(i));
+            }
+        }
+
+        EncodedImage smallest = null;
+        Exception failure = null;
+        for (FutureTask<EncodedImage> task : tasks) {
+            task.run();
+            try {
+                EncodedImage encoded = task.get();
+                if (smallest == null || encoded.size() < smallest.size()) {
+                    if (smallest != null) {
+                        smallest.discard();
+                    }
+                    smallest = encoded;
+                } else {
+                    encoded.discard();
+                }
+            } catch (ExecutionException e) {
+                logger.debug("Image encoder failed: {}", e.getCause().getMessage());
+                if (failure == null && e.getCause() instanceof Exception cause) {
+                    failure = cause;
+                }
+            }
+        }
+        if (smallest == null) {
+            throw failure != null ? failure : new IOException("No encoder produced an image");
+        }
+        return smallest;
+    }
+}
@@ -0,0 +1,298 @@
+package com.app.pdfstation.service.compression;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Downscales decoded images, choosing the method from the reduction ratio.
+ *
+ * Up to 2x a single bicubic pass is accurate and cheap. Between 2x and 4x the
+ * image is first halved with 2:1 box filters and finished with a bilinear pass
+ * of at most 2x, so no step skips source pixels. Beyond 4x the raster is
+ * box-filtered straight to the target size: every source pixel contributes to
+ * its output pixel by covered area, which is both the fastest path and free of
+ * the aliasing a single interpolated pass produces.
+ *
+ * Grayscale images stay in a one-band buffer; everything else is resampled as
+ * packed RGB, whose rows are read and written as whole arrays.
+ */
+public final class ImageResampler {
+
+    public enum Strategy {
+        BICUBIC, PROGRESSIVE_HALVING, AREA_AVERAGE
+    }
+
+    private ImageResampler() {
+    }
+
+    public static Strategy strategyFor(double scale) {
+        if (scale >= 0.5) {
+            return Strategy.BICUBIC;
+        }
+        if (scale > 0.25) {
+            return Strategy.PROGRESSIVE_HALVING;
+        }
+        return Strategy.AREA_AVERAGE;
+    }
+
+    /**
+     * Resize to the given dimensions, which must not exceed the source's
+     */
+    public static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage image = normalize(source);
+        double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+        return switch (strategyFor(scale)) {
+            case BICUBIC -> drawScaled(image, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            case PROGRESSIVE_HALVING -> halveThenScale(image, width, height);
+            case AREA_AVERAGE -> areaAverage(image, width, height);
+        };
+    }
+
+    /**
+     * The source as 8-bit gray or packed RGB, drawing it into one of those if needed
+     */
+    public static BufferedImage normalize(BufferedImage source) {
+        int type = source.getType();
+        if (type == BufferedImage.TYPE_BYTE_GRAY || type == BufferedImage.TYPE_INT_RGB) {
+            return source;
+        }
+        boolean gray = !source.getColorModel().hasAlpha()
+                && source.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+        BufferedImage converted = new BufferedImage(source.getWidth(), source.getHeight(),
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(source, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    /**
+     * One-band copy of a packed RGB image, using Rec. 601 luma
+     */
+    public static BufferedImage toGray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster source = image.getRaster();
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster target = gray.getRaster();
+
+        int[] rgb = null;
+        byte[] luma = new byte[width];
+        for (int y = 0; y < height; y++) {
+            rgb = (int[]) source.getDataElements(0, y, width, 1, rgb);
+            for (int x = 0; x < width; x++) {
+                int pixel = rgb[x];
+                luma[x] = (byte) ((((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150
+                        + (pixel & 0xff) * 29) >> 8);
+            }
+            target.setDataElements(0, y, width, 1, luma);
+        }
+        return gray;
+    }
+
+    /**
+     * Threshold a normalized image to one bit per pixel at mid-gray
+     */
+    public static BufferedImage toBilevel(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster source = image.getRaster();
+        BufferedImage bilevel = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster target = bilevel.getRaster();
+
+        Object packedRow = null;
+        int[] bits = new int[width];
+        for (int y = 0; y < height; y++) {
+            packedRow = source.getDataElements(0, y, width, 1, packedRow);
+            if (packedRow instanceof byte[] gray) {
+                for (int x = 0; x < width; x++) {
+                    bits[x] = (gray[x] & 0xff) >= 128 ? 1 : 0;
+                }
+            } else {
+                int[] rgb = (int[]) packedRow;
+                for (int x = 0; x < width; x++) {
+                    int pixel = rgb[x];
+                    int luma = (((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29) >> 8;
+                    bits[x] = luma >= 128 ? 1 : 0;
+                }
+            }
+            target.setSamples(0, y, width, 1, 0, bits);
+        }
+        return bilevel;
+    }
+
+    private static BufferedImage halveThenScale(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = areaAverage(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() == width && current.getHeight() == height) {
+            return current;
+        }
+        return drawScaled(current, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+
+    private static BufferedImage drawScaled(BufferedImage image, int width, int height, Object interpolation) {
+        BufferedImage resized = new BufferedImage(width, height, targetType(image));
+        Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return resized;
+    }
+
+    /**
+     * Box filter straight on the rasters. Rows are streamed: each source row is first
+     * reduced horizontally, then added to the one or two output rows it overlaps.
+     */
+    private static BufferedImage areaAverage(BufferedImage image, int width, int height) {
+        Raster source = image.getRaster();
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        int bands = source.getNumBands();
+
+        BufferedImage resized = new BufferedImage(width, height, targetType(image));
+        WritableRaster target = resized.getRaster();
+
+        // Horizontal footprint of every output column, with fractional edges
+        double xRatio = (double) sourceWidth / width;
+        int[] firstColumn = new int[width];
+        int[] lastColumn = new int[width];
+        float[] firstWeight = new float[width];
+        float[] lastWeight = new float[width];
+        for (int x = 0; x < width; x++) {
+            double start = x * xRatio;
+            double end = Math.min(sourceWidth, (x + 1) * xRatio);
+            firstColumn[x] = (int) start;
+            lastColumn[x] = Math.min(sourceWidth - 1, (int) Math.ceil(end) - 1);
+            firstWeight[x] = (float) (Math.min(end, firstColumn[x] + 1) - start);
+            lastWeight[x] = (float) (end - lastColumn[x]);
+        }
+
+        Object packedRow = null;
+        float[] reducedRow = new float[width * bands];
+        float[] accumulator = new float[width * bands];
+        int[] outputRow = new int[width * bands];
+        Object packedOutput = bands == 1 ? new byte[width] : new int[width];
+
+        double yRatio = (double) sourceHeight / height;
+        float area = (float) (xRatio * yRatio);
+        int outputY = 0;
+        double rowEnd = yRatio;
+
+        for (int sy = 0; sy < sourceHeight && outputY < height; sy++) {
+            packedRow = source.getDataElements(0, sy, sourceWidth, 1, packedRow);
+            if (packedRow instanceof byte[] gray) {
+                reduceGrayRow(gray, reducedRow, firstColumn, lastColumn, firstWeight, lastWeight);
+            } else {
+                reduceRgbRow((int[]) packedRow, reducedRow, firstColumn, lastColumn, firstWeight, lastWeight);
+            }
+
+            // Part of this source row that falls in the current output row
+            double inside = Math.min(1.0, rowEnd - sy);
+            addRow(accumulator, reducedRow, (float) inside);
+
+            if (sy + 1 >= rowEnd || sy == sourceHeight - 1) {
+                emitRow(target, outputY, accumulator, outputRow, packedOutput, area);
+                outputY++;
+                rowEnd = Math.min(sourceHeight, (outputY + 1) * yRatio);
+                Arrays.fill(accumulator, 0f);
+                if (inside < 1.0 && outputY < height) {
+                    addRow(accumulator, reducedRow, (float) (1.0 - inside));
+                }
+            }
+        }
+        return resized;
+    }
+
+    /**
+     * Sum each output column's footprint of a gray row; interior pixels count fully
+     */
+    private static void reduceGrayRow(byte[] row, float[] reduced, int[] firstColumn, int[] lastColumn,
+            float[] firstWeight, float[] lastWeight) {
+        for (int x = 0; x < reduced.length; x++) {
+            int first = firstColumn[x];
+            int last = lastColumn[x];
+            if (first == last) {
+                reduced[x] = (row[first] & 0xff) * firstWeight[x];
+                continue;
+            }
+            int sum = 0;
+            for (int sx = first + 1; sx < last; sx++) {
+                sum += row[sx] & 0xff;
+            }
+            reduced[x] = sum + (row[first] & 0xff) * firstWeight[x] + (row[last] & 0xff) * lastWeight[x];
+        }
+    }
+
+    /**
+     * Same for a packed RGB row, unpacking each pixel once
+     */
+    private static void reduceRgbRow(int[] row, float[] reduced, int[] firstColumn, int[] lastColumn,
+            float[] firstWeight, float[] lastWeight) {
+        for (int x = 0, i = 0; x < firstColumn.length; x++, i += 3) {
+            int first = firstColumn[x];
+            int last = lastColumn[x];
+            int edge = row[first];
+            float weight = firstWeight[x];
+            float red = ((edge >> 16) & 0xff) * weight;
+            float green = ((edge >> 8) & 0xff) * weight;
+            float blue = (edge & 0xff) * weight;
+            if (first != last) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int sx = first + 1; sx < last; sx++) {
+                    int pixel = row[sx];
+                    r += (pixel >> 16) & 0xff;
+                    g += (pixel >> 8) & 0xff;
+                    b += pixel & 0xff;
+                }
+                edge = row[last];
+                weight = lastWeight[x];
+                red += r + ((edge >> 16) & 0xff) * weight;
+                green += g + ((edge >> 8) & 0xff) * weight;
+                blue += b + (edge & 0xff) * weight;
+            }
+            reduced[i] = red;
+            reduced[i + 1] = green;
+            reduced[i + 2] = blue;
+        }
+    }
+
+    private static void addRow(float[] accumulator, float[] row, float weight) {
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] += row[i] * weight;
+        }
+    }
+
+    private static void emitRow(WritableRaster target, int y, float[] accumulator, int[] outputRow,
+            Object packedOutput, float area) {
+        for (int i = 0; i < outputRow.length; i++) {
+            outputRow[i] = Math.max(0, Math.min(255, Math.round(accumulator[i] / area)));
+        }
+        if (packedOutput instanceof byte[] gray) {
+            for (int i = 0; i < gray.length; i++) {
+                gray[i] = (byte) outputRow[i];
+            }
+        } else {
+            int[] rgb = (int[]) packedOutput;
+            for (int i = 0, j = 0; i < rgb.length; i++, j += 3) {
+                rgb[i] = (outputRow[j] << 16) | (outputRow[j + 1] << 8) | outputRow[j + 2];
+            }
+        }
+        target.setDataElements(0, y, target.getWidth(), 1, packedOutput);
+    }
+
+    private static int targetType(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_BYTE_GRAY
+                ? BufferedImage.TYPE_BYTE_GRAY
+                : BufferedImage.TYPE_INT_RGB;
+    }
+}
@@ -0,0 +1,37 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * A named image entry in a resource dictionary.
+ *
+ * Phases replace images through the slot so later phases see the current image
+ * without resolving the resources again.
+ */
+public class ImageSlot {
+
+    private final PDResources resources;
+    private final COSName name;
+    private PDImageXObject image;
+
+    public ImageSlot(PDResources resources, COSName name, PDImageXObject image) {
+        this.resources = resources;
+        this.name = name;
+        this.image = image;
+    }
+
+    public COSName getName() {
+        return name;
+    }
+
+    public PDImageXObject getImage() {
+        return image;
+    }
+
+    public void replace(PDImageXObject replacement) {
+        resources.put(name, replacement);
+        image = replacement;
+    }
+}
@@ -0,0 +1,400 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdfwriter.ContentStreamWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Turns large inline images (BI/ID/EI) in page content streams into image XObjects.
+ *
+ * Runs before the page's images are resolved, so the new XObjects are
+ * downsampled and re-encoded by the image phase and merged by the duplicate
+ * phases like any other image. An inline image is replaced by a Do of the new
+ * XObject, which paints into the same unit square. Identical inline images,
+ * e.g. a logo repeated on every page, share one XObject.
+ *
+ * Abbreviated keys, filter names and colour spaces are expanded, and colour
+ * spaces named in the page resources are resolved, since an XObject cannot use
+ * the inline forms. Unfiltered data is stored with Flate. Inline images inside
+ * forms are left alone.
+ *
+ * A new name is only used where it is free: when a page already has an XObject
+ * of that name, the image is bound under a fresh one, and a content stream
+ * shared with earlier pages is copied for that page with its Do operands renamed.
+ */
+public class InlineImagePhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(InlineImagePhase.class);
+
+    private static final String NAME_PREFIX = "InlineIm";
+
+    private static final Map<String, COSName> KEYS = Map.of(
+            "BPC", COSName.BITS_PER_COMPONENT, "CS", COSName.COLORSPACE, "D", COSName.DECODE,
+            "DP", COSName.DECODE_PARMS, "F", COSName.FILTER, "H", COSName.HEIGHT,
+            "IM", COSName.IMAGE_MASK, "I", COSName.INTERPOLATE, "L", COSName.LENGTH, "W", COSName.WIDTH);
+
+    private static final Map<String, COSName> FILTERS = Map.of(
+            "AHx", COSName.ASCII_HEX_DECODE, "A85", COSName.ASCII85_DECODE, "LZW", COSName.LZW_DECODE,
+            "Fl", COSName.FLATE_DECODE, "RL", COSName.RUN_LENGTH_DECODE, "CCF", COSName.CCITTFAX_DECODE,
+            "DCT", COSName.DCT_DECODE);
+
+    private static final Map<String, COSName> COLOR_SPACES = Map.of(
+            "G", COSName.DEVICEGRAY, "RGB", COSName.DEVICERGB, "CMYK", COSName.DEVICECMYK,
+            "I", COSName.INDEXED);
+
+    private final PDDocument document;
+    private final int minBytes;
+
+    private final DuplicateStreamIndex index = new DuplicateStreamIndex();
+    private final Map<COSStream, COSName> namesByImage = new IdentityHashMap<>();
+    private int nextName = 1;
+
+    // Content streams already rewritten, with the images their new Do operators name
+    private final Map<COSStream, Map<COSName, COSStream>> rewritten = new IdentityHashMap<>();
+
+    private int imagesConverted = 0;
+    private int duplicatesShared = 0;
+    private long bytesMoved = 0;
+
+    /**
+     * @param minBytes inline images with less data than this stay inline
+     */
+    public InlineImagePhase(PDDocument document, int minBytes) {
+        this.document = document;
+        this.minBytes = minBytes;
+    }
+
+    @Override
+    public String name() {
+        return "inline";
+    }
+
+    @Override
+    public boolean preparePage(PDPage page, int index) throws Exception {
+        List<COSStream> streams = new ArrayList<>();
+        COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+        if (contents instanceof COSStream stream) {
+            streams.add(stream);
+        } else if (contents instanceof COSArray array) {
+            for (int i = 0; i < array.size(); i++) {
+                if (array.getObject(i) instanceof COSStream stream) {
+                    streams.add(stream);
+                }
+            }
+        }
+
+        boolean added = false;
+        for (int position = 0; position < streams.size(); position++) {
+            COSStream stream = streams.get(position);
+            Map<COSName, COSStream> images = rewritten.get(stream);
+            if (images == null) {
+                try {
+                    images = rewrite(stream, page);
+                } catch (IOException e) {
+                    logger.debug("Could not convert inline images on page {}: {}", index + 1, e.getMessage());
+                    images = Map.of();
+                }
+                rewritten.put(stream, images);
+            }
+
+            // A content stream shared with an earlier page still needs its images in
+            // these resources, under names this page does not already use
+            Map<COSName, COSName> renames = new HashMap<>();
+            for (Map.Entry<COSName, COSStream> image : images.entrySet()) {
+                COSName name = image.getKey();
+                if (isTaken(page.getResources(), name, image.getValue())) {
+                    name = freshName(page.getResources());
+                    renames.put(image.getKey(), name);
+                }
+                added |= bind(page, name, image.getValue());
+            }
+            if (!renames.isEmpty()) {
+                replaceContents(page, position, renamed(stream, renames));
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) {
+    }
+
+    @Override
+    public void finish() {
+        logger.info("Converted {} inline images to XObjects ({} shared with an identical one), moved {}",
+                imagesConverted, duplicatesShared, humanReadable(bytesMoved));
+    }
+
+    /**
+     * Replace the large inline images of a content stream with Do operators,
+     * returning the XObject each new name stands for
+     */
+    private Map<COSName, COSStream> rewrite(COSStream stream, PDPage page) throws IOException {
+        byte[] content;
+        try (InputStream in = stream.createInputStream()) {
+            content = in.readAllBytes();
+        }
+        if (!mayContainInlineImage(content)) {
+            return Map.of();
+        }
+
+        List<Object> tokens = new PDFStreamParser(content).parse();
+        Map<COSName, COSStream> images = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (!(tokens.get(i) instanceof Operator operator) || !"BI".equals(operator.getName())
+                    || operator.getImageData() == null || operator.getImageData().length < minBytes) {
+                continue;
+            }
+            COSStream xobject = toImageXObject(operator.getImageParameters(), operator.getImageData(),
+                    page.getResources());
+            if (xobject == null) {
+                continue;
+            }
+
+            COSStream canonical = index.canonical(xobject);
+            COSName name = namesByImage.get(canonical);
+            if (name == null) {
+                name = freshName(page.getResources());
+                namesByImage.put(canonical, name);
+                imagesConverted++;
+                bytesMoved += operator.getImageData().length;
+            } else {
+                duplicatesShared++;
+                // The name the image got on another page may mean something else here
+                if (isTaken(page.getResources(), name, canonical)) {
+                    name = freshName(page.getResources());
+                }
+            }
+            images.put(name, canonical);
+
+            tokens.set(i, name);
+            tokens.add(i + 1, Operator.getOperator("Do"));
+            i++;
+        }
+        if (images.isEmpty()) {
+            return Map.of();
+        }
+
+        try (OutputStream out = stream.createOutputStream(COSName.FLATE_DECODE)) {
+            new ContentStreamWriter(out).writeTokens(tokens);
+        }
+        return images;
+    }
+
+    /**
+     * Cheap check for a BI operator before the content is parsed
+     */
+    private boolean mayContainInlineImage(byte[] content) {
+        for (int i = 0; i + 1 < content.length; i++) {
+            if (content[i] == 'B' && content[i + 1] == 'I'
+                    && (i == 0 || isWhitespace(content[i - 1]))
+                    && (i + 2 == content.length || isWhitespace(content[i + 2]))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+    }
+
+    /**
+     * An image XObject with the inline image's data and expanded parameters, or
+     * null when a parameter cannot be expressed outside the content stream
+     */
+    private COSStream toImageXObject(COSDictionary parameters, byte[] data, PDResources resources)
+            throws IOException {
+        COSStream xobject = document.getDocument().createCOSStream();
+        xobject.setItem(COSName.TYPE, COSName.XOBJECT);
+        xobject.setItem(COSName.SUBTYPE, COSName.IMAGE);
+
+        for (Map.Entry<COSName, COSBase> entry : parameters.entrySet()) {
+            COSName key = KEYS.getOrDefault(entry.getKey().getName(), entry.getKey());
+            COSBase value = entry.getValue();
+            if (COSName.LENGTH.equals(key)) {
+                continue;
+            }
+            if (COSName.FILTER.equals(key)) {
+                value = expandFilters(value);
+            } else if (COSName.COLORSPACE.equals(key)) {
+                value = expandColorSpace(value, resources);
+                if (value == null) {
+                    return null;
+                }
+            }
+            xobject.setItem(key, value);
+        }
+        if (xobject.getInt(COSName.WIDTH) <= 0 || xobject.getInt(COSName.HEIGHT) <= 0) {
+            return null;
+        }
+
+        if (xobject.getDictionaryObject(COSName.FILTER) == null) {
+            try (OutputStream out = xobject.createOutputStream(COSName.FLATE_DECODE)) {
+                out.write(data);
+            }
+        } else {
+            try (OutputStream out = xobject.createRawOutputStream()) {
+                out.write(data);
+            }
+        }
+        return xobject;
+    }
+
+    private COSBase expandFilters(COSBase filters) {
+        if (filters instanceof COSName name) {
+            return FILTERS.getOrDefault(name.getName(), name);
+        }
+        if (filters instanceof COSArray array) {
+            COSArray expanded = new COSArray();
+            for (int i = 0; i < array.size(); i++) {
+                expanded.add(expandFilters(array.getObject(i)));
+            }
+            return expanded;
+        }
+        return filters;
+    }
+
+    /**
+     * Expand an abbreviated colour space, or look a named one up in the resources
+     */
+    private COSBase expandColorSpace(COSBase colorSpace, PDResources resources) {
+        if (colorSpace instanceof COSName name) {
+            COSName device = COLOR_SPACES.get(name.getName());
+            if (device != null || isDeviceSpace(name)) {
+                return device != null ? device : name;
+            }
+            COSDictionary named = resources != null
+                    ? resources.getCOSObject().getCOSDictionary(COSName.COLORSPACE)
+                    : null;
+            return named != null ? named.getItem(name) : null;
+        }
+        if (colorSpace instanceof COSArray array && array.size() == 4) {
+            // [/I base hival lookup]
+            COSArray expanded = new COSArray();
+            expanded.add(expandColorSpace(array.getObject(0), resources));
+            COSBase base = expandColorSpace(array.getObject(1), resources);
+            if (base == null) {
+                return null;
+            }
+            expanded.add(base);
+            expanded.add(array.get(2));
+            expanded.add(array.get(3));
+            return expanded;
+        }
+        return colorSpace;
+    }
+
+    private boolean isDeviceSpace(COSName name) {
+        return COSName.DEVICEGRAY.equals(name) || COSName.DEVICERGB.equals(name)
+                || COSName.DEVICECMYK.equals(name) || COSName.INDEXED.equals(name);
+    }
+
+    /**
+     * A name not yet used in the resources
+     */
+    private COSName freshName(PDResources resources) {
+        COSDictionary xobjects = resources != null
+                ? resources.getCOSObject().getCOSDictionary(COSName.XOBJECT)
+                : null;
+        COSName name;
+        do {
+            name = COSName.getPDFName(NAME_PREFIX + nextName++);
+        } while (xobjects != null && xobjects.containsKey(name));
+        return name;
+    }
+
+    /**
+     * True when the resources use the name for something other than the image
+     */
+    private boolean isTaken(PDResources resources, COSName name, COSStream image) {
+        COSDictionary xobjects = resources != null
+                ? resources.getCOSObject().getCOSDictionary(COSName.XOBJECT)
+                : null;
+        if (xobjects == null) {
+            return false;
+        }
+        COSBase existing = xobjects.getDictionaryObject(name);
+        return existing != null && existing != image;
+    }
+
+    /**
+     * Put the image into the page's XObject resources under a name that is free
+     * there or already stands for it
+     *
+     * @return true if the resources gained the entry
+     */
+    private boolean bind(PDPage page, COSName name, COSStream image) {
+        PDResources resources = page.getResources();
+        if (resources == null) {
+            resources = new PDResources();
+            page.setResources(resources);
+        }
+        COSDictionary xobjects = resources.getCOSObject().getCOSDictionary(COSName.XOBJECT);
+        if (xobjects == null) {
+            xobjects = new COSDictionary();
+            resources.getCOSObject().setItem(COSName.XOBJECT, xobjects);
+        }
+        if (xobjects.getDictionaryObject(name) == image) {
+            return false;
+        }
+        xobjects.setItem(name, image);
+        return true;
+    }
+
+    /**
+     * A copy of a rewritten content stream with the operands of its Do operators renamed
+     */
+    private COSStream renamed(COSStream stream, Map<COSName, COSName> renames) throws IOException {
+        byte[] content;
+        try (InputStream in = stream.createInputStream()) {
+            content = in.readAllBytes();
+        }
+        List<Object> tokens = new PDFStreamParser(content).parse();
+        for (int i = 0; i + 1 < tokens.size(); i++) {
+            if (tokens.get(i) instanceof COSName name && renames.containsKey(name)
+                    && tokens.get(i + 1) instanceof Operator operator && "Do".equals(operator.getName())) {
+                tokens.set(i, renames.get(name));
+            }
+        }
+        COSStream copy = document.getDocument().createCOSStream();
+        try (OutputStream out = copy.createOutputStream(COSName.FLATE_DECODE)) {
+            new ContentStreamWriter(out).writeTokens(tokens);
+        }
+        return copy;
+    }
+
+    /**
+     * Point this page alone at a new content stream in place of the one at the
+     * position; an array of streams is copied, as other pages may share it
+     */
+    private void replaceContents(PDPage page, int position, COSStream replacement) {
+        COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+        if (contents instanceof COSArray array) {
+            COSArray copy = new COSArray();
+            int streamPosition = 0;
+            for (int i = 0; i < array.size(); i++) {
+                if (array.getObject(i) instanceof COSStream && streamPosition++ == position) {
+                    copy.add(replacement);
+                } else {
+                    copy.add(array.get(i));
+                }
+            }
+            page.getCOSObject().setItem(COSName.CONTENTS, copy);
+        } else {
+            page.getCOSObject().setItem(COSName.CONTENTS, replacement);
+        }
+    }
+}
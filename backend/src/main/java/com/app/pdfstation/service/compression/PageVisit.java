@@ -0,0 +1,20 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+
+import java.util.List;
+
+/**
+ * A page as seen by the compression phases.
+ *
+ * @param page           the page being visited
+ * @param index          zero-based page number
+ * @param resources      the page resources, resolved once for all phases (may be null)
+ * @param images         image XObjects in the resources; shared with other pages using
+ *                       the same XObject dictionary
+ * @param firstResourceVisit false when an earlier page already used this resource dictionary
+ */
+public record PageVisit(PDPage page, int index, PDResources resources, List<ImageSlot> images,
+        boolean firstResourceVisit) {
+}
@@ -0,0 +1,28 @@
+package com.app.pdfstation.service.compression;
+
+import java.util.Map;
+
+/**
+ * What a document is made of and how large it is predicted to be once compressed.
+ *
+ * @param originalSize       size of the input file
+ * @param imageBytes         stored bytes of all images, with their soft masks
+ * @param imageBytesByFilter image bytes per outermost filter name, "None" for unfiltered images
+ * @param imageBytesByDpi    image bytes per range of the DPI the images are shown at
+ * @param fontBytes          stored bytes of embedded font programs
+ * @param contentBytes       stored bytes of page and form content streams
+ * @param sampledImages      images encoded to make the prediction
+ * @param estimatedSizes     predicted output size per quality (0-100)
+ * @param analysisMillis     time taken by the analysis
+ */
+public record SizeEstimate(long originalSize, long imageBytes, Map<String, Long> imageBytesByFilter,
+        Map<String, Long> imageBytesByDpi, long fontBytes, long contentBytes, int sampledImages,
+        Map<Integer, Long> estimatedSizes, long analysisMillis) {
+
+    /**
+     * Bytes that are neither images, fonts nor content, e.g. the document structure
+     */
+    public long otherBytes() {
+        return Math.max(0, originalSize - imageBytes - fontBytes - contentBytes);
+    }
+}
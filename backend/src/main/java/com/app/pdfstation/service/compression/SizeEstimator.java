@@ -0,0 +1,215 @@
+package com.app.pdfstation.service.compression;
+
+import com.app.pdfstation.service.compression.DocumentSurveyPhase.SurveyedImage;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Predicts how many bytes a document's images take after compression, from a
+ * small sample of them.
+ *
+ * The images are sorted by stored size and split into strata of roughly equal
+ * total bytes; the middle image of each stratum is encoded with the image
+ * phase's own logic and its size ratio is applied to the whole stratum. The
+ * sampled images are copied into memory once, so the document can be closed
+ * and any number of option sets tried without reading it again.
+ *
+ * The survey also breaks the stored image bytes down by filter and by the DPI
+ * the images are shown at, and totals embedded font and content stream bytes.
+ */
+public class SizeEstimator {
+    private final Logger logger = LoggerFactory.getLogger(SizeEstimator.class);
+
+    // Upper bounds of the DPI buckets; the last is open-ended
+    private static final int[] DPI_BOUNDS = {100, 200, 300};
+    private static final List<String> DPI_BUCKETS = List.of("up to 100", "101-200", "201-300", "over 300");
+
+    /**
+     * A detached sample image and the stored bytes of the stratum it stands for
+     */
+    private record Sample(PDImageXObject image, double dpi, long storedSize, long stratumBytes) {
+    }
+
+    private final List<Sample> samples;
+    private final long imageBytes;
+    private final Map<String, Long> imageBytesByFilter;
+    private final Map<String, Long> imageBytesByDpi;
+    private final long fontBytes;
+    private final long contentBytes;
+    private final ExecutorService pool;
+    private final int parallelism;
+    private final boolean colorNormalization;
+
+    private SizeEstimator(List<Sample> samples, long imageBytes, Map<String, Long> imageBytesByFilter,
+            Map<String, Long> imageBytesByDpi, long fontBytes, long contentBytes, ExecutorService pool,
+            int parallelism, boolean colorNormalization) {
+        this.samples = samples;
+        this.imageBytes = imageBytes;
+        this.imageBytesByFilter = imageBytesByFilter;
+        this.imageBytesByDpi = imageBytesByDpi;
+        this.fontBytes = fontBytes;
+        this.contentBytes = contentBytes;
+        this.pool = pool;
+        this.parallelism = parallelism;
+        this.colorNormalization = colorNormalization;
+    }
+
+    /**
+     * Survey the document's images and copy a sample of at most maxSamples of them
+     *
+     * @param pool worker pool for sample encoding, or null to encode on the calling thread
+     */
+    public static SizeEstimator analyze(PDDocument document, int maxSamples, ExecutorService pool, int parallelism,
+            boolean colorNormalization) throws Exception {
+        DocumentSurveyPhase survey = new DocumentSurveyPhase();
+        new DocumentWalker(List.of(survey)).walk(document);
+        return fromSurvey(survey, maxSamples, pool, parallelism, colorNormalization);
+    }
+
+    private static SizeEstimator fromSurvey(DocumentSurveyPhase survey, int maxSamples, ExecutorService pool,
+            int parallelism, boolean colorNormalization) throws Exception {
+        List<SurveyedImage> bySize = survey.getImages();
+        bySize.sort(Comparator.comparingLong(
+                (SurveyedImage image) -> ImageRecompressionPhase.storedSize(image.image())).reversed());
+        long imageBytes = 0;
+        Map<String, Long> byFilter = new TreeMap<>();
+        Map<String, Long> byDpi = new LinkedHashMap<>();
+        for (String bucket : DPI_BUCKETS) {
+            byDpi.put(bucket, 0L);
+        }
+        for (SurveyedImage image : bySize) {
+            long size = ImageRecompressionPhase.storedSize(image.image());
+            imageBytes += size;
+            List<COSName> filters = image.image().getStream().getFilters();
+            byFilter.merge(filters.isEmpty() ? "None" : filters.get(filters.size() - 1).getName(), size, Long::sum);
+            byDpi.merge(dpiBucket(image.dpi()), size, Long::sum);
+        }
+
+        // Close a stratum once it holds its share of the bytes
+        List<Sample> samples = new ArrayList<>();
+        long stratumTarget = Math.max(1, imageBytes / Math.max(1, maxSamples));
+        List<SurveyedImage> stratum = new ArrayList<>();
+        long stratumBytes = 0;
+        for (int i = 0; i < bySize.size(); i++) {
+            SurveyedImage image = bySize.get(i);
+            stratum.add(image);
+            stratumBytes += ImageRecompressionPhase.storedSize(image.image());
+            if (stratumBytes >= stratumTarget || i == bySize.size() - 1) {
+                SurveyedImage middle = stratum.get(stratum.size() / 2);
+                samples.add(new Sample(ImageRecompressionPhase.detach(middle.image()), middle.dpi(),
+                        ImageRecompressionPhase.storedSize(middle.image()), stratumBytes));
+                stratum.clear();
+                stratumBytes = 0;
+            }
+        }
+        return new SizeEstimator(samples, imageBytes, byFilter, byDpi, survey.getFontBytes(),
+                survey.getContentBytes(), pool, parallelism, colorNormalization);
+    }
+
+    private static String dpiBucket(double dpi) {
+        for (int i = 0; i < DPI_BOUNDS.length; i++) {
+            if (dpi <= DPI_BOUNDS[i]) {
+                return DPI_BUCKETS.get(i);
+            }
+        }
+        return DPI_BUCKETS.get(DPI_BOUNDS.length);
+    }
+
+    /**
+     * Stored bytes of all surveyed images before compression
+     */
+    public long getImageBytes() {
+        return imageBytes;
+    }
+
+    /**
+     * Stored image bytes per outermost filter name, "None" for unfiltered images
+     */
+    public Map<String, Long> getImageBytesByFilter() {
+        return imageBytesByFilter;
+    }
+
+    /**
+     * Stored image bytes per range of the DPI the images are shown at
+     */
+    public Map<String, Long> getImageBytesByDpi() {
+        return imageBytesByDpi;
+    }
+
+    /**
+     * Stored bytes of the embedded font programs
+     */
+    public long getFontBytes() {
+        return fontBytes;
+    }
+
+    /**
+     * Stored bytes of page and form content streams
+     */
+    public long getContentBytes() {
+        return contentBytes;
+    }
+
+    public int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * Predicted stored bytes of all surveyed images under the options
+     */
+    public long estimateImageBytes(CompressionOptions options) throws Exception {
+        ImageRecompressionPhase phase = new ImageRecompressionPhase(null, options, pool, parallelism, 0,
+                colorNormalization, null);
+
+        List<FutureTask<Long>> tasks = new ArrayList<>();
+        for (Sample sample : samples) {
+            FutureTask<Long> task = new FutureTask<>(() -> phase.sampleSize(sample.image(), sample.dpi()));
+            tasks.add(task);
+            if (pool != null) {
+                pool.execute(task);
+            }
+        }
+
+        double estimate = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            // Runs the sample here if the pool has not started it
+            tasks.get(i).run();
+            Sample sample = samples.get(i);
+            long sampled;
+            try {
+                sampled = get(tasks.get(i));
+            } catch (Exception e) {
+                // The image phase would fail on it too; assume it stays as it is
+                logger.debug("Could not encode sample image: {}", e.getMessage());
+                sampled = sample.storedSize();
+            }
+            estimate += sample.stratumBytes() * ((double) sampled / Math.max(1, sample.storedSize()));
+        }
+        logger.debug("Images at {} DPI, JPEG quality {}: {} -> ~{} from {} samples",
+                options.targetDpi(), options.jpegQuality(), humanReadable(imageBytes),
+                humanReadable((long) estimate), samples.size());
+        return (long) estimate;
+    }
+
+    private static long get(Future<Long> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
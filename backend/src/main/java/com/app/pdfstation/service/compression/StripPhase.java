@@ -0,0 +1,453 @@
+package com.app.pdfstation.service.compression;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Phase 5: Remove what the pages never show.
+ *
+ * Always removes page thumbnails (/Thumb), private application data (/PieceInfo)
+ * and resource entries that no content stream names. Optionally removes XMP
+ * metadata streams and embedded files (the EmbeddedFiles name tree, /AF,
+ * portfolios and file attachment annotations).
+ *
+ * Resource usage is collected per resource dictionary from page content, the
+ * forms it draws, annotation appearances, and the content of tiling patterns,
+ * soft mask groups and Type 3 glyphs, which inherit the resources they are
+ * used from when they have none of their own. A dictionary shared by several
+ * pages keeps everything any of them uses; one whose content could not be read
+ * is left whole, and Default colour spaces are always kept.
+ *
+ * Entries are removed in {@link #finish()}, after the other phases have swapped
+ * in their replacements. Objects that were unreachable when the file was loaded
+ * are never written by a full save; they are reported as orphaned. The report
+ * counts the stream bytes that are no longer reachable from the trailer, per
+ * category.
+ */
+public class StripPhase implements CompressionPhase {
+    private final Logger logger = LoggerFactory.getLogger(StripPhase.class);
+
+    public static final String THUMBNAILS = "thumbnails";
+    public static final String PRIVATE_DATA = "privateData";
+    public static final String UNUSED_RESOURCES = "unusedResources";
+    public static final String METADATA = "metadata";
+    public static final String ATTACHMENTS = "attachments";
+    public static final String ORPHANED = "orphaned";
+
+    private static final COSName THUMB = COSName.getPDFName("Thumb");
+    private static final COSName PIECE_INFO = COSName.getPDFName("PieceInfo");
+    private static final COSName AF = COSName.getPDFName("AF");
+    private static final COSName COLLECTION = COSName.getPDFName("Collection");
+    private static final COSName FILE_ATTACHMENT = COSName.getPDFName("FileAttachment");
+
+    private static final List<COSName> RESOURCE_CATEGORIES = List.of(
+            COSName.XOBJECT, COSName.FONT, COSName.EXT_G_STATE, COSName.COLORSPACE,
+            COSName.PATTERN, COSName.SHADING, COSName.PROPERTIES);
+
+    // Used implicitly by device colour operators
+    private static final Set<COSName> DEFAULT_COLOR_SPACES = Set.of(
+            COSName.DEFAULT_GRAY, COSName.DEFAULT_RGB, COSName.DEFAULT_CMYK);
+
+    private final PDDocument document;
+    private final boolean stripMetadata;
+    private final boolean stripAttachments;
+
+    // Names used by the content drawing from each resource dictionary
+    private final Map<COSDictionary, Set<COSName>> usedNames = new IdentityHashMap<>();
+    private final Set<COSDictionary> keepWhole = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<COSDictionary> expanded = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<COSStream, Set<COSDictionary>> scannedForms = new IdentityHashMap<>();
+
+    // Removed entries per category, sized once the reachable objects are known
+    private final Map<String, List<COSBase>> removed = new LinkedHashMap<>();
+    private final Map<String, Long> removedBytes = new LinkedHashMap<>();
+
+    /**
+     * @param stripMetadata    also remove XMP metadata streams
+     * @param stripAttachments also remove embedded files and file attachment annotations
+     */
+    public StripPhase(PDDocument document, boolean stripMetadata, boolean stripAttachments) {
+        this.document = document;
+        this.stripMetadata = stripMetadata;
+        this.stripAttachments = stripAttachments;
+        for (String category : List.of(THUMBNAILS, PRIVATE_DATA, UNUSED_RESOURCES, METADATA, ATTACHMENTS,
+                ORPHANED)) {
+            removed.put(category, new ArrayList<>());
+            removedBytes.put(category, 0L);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "strip";
+    }
+
+    @Override
+    public boolean preparePage(PDPage page, int index) {
+        // Before any phase replaces objects, so only what was already dead counts as orphaned
+        if (index == 0) {
+            collectOrphans();
+        }
+        return false;
+    }
+
+    @Override
+    public void visitPage(PageVisit visit) {
+        COSDictionary resources = visit.resources() != null ? visit.resources().getCOSObject() : null;
+        try (InputStream in = visit.page().getContents()) {
+            scanContent(in.readAllBytes(), resources);
+        } catch (IOException e) {
+            logger.debug("Could not scan content of page {}: {}", visit.index() + 1, e.getMessage());
+            markKeepWhole(resources);
+        }
+
+        COSArray annotations = visit.page().getCOSObject().getCOSArray(COSName.ANNOTS);
+        if (annotations == null) {
+            return;
+        }
+        for (int i = annotations.size() - 1; i >= 0; i--) {
+            if (!(annotations.getObject(i) instanceof COSDictionary annotation)) {
+                continue;
+            }
+            if (stripAttachments && FILE_ATTACHMENT.equals(annotation.getCOSName(COSName.SUBTYPE))) {
+                removed.get(ATTACHMENTS).add(annotations.get(i));
+                annotations.remove(i);
+                continue;
+            }
+            scanAppearances(annotation.getCOSDictionary(COSName.AP));
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            // Field appearances are generated from the form's default resources
+            COSDictionary acroForm = document.getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+            if (acroForm != null) {
+                markKeepWhole(acroForm.getCOSDictionary(COSName.DR));
+            }
+            pruneResources();
+            if (stripAttachments) {
+                removeAttachments();
+            }
+            Set<COSBase> reachable = stripAndMark();
+            for (Map.Entry<String, List<COSBase>> category : removed.entrySet()) {
+                removedBytes.put(category.getKey(), unreachableStreamBytes(category.getValue(), reachable));
+            }
+        } catch (Exception e) {
+            logger.warn("Stripping had errors: {}", e.getMessage());
+        }
+
+        long total = removedBytes.values().stream().mapToLong(Long::longValue).sum();
+        StringBuilder breakdown = new StringBuilder();
+        removedBytes.forEach((category, bytes) -> {
+            if (bytes > 0) {
+                breakdown.append(breakdown.isEmpty() ? "" : ", ")
+                        .append(category).append('=').append(humanReadable(bytes));
+            }
+        });
+        logger.info("Phase 5 Complete: stripped {} ({})", humanReadable(total), breakdown);
+    }
+
+    /**
+     * Stream bytes removed per category, in a fixed order
+     */
+    public Map<String, Long> getRemovedBytes() {
+        return Collections.unmodifiableMap(removedBytes);
+    }
+
+    /**
+     * Record the names a content stream uses against the resources it draws from,
+     * descending into the forms it draws
+     */
+    private void scanContent(byte[] content, COSDictionary resources) throws IOException {
+        if (resources == null) {
+            return;
+        }
+        Set<COSName> names = usedNames.computeIfAbsent(resources, r -> new HashSet<>());
+
+        COSDictionary xobjects = resources.getCOSDictionary(COSName.XOBJECT);
+        COSName lastName = null;
+        for (Object token : new PDFStreamParser(content).parse()) {
+            if (token instanceof COSName name) {
+                names.add(name);
+                lastName = name;
+                continue;
+            }
+            if (token instanceof Operator operator) {
+                if ("BI".equals(operator.getName()) && operator.getImageParameters() != null) {
+                    // A colour space named by an inline image
+                    for (COSBase value : operator.getImageParameters().getValues()) {
+                        if (value instanceof COSName name) {
+                            names.add(name);
+                        }
+                    }
+                } else if ("Do".equals(operator.getName()) && lastName != null && xobjects != null
+                        && xobjects.getDictionaryObject(lastName) instanceof COSStream form
+                        && COSName.FORM.equals(form.getCOSName(COSName.SUBTYPE))) {
+                    scanForm(form, resources);
+                }
+            }
+            lastName = null;
+        }
+        scanResourceContent(resources);
+    }
+
+    /**
+     * Scan a form once per resource dictionary it may inherit
+     */
+    private void scanForm(COSStream form, COSDictionary inherited) {
+        COSDictionary resources = form.getCOSDictionary(COSName.RESOURCES);
+        if (resources == null) {
+            resources = inherited;
+        }
+        if (!scannedForms.computeIfAbsent(form, f -> Collections.newSetFromMap(new IdentityHashMap<>()))
+                .add(resources)) {
+            return;
+        }
+        try (InputStream in = form.createInputStream()) {
+            scanContent(in.readAllBytes(), resources);
+        } catch (IOException e) {
+            logger.debug("Could not scan form content: {}", e.getMessage());
+            markKeepWhole(resources);
+        }
+    }
+
+    private void scanAppearances(COSDictionary appearances) {
+        if (appearances == null) {
+            return;
+        }
+        for (COSName key : List.of(COSName.N, COSName.R, COSName.D)) {
+            COSBase entry = appearances.getDictionaryObject(key);
+            if (entry instanceof COSStream stream) {
+                scanForm(stream, null);
+            } else if (entry instanceof COSDictionary states) {
+                for (COSBase state : states.getValues()) {
+                    if (state instanceof COSObject object) {
+                        state = object.getObject();
+                    }
+                    if (state instanceof COSStream stream) {
+                        scanForm(stream, null);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan the content hidden in resources: tiling patterns, soft mask groups
+     * and Type 3 glyphs
+     */
+    private void scanResourceContent(COSDictionary resources) {
+        if (!expanded.add(resources)) {
+            return;
+        }
+        COSDictionary patterns = resources.getCOSDictionary(COSName.PATTERN);
+        if (patterns != null) {
+            for (COSBase pattern : patterns.getValues()) {
+                if (resolve(pattern) instanceof COSStream tiling) {
+                    scanForm(tiling, resources);
+                }
+            }
+        }
+        COSDictionary states = resources.getCOSDictionary(COSName.EXT_G_STATE);
+        if (states != null) {
+            for (COSBase state : states.getValues()) {
+                if (resolve(state) instanceof COSDictionary gs
+                        && gs.getDictionaryObject(COSName.SMASK) instanceof COSDictionary softMask
+                        && softMask.getDictionaryObject(COSName.G) instanceof COSStream group) {
+                    scanForm(group, resources);
+                }
+            }
+        }
+        COSDictionary fonts = resources.getCOSDictionary(COSName.FONT);
+        if (fonts != null) {
+            for (COSBase font : fonts.getValues()) {
+                if (resolve(font) instanceof COSDictionary type3
+                        && COSName.TYPE3.equals(type3.getCOSName(COSName.SUBTYPE))
+                        && type3.getDictionaryObject(COSName.CHAR_PROCS) instanceof COSDictionary procs) {
+                    COSDictionary glyphResources = type3.getCOSDictionary(COSName.RESOURCES);
+                    for (COSBase proc : procs.getValues()) {
+                        if (resolve(proc) instanceof COSStream glyph) {
+                            scanForm(glyph, glyphResources != null ? glyphResources : resources);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void markKeepWhole(COSDictionary resources) {
+        if (resources != null) {
+            keepWhole.add(resources);
+        }
+    }
+
+    /**
+     * Remove resource entries that no scanned content names
+     */
+    private void pruneResources() {
+        for (Map.Entry<COSDictionary, Set<COSName>> entry : usedNames.entrySet()) {
+            COSDictionary resources = entry.getKey();
+            if (keepWhole.contains(resources)) {
+                continue;
+            }
+            Set<COSName> used = entry.getValue();
+            for (COSName category : RESOURCE_CATEGORIES) {
+                COSDictionary named = resources.getCOSDictionary(category);
+                if (named == null) {
+                    continue;
+                }
+                for (COSName name : new ArrayList<>(named.keySet())) {
+                    if (!used.contains(name) && !DEFAULT_COLOR_SPACES.contains(name)) {
+                        removed.get(UNUSED_RESOURCES).add(named.getItem(name));
+                        named.removeItem(name);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeAttachments() {
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+        COSDictionary names = catalog.getCOSDictionary(COSName.NAMES);
+        if (names != null && names.containsKey(COSName.EMBEDDED_FILES)) {
+            removed.get(ATTACHMENTS).add(names.getItem(COSName.EMBEDDED_FILES));
+            names.removeItem(COSName.EMBEDDED_FILES);
+            if (names.size() == 0) {
+                catalog.removeItem(COSName.NAMES);
+            }
+        }
+        for (COSName key : List.of(AF, COLLECTION)) {
+            if (catalog.containsKey(key)) {
+                removed.get(ATTACHMENTS).add(catalog.getItem(key));
+                catalog.removeItem(key);
+            }
+        }
+    }
+
+    /**
+     * Walk everything reachable from the trailer, dropping thumbnails, private data
+     * and (if configured) metadata on the way, and return what is left reachable
+     */
+    private Set<COSBase> stripAndMark() {
+        Set<COSBase> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> stack = new ArrayDeque<>();
+        stack.push(document.getDocument().getTrailer());
+
+        while (!stack.isEmpty()) {
+            COSBase base = resolve(stack.pop());
+            if (base == null || !reachable.add(base)) {
+                continue;
+            }
+            if (base instanceof COSDictionary dictionary) {
+                strip(dictionary, THUMB, THUMBNAILS);
+                strip(dictionary, PIECE_INFO, PRIVATE_DATA);
+                if (stripMetadata) {
+                    strip(dictionary, COSName.METADATA, METADATA);
+                }
+                for (COSBase value : dictionary.getValues()) {
+                    stack.push(value);
+                }
+            } else if (base instanceof COSArray array) {
+                for (int i = 0; i < array.size(); i++) {
+                    stack.push(array.get(i));
+                }
+            }
+        }
+        return reachable;
+    }
+
+    private void strip(COSDictionary dictionary, COSName key, String category) {
+        // Only metadata streams; anything else under the key is left as found
+        if (dictionary.containsKey(key)
+                && (key != COSName.METADATA || resolve(dictionary.getItem(key)) instanceof COSStream)) {
+            removed.get(category).add(dictionary.getItem(key));
+            dictionary.removeItem(key);
+        }
+    }
+
+    /**
+     * Streams in the cross-reference table that nothing reachable from the trailer
+     * refers to. Reachability is walked first, so only the entries outside it are
+     * ever parsed, and only to measure their streams.
+     */
+    private void collectOrphans() {
+        Set<COSBase> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<COSObjectKey> reachableKeys = new HashSet<>();
+        Deque<COSBase> stack = new ArrayDeque<>();
+        stack.push(document.getDocument().getTrailer());
+        while (!stack.isEmpty()) {
+            COSBase item = stack.pop();
+            if (item instanceof COSObject object && object.getKey() != null) {
+                reachableKeys.add(object.getKey());
+            }
+            COSBase base = resolve(item);
+            if (base == null || !reachable.add(base)) {
+                continue;
+            }
+            if (base instanceof COSDictionary dictionary) {
+                stack.addAll(dictionary.getValues());
+            } else if (base instanceof COSArray array) {
+                for (int i = 0; i < array.size(); i++) {
+                    stack.push(array.get(i));
+                }
+            }
+        }
+
+        COSDocument cosDocument = document.getDocument();
+        for (COSObjectKey key : new ArrayList<>(cosDocument.getXrefTable().keySet())) {
+            if (reachableKeys.contains(key)) {
+                continue;
+            }
+            COSBase object = cosDocument.getObjectFromPool(key).getObject();
+            // Object and cross-reference streams are containers the save rewrites anyway
+            if (object instanceof COSStream stream && !reachable.contains(stream)
+                    && !COSName.OBJ_STM.equals(stream.getCOSName(COSName.TYPE))
+                    && !COSName.XREF.equals(stream.getCOSName(COSName.TYPE))) {
+                removed.get(ORPHANED).add(stream);
+            }
+        }
+    }
+
+    /**
+     * Raw length of the streams under the removed entries that nothing reachable
+     * still refers to, each counted once
+     */
+    private long unreachableStreamBytes(List<COSBase> entries, Set<COSBase> reachable) {
+        long bytes = 0;
+        Deque<COSBase> stack = new ArrayDeque<>(entries);
+        while (!stack.isEmpty()) {
+            COSBase base = resolve(stack.pop());
+            if (base == null || !reachable.add(base)) {
+                continue;
+            }
+            if (base instanceof COSStream stream) {
+                bytes += stream.getLength();
+            }
+            if (base instanceof COSDictionary dictionary) {
+                stack.addAll(dictionary.getValues());
+            } else if (base instanceof COSArray array) {
+                for (int i = 0; i < array.size(); i++) {
+                    stack.push(array.get(i));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static COSBase resolve(COSBase base) {
+        return base instanceof COSObject object ? object.getObject() : base;
+    }
+}
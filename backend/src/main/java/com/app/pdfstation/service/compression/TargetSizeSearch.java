@@ -0,0 +1,123 @@
+package com.app.pdfstation.service.compression;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Chooses image settings that bring a document under a target size.
+ *
+ * Settings come from a fixed ladder, from print quality down to aggressive
+ * web settings. Each rung is scored by a {@link SizeEstimator} (sampled image
+ * bytes) plus the bytes everything else is expected to take, and the first
+ * rung predicted to fit is found by binary search, so only a handful of rungs
+ * are ever sampled. After a full compression run, the bytes that were not
+ * images are measured from its result, and the next guess uses them.
+ */
+public class TargetSizeSearch {
+    private final Logger logger = LoggerFactory.getLogger(TargetSizeSearch.class);
+
+    /**
+     * One rung of the ladder
+     */
+    private record Level(double targetDpi, float jpegQuality) {
+    }
+
+    // Ordered from largest output to smallest
+    private static final List<Level> LEVELS = List.of(
+            new Level(300, 0.95f), new Level(300, 0.85f), new Level(200, 0.85f),
+            new Level(150, 0.85f), new Level(150, 0.75f), new Level(120, 0.70f),
+            new Level(96, 0.70f), new Level(96, 0.55f), new Level(72, 0.50f),
+            new Level(60, 0.40f));
+
+    private final SizeEstimator estimator;
+    private final CompressionOptions base;
+    private final long targetBytes;
+    private final Map<Integer, Long> imageEstimates = new HashMap<>();
+
+    // Bytes expected outside the images; the input's until a run has measured it
+    private long otherBytes;
+
+    /**
+     * @param base        options the chosen image settings are applied to
+     * @param inputBytes  size of the input file
+     * @param targetBytes size the output should not exceed
+     */
+    public TargetSizeSearch(SizeEstimator estimator, CompressionOptions base, long inputBytes, long targetBytes) {
+        this.estimator = estimator;
+        this.base = base;
+        this.targetBytes = targetBytes;
+        this.otherBytes = Math.max(0, inputBytes - estimator.getImageBytes());
+    }
+
+    /**
+     * The settings to try first
+     */
+    public CompressionOptions firstGuess() throws Exception {
+        return optionsFor(search(0));
+    }
+
+    /**
+     * Settings for another run after one produced achievedBytes, or null when
+     * no smaller rung is left
+     *
+     * @param tried the options of that run, as returned by this search
+     */
+    public CompressionOptions next(CompressionOptions tried, long achievedBytes) throws Exception {
+        int triedLevel = levelOf(tried);
+        if (triedLevel >= LEVELS.size() - 1) {
+            return null;
+        }
+        otherBytes = Math.max(0, achievedBytes - estimate(triedLevel));
+        logger.debug("Measured {} outside the images at level {}", humanReadable(otherBytes), triedLevel);
+        return optionsFor(search(triedLevel + 1));
+    }
+
+    /**
+     * First rung from the given one down predicted to fit, or the last one
+     */
+    private int search(int first) throws Exception {
+        int low = first;
+        int high = LEVELS.size() - 1;
+        while (low < high) {
+            int mid = (low + high) / 2;
+            if (otherBytes + estimate(mid) <= targetBytes) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        logger.info("Target {}: chose {} DPI at JPEG quality {} (predicted {})",
+                humanReadable(targetBytes), LEVELS.get(low).targetDpi(), LEVELS.get(low).jpegQuality(),
+                humanReadable(otherBytes + estimate(low)));
+        return low;
+    }
+
+    private long estimate(int level) throws Exception {
+        Long known = imageEstimates.get(level);
+        if (known == null) {
+            known = estimator.estimateImageBytes(optionsFor(level));
+            imageEstimates.put(level, known);
+        }
+        return known;
+    }
+
+    private CompressionOptions optionsFor(int level) {
+        return base.withImageSettings(LEVELS.get(level).targetDpi(), LEVELS.get(level).jpegQuality());
+    }
+
+    private int levelOf(CompressionOptions options) {
+        for (int i = 0; i < LEVELS.size(); i++) {
+            if (LEVELS.get(i).targetDpi() == options.targetDpi()
+                    && LEVELS.get(i).jpegQuality() == options.jpegQuality()) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Options were not chosen by this search");
+    }
+}
@@ -0,0 +1,199 @@
+package com.app.pdfstation.service.linearization;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * The page offset and shared object hint tables of a linearized file
+ * (ISO 32000-1, F.4), packed as they appear in the decoded hint stream.
+ *
+ * Offsets and lengths are taken as if the hint stream were not in the file,
+ * as the tables require. Every shared object is its own group, and content
+ * stream positions are given as the whole page, as Acrobat ignores them.
+ */
+final class HintTables {
+
+    /**
+     * A page as laid out: its section (page object first) and the indexes of the
+     * shared object table entries it uses
+     */
+    record Page(long offset, long length, int objects, List<Integer> sharedObjects) {
+    }
+
+    /**
+     * A shared object table entry: the first page's objects, then the shared objects section
+     */
+    record SharedObject(long length) {
+    }
+
+    private final byte[] data;
+    private final int sharedTableOffset;
+
+    /**
+     * @param firstSharedNumber object number of the first object in the shared objects
+     *                          section, 0 when it is empty
+     * @param firstSharedOffset its offset, 0 when it is empty
+     * @param firstPageShared   entries of the shared object table that are first page objects
+     */
+    HintTables(List<Page> pages, List<SharedObject> shared, int firstSharedNumber, long firstSharedOffset,
+            int firstPageShared) {
+        BitWriter bits = new BitWriter();
+        writePageOffsets(bits, pages, shared.size());
+        sharedTableOffset = bits.size();
+        writeSharedObjects(bits, shared, firstSharedNumber, firstSharedOffset, firstPageShared);
+        data = bits.toByteArray();
+    }
+
+    /**
+     * Both tables, uncompressed
+     */
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * Offset of the shared object hint table in the decoded stream, its /S entry
+     */
+    int sharedTableOffset() {
+        return sharedTableOffset;
+    }
+
+    private static void writePageOffsets(BitWriter bits, List<Page> pages, int sharedCount) {
+        long minObjects = Long.MAX_VALUE;
+        long maxObjects = 0;
+        long minLength = Long.MAX_VALUE;
+        long maxLength = 0;
+        long maxShared = 0;
+        for (Page page : pages) {
+            minObjects = Math.min(minObjects, page.objects());
+            maxObjects = Math.max(maxObjects, page.objects());
+            minLength = Math.min(minLength, page.length());
+            maxLength = Math.max(maxLength, page.length());
+            maxShared = Math.max(maxShared, page.sharedObjects().size());
+        }
+        int objectBits = bitsFor(maxObjects - minObjects);
+        int lengthBits = bitsFor(maxLength - minLength);
+        int sharedCountBits = bitsFor(maxShared);
+        int sharedIdBits = bitsFor(Math.max(0, sharedCount - 1));
+
+        // Header, table F.3
+        bits.write(minObjects, 32);
+        bits.write(pages.get(0).offset(), 32);
+        bits.write(objectBits, 16);
+        bits.write(minLength, 32);
+        bits.write(lengthBits, 16);
+        bits.write(0, 32);              // least content stream offset in a page
+        bits.write(0, 16);
+        bits.write(minLength, 32);      // least content stream length: the page
+        bits.write(lengthBits, 16);
+        bits.write(sharedCountBits, 16);
+        bits.write(sharedIdBits, 16);
+        bits.write(0, 16);              // no fractional positions of shared objects
+        bits.write(1, 16);
+
+        // Per-page entries, table F.4: each item for every page, byte-aligned
+        for (Page page : pages) {
+            bits.write(page.objects() - minObjects, objectBits);
+        }
+        bits.align();
+        for (Page page : pages) {
+            bits.write(page.length() - minLength, lengthBits);
+        }
+        bits.align();
+        for (Page page : pages) {
+            bits.write(page.sharedObjects().size(), sharedCountBits);
+        }
+        bits.align();
+        for (Page page : pages) {
+            for (int id : page.sharedObjects()) {
+                bits.write(id, sharedIdBits);
+            }
+        }
+        bits.align();
+        // Numerators and content stream offsets take no bits
+        for (Page page : pages) {
+            bits.write(page.length() - minLength, lengthBits);
+        }
+        bits.align();
+    }
+
+    private static void writeSharedObjects(BitWriter bits, List<SharedObject> shared, int firstSharedNumber,
+            long firstSharedOffset, int firstPageShared) {
+        long minLength = shared.isEmpty() ? 0 : Long.MAX_VALUE;
+        long maxLength = 0;
+        for (SharedObject object : shared) {
+            minLength = Math.min(minLength, object.length());
+            maxLength = Math.max(maxLength, object.length());
+        }
+        int lengthBits = bitsFor(maxLength - minLength);
+
+        // Header, table F.5
+        bits.write(firstSharedNumber, 32);
+        bits.write(firstSharedOffset, 32);
+        bits.write(firstPageShared, 32);
+        bits.write(shared.size(), 32);
+        bits.write(0, 16);              // one object per group
+        bits.write(minLength, 32);
+        bits.write(lengthBits, 16);
+
+        // Per-group entries, table F.6
+        for (SharedObject object : shared) {
+            bits.write(object.length() - minLength, lengthBits);
+        }
+        bits.align();
+        for (int i = 0; i < shared.size(); i++) {
+            bits.write(0, 1);           // no MD5 signatures
+        }
+        bits.align();
+    }
+
+    /**
+     * Bits needed to write the value, 0 for 0
+     */
+    static int bitsFor(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Packs values most significant bit first
+     */
+    private static final class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current = 0;
+        private int pending = 0;
+
+        void write(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++pending == 8) {
+                    out.write(current);
+                    current = 0;
+                    pending = 0;
+                }
+            }
+        }
+
+        /**
+         * Pad with zero bits to the next byte
+         */
+        void align() {
+            if (pending > 0) {
+                out.write(current << (8 - pending));
+                current = 0;
+                pending = 0;
+            }
+        }
+
+        /**
+         * Bytes written so far; only exact after {@link #align()}
+         */
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            align();
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package com.app.pdfstation.service.linearization;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a document as a linearized PDF (ISO 32000-1, Annex F), so a viewer
+ * reading over HTTP can show the first page from the first chunk of the file.
+ *
+ * Objects are renumbered and laid out as the annex orders them: the
+ * linearization dictionary and first-page cross-reference section, the
+ * catalog, the hint stream, everything the first page uses, then each other
+ * page with the objects only it uses, the objects several later pages share,
+ * and whatever remains, followed by the main cross-reference table. Inherited
+ * page attributes are pushed down onto the pages first, so no page depends on
+ * the page tree to be drawn.
+ *
+ * Every object is written at top level with classic cross-reference tables;
+ * object streams are not used. The document must not be encrypted: its
+ * strings and streams are copied as stored.
+ */
+public class Linearizer {
+
+    private static final List<COSName> INHERITABLE = List.of(
+            COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE);
+    private static final byte[] BINARY_MARKER = {'%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n'};
+    private static final String DELIMITERS = "()<>[]{}/%#";
+
+    private final PDDocument document;
+    // Indirect objects, by identity once resolved, and their new numbers
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<>();
+
+    public Linearizer(PDDocument document) {
+        this.document = document;
+    }
+
+    /**
+     * Write the linearized file
+     *
+     * @param scratch file for the serialized objects while the layout is worked out
+     */
+    public void write(Path output, Path scratch) throws IOException {
+        if (document.isEncrypted()) {
+            throw new IOException("Encrypted documents cannot be linearized");
+        }
+        COSDictionary trailer = document.getDocument().getTrailer();
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+        List<COSDictionary> pages = new ArrayList<>();
+        for (PDPage page : document.getPages()) {
+            pages.add(page.getCOSObject());
+        }
+        if (pages.isEmpty()) {
+            throw new IOException("A document without pages cannot be linearized");
+        }
+
+        Set<COSBase> treeNodes = pushInheritedAttributes(pages);
+        Set<COSBase> barriers = Collections.newSetFromMap(new IdentityHashMap<>());
+        barriers.addAll(pages);
+        barriers.addAll(treeNodes);
+        barriers.add(catalog);
+
+        // What each page uses, stopping at other pages and the page tree
+        List<List<COSBase>> used = new ArrayList<>();
+        Map<COSBase, Integer> laterUsers = new IdentityHashMap<>();
+        for (int i = 0; i < pages.size(); i++) {
+            List<COSBase> objects = reachable(pages.get(i), barriers, identitySet());
+            used.add(objects);
+            if (i > 0) {
+                for (COSBase object : objects) {
+                    laterUsers.merge(object, 1, Integer::sum);
+                }
+            }
+        }
+
+        // Part 6: the first page and everything it uses
+        List<COSBase> firstPage = new ArrayList<>();
+        firstPage.add(pages.get(0));
+        firstPage.addAll(used.get(0));
+        Set<COSBase> assigned = identitySet();
+        assigned.add(catalog);
+        assigned.addAll(firstPage);
+
+        // Part 7: each later page with what only it uses; part 8: what several later pages share
+        List<List<COSBase>> laterPages = new ArrayList<>();
+        List<COSBase> shared = new ArrayList<>();
+        for (int i = 1; i < pages.size(); i++) {
+            List<COSBase> section = new ArrayList<>();
+            section.add(pages.get(i));
+            assigned.add(pages.get(i));
+            for (COSBase object : used.get(i)) {
+                if (assigned.contains(object)) {
+                    continue;
+                }
+                assigned.add(object);
+                if (laterUsers.get(object) == 1) {
+                    section.add(object);
+                } else {
+                    shared.add(object);
+                }
+            }
+            laterPages.add(section);
+        }
+
+        // Part 9: the page tree, outlines, document information and the rest
+        List<COSBase> other = new ArrayList<>();
+        Set<COSBase> seen = identitySet();
+        seen.addAll(assigned);
+        other.addAll(reachable(catalog, Collections.emptySet(), seen));
+        COSBase info = trailer.getDictionaryObject(COSName.INFO);
+        if (info instanceof COSDictionary && seen.add(info)) {
+            other.add(info);
+            other.addAll(reachable(info, Collections.emptySet(), seen));
+        }
+
+        // Main section objects come first in number, the first-page section after them
+        List<COSBase> main = new ArrayList<>();
+        laterPages.forEach(main::addAll);
+        main.addAll(shared);
+        main.addAll(other);
+        for (COSBase object : main) {
+            numbers.put(object, numbers.size() + 1);
+        }
+        int linearizationNumber = main.size() + 1;
+        numbers.put(catalog, linearizationNumber + 1);
+        for (COSBase object : firstPage) {
+            numbers.put(object, numbers.size() + 2);
+        }
+        int hintNumber = linearizationNumber + 2 + firstPage.size();
+        int firstSectionCount = hintNumber - linearizationNumber + 1;
+
+        // Serialize once, in file order without the hint stream, remembering each length
+        List<COSBase> fileOrder = new ArrayList<>();
+        fileOrder.add(catalog);
+        fileOrder.addAll(firstPage);
+        fileOrder.addAll(main);
+        Map<COSBase, Long> lengths = new IdentityHashMap<>();
+        try (CountingOutputStream out = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(scratch)))) {
+            for (COSBase object : fileOrder) {
+                long start = out.count();
+                writeObject(numbers.get(object), object, out);
+                lengths.put(object, out.count() - start);
+            }
+        }
+
+        byte[] header = ("%PDF-" + String.format(Locale.ROOT, "%.1f", Math.max(1.2f, document.getVersion()))
+                + "\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] idArray = serialize(idArray(trailer));
+        Integer infoNumber = info != null ? numbers.get(info) : null;
+        // Both have fixed widths, so they can be sized before the offsets are known
+        int linearizationLength = linearizationDictionary(linearizationNumber, 0, 0, 0, 0, 0, 0, 0, 0).length;
+        int firstXrefLength = firstPageXref(linearizationNumber, firstSectionCount, new long[firstSectionCount],
+                hintNumber + 1, 0, numbers.get(catalog), infoNumber, idArray).length;
+
+        // Offsets as if the hint stream were absent, as the hint tables want them
+        long position = header.length + BINARY_MARKER.length + linearizationLength + firstXrefLength;
+        long hintOffset = position + lengths.get(catalog);
+        Map<COSBase, Long> offsets = new IdentityHashMap<>();
+        for (COSBase object : fileOrder) {
+            offsets.put(object, position);
+            position += lengths.get(object);
+        }
+
+        List<HintTables.Page> pageHints = new ArrayList<>();
+        Map<COSBase, Integer> sharedIds = new IdentityHashMap<>();
+        List<HintTables.SharedObject> sharedHints = new ArrayList<>();
+        for (COSBase object : firstPage) {
+            sharedIds.put(object, sharedHints.size());
+            sharedHints.add(new HintTables.SharedObject(lengths.get(object)));
+        }
+        for (COSBase object : shared) {
+            sharedIds.put(object, sharedHints.size());
+            sharedHints.add(new HintTables.SharedObject(lengths.get(object)));
+        }
+        pageHints.add(new HintTables.Page(offsets.get(firstPage.get(0)), sectionLength(firstPage, lengths),
+                firstPage.size(), List.of()));
+        for (int i = 0; i < laterPages.size(); i++) {
+            List<COSBase> section = laterPages.get(i);
+            List<Integer> sharedUsed = new ArrayList<>();
+            for (COSBase object : used.get(i + 1)) {
+                Integer id = sharedIds.get(object);
+                if (id != null) {
+                    sharedUsed.add(id);
+                }
+            }
+            pageHints.add(new HintTables.Page(offsets.get(section.get(0)), sectionLength(section, lengths),
+                    section.size(), sharedUsed));
+        }
+        HintTables hints = new HintTables(pageHints, sharedHints,
+                shared.isEmpty() ? 0 : numbers.get(shared.get(0)),
+                shared.isEmpty() ? 0 : offsets.get(shared.get(0)), firstPage.size());
+        byte[] hintStream = hintStreamObject(hintNumber, hints);
+
+        // Real offsets: everything after the catalog moves by the hint stream
+        long[] firstSectionOffsets = new long[firstSectionCount];
+        firstSectionOffsets[0] = header.length + BINARY_MARKER.length;
+        long firstXrefOffset = firstSectionOffsets[0] + linearizationLength;
+        firstSectionOffsets[1] = offsets.get(catalog);
+        for (COSBase object : firstPage) {
+            firstSectionOffsets[numbers.get(object) - linearizationNumber] = offsets.get(object) + hintStream.length;
+        }
+        firstSectionOffsets[firstSectionCount - 1] = hintOffset;
+        long endOfFirstPage = offsets.get(firstPage.get(firstPage.size() - 1))
+                + lengths.get(firstPage.get(firstPage.size() - 1)) + hintStream.length;
+        long mainXrefOffset = position + hintStream.length;
+
+        long[] mainOffsets = new long[main.size() + 1];
+        for (COSBase object : main) {
+            mainOffsets[numbers.get(object)] = offsets.get(object) + hintStream.length;
+        }
+        byte[] mainXref = mainXref(mainOffsets, firstXrefOffset);
+        long fileLength = mainXrefOffset + mainXref.length;
+        // The white-space before the first entry of the main table
+        long firstMainEntry = mainXrefOffset + ("xref\n0 " + mainOffsets.length).length();
+
+        byte[] linearization = linearizationDictionary(linearizationNumber, fileLength, hintOffset,
+                hintStream.length, numbers.get(firstPage.get(0)), endOfFirstPage, pages.size(), firstMainEntry,
+                linearizationLength);
+        byte[] firstXref = firstPageXref(linearizationNumber, firstSectionCount, firstSectionOffsets,
+                hintNumber + 1, mainXrefOffset, numbers.get(catalog), infoNumber, idArray);
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output));
+                InputStream objects = new BufferedInputStream(Files.newInputStream(scratch))) {
+            out.write(header);
+            out.write(BINARY_MARKER);
+            out.write(linearization);
+            out.write(firstXref);
+            out.write(objects.readNBytes(lengths.get(catalog).intValue()));
+            out.write(hintStream);
+            objects.transferTo(out);
+            out.write(mainXref);
+        }
+    }
+
+    /**
+     * Give every page the Resources, MediaBox, CropBox and Rotate it inherits, and
+     * take them off the page tree nodes. Returns the tree nodes above the pages.
+     */
+    private static Set<COSBase> pushInheritedAttributes(List<COSDictionary> pages) {
+        Set<COSBase> nodes = identitySet();
+        for (COSDictionary page : pages) {
+            List<COSDictionary> ancestors = new ArrayList<>();
+            COSDictionary node = page.getCOSDictionary(COSName.PARENT);
+            while (node != null && !ancestors.contains(node)) {
+                ancestors.add(node);
+                node = node.getCOSDictionary(COSName.PARENT);
+            }
+            nodes.addAll(ancestors);
+            for (COSName key : INHERITABLE) {
+                if (page.containsKey(key)) {
+                    continue;
+                }
+                for (COSDictionary ancestor : ancestors) {
+                    if (ancestor.containsKey(key)) {
+                        page.setItem(key, ancestor.getItem(key));
+                        break;
+                    }
+                }
+            }
+        }
+        for (COSBase node : nodes) {
+            for (COSName key : INHERITABLE) {
+                ((COSDictionary) node).removeItem(key);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Indirect objects reachable from start, without passing through any in
+     * stopAt or already in seen, in the order first reached
+     */
+    private static List<COSBase> reachable(COSBase start, Set<COSBase> stopAt, Set<COSBase> seen) {
+        List<COSBase> found = new ArrayList<>();
+        Deque<COSBase> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            List<COSBase> children = children(stack.pop());
+            for (int i = children.size() - 1; i >= 0; i--) {
+                COSBase child = children.get(i);
+                boolean indirect = child instanceof COSObject || child instanceof COSStream;
+                child = resolve(child);
+                if (child == null) {
+                    continue;
+                }
+                if (!indirect) {
+                    stack.push(child);
+                } else if (!stopAt.contains(child) && seen.add(child)) {
+                    found.add(child);
+                    stack.push(child);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static List<COSBase> children(COSBase base) {
+        if (base instanceof COSStream stream) {
+            // Stream lengths are written in place, so an indirect /Length is dropped
+            List<COSBase> values = new ArrayList<>();
+            for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+                if (!COSName.LENGTH.equals(entry.getKey())) {
+                    values.add(entry.getValue());
+                }
+            }
+            return values;
+        }
+        if (base instanceof COSDictionary dictionary) {
+            return new ArrayList<>(dictionary.getValues());
+        }
+        if (base instanceof COSArray array) {
+            List<COSBase> items = new ArrayList<>(array.size());
+            for (int i = 0; i < array.size(); i++) {
+                items.add(array.get(i));
+            }
+            return items;
+        }
+        return List.of();
+    }
+
+    private static COSBase resolve(COSBase base) {
+        if (base instanceof COSObject object) {
+            base = object.getObject();
+        }
+        return base instanceof COSNull ? null : base;
+    }
+
+    private static long sectionLength(List<COSBase> section, Map<COSBase, Long> lengths) {
+        long length = 0;
+        for (COSBase object : section) {
+            length += lengths.get(object);
+        }
+        return length;
+    }
+
+    private void writeObject(int number, COSBase object, OutputStream out) throws IOException {
+        out.write((number + " 0 obj\n").getBytes(StandardCharsets.US_ASCII));
+        if (object instanceof COSStream stream) {
+            writeStream(stream, out);
+        } else {
+            writeDirect(object, out);
+        }
+        out.write("\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void writeStream(COSStream stream, OutputStream out) throws IOException {
+        // The raw data is copied as stored; only its length is restated
+        byte[] data;
+        try (InputStream in = stream.createRawInputStream()) {
+            data = in.readAllBytes();
+        }
+        out.write("<<".getBytes(StandardCharsets.US_ASCII));
+        for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+            if (!COSName.LENGTH.equals(entry.getKey())) {
+                writeName(entry.getKey(), out);
+                out.write(' ');
+                writeDirect(entry.getValue(), out);
+            }
+        }
+        out.write(("/Length " + data.length + ">>\nstream\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(data);
+        out.write("\nendstream".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Write a value in place, or a reference if it is an indirect object
+     */
+    private void writeDirect(COSBase base, OutputStream out) throws IOException {
+        if (base instanceof COSObject || base instanceof COSStream) {
+            COSBase target = resolve(base);
+            Integer number = target != null ? numbers.get(target) : null;
+            out.write((number != null ? number + " 0 R" : "null").getBytes(StandardCharsets.US_ASCII));
+        } else if (base instanceof COSDictionary dictionary) {
+            out.write("<<".getBytes(StandardCharsets.US_ASCII));
+            for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+                writeName(entry.getKey(), out);
+                out.write(' ');
+                writeDirect(entry.getValue(), out);
+            }
+            out.write(">>".getBytes(StandardCharsets.US_ASCII));
+        } else if (base instanceof COSArray array) {
+            out.write('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    out.write(' ');
+                }
+                writeDirect(array.get(i), out);
+            }
+            out.write(']');
+        } else if (base instanceof COSName name) {
+            writeName(name, out);
+        } else if (base instanceof COSString string) {
+            out.write('<');
+            out.write(HexFormat.of().formatHex(string.getBytes()).getBytes(StandardCharsets.US_ASCII));
+            out.write('>');
+        } else if (base instanceof COSInteger integer) {
+            out.write(Long.toString(integer.longValue()).getBytes(StandardCharsets.US_ASCII));
+        } else if (base instanceof COSFloat number) {
+            out.write(formatReal(number.floatValue()).getBytes(StandardCharsets.US_ASCII));
+        } else if (base instanceof COSBoolean bool) {
+            out.write((bool.getValue() ? "true" : "false").getBytes(StandardCharsets.US_ASCII));
+        } else {
+            out.write("null".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void writeName(COSName name, OutputStream out) throws IOException {
+        out.write('/');
+        for (byte b : name.getName().getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if (c < 0x21 || c > 0x7E || DELIMITERS.indexOf(c) >= 0) {
+                out.write(String.format("#%02X", c).getBytes(StandardCharsets.US_ASCII));
+            } else {
+                out.write(c);
+            }
+        }
+    }
+
+    private static String formatReal(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return "0";
+        }
+        return new BigDecimal(Float.toString(value)).stripTrailingZeros().toPlainString();
+    }
+
+    private byte[] serialize(COSBase base) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeDirect(base, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * The document's file identifier, or a new random one
+     */
+    private static COSArray idArray(COSDictionary trailer) {
+        COSArray id = trailer.getCOSArray(COSName.ID);
+        if (id != null && id.size() == 2) {
+            return id;
+        }
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        id = new COSArray();
+        id.add(new COSString(random));
+        id.add(new COSString(random));
+        return id;
+    }
+
+    /**
+     * Numbers are zero-padded to ten digits so the dictionary's length does not
+     * depend on them
+     */
+    private static byte[] linearizationDictionary(int number, long fileLength, long hintOffset, long hintLength,
+            int firstPageNumber, long endOfFirstPage, int pageCount, long firstMainEntry, int length) {
+        String dictionary = String.format(Locale.ROOT,
+                "%d 0 obj\n<</Linearized 1/L %010d/H[%010d %010d]/O %010d/E %010d/N %010d/T %010d>>",
+                number, fileLength, hintOffset, hintLength, firstPageNumber, endOfFirstPage, pageCount,
+                firstMainEntry);
+        String end = "\nendobj\n";
+        StringBuilder padded = new StringBuilder(dictionary);
+        while (padded.length() + end.length() < length) {
+            padded.append(' ');
+        }
+        return padded.append(end).toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] firstPageXref(int first, int count, long[] offsets, int size, long mainXrefOffset,
+            int catalogNumber, Integer infoNumber, byte[] idArray) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("xref\n" + first + " " + count + "\n").getBytes(StandardCharsets.US_ASCII));
+        for (long offset : offsets) {
+            out.write(String.format(Locale.ROOT, "%010d 00000 n\r\n", offset).getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(String.format(Locale.ROOT, "trailer\n<</Size %d/Prev %010d/Root %d 0 R", size, mainXrefOffset,
+                catalogNumber).getBytes(StandardCharsets.US_ASCII));
+        if (infoNumber != null) {
+            out.write(("/Info " + infoNumber + " 0 R").getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write("/ID".getBytes(StandardCharsets.US_ASCII));
+        out.write(idArray);
+        out.write(">>\nstartxref\n0\n%%EOF\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static byte[] mainXref(long[] offsets, long firstXrefOffset) {
+        StringBuilder xref = new StringBuilder("xref\n0 ").append(offsets.length).append('\n');
+        xref.append("0000000000 65535 f\r\n");
+        for (int i = 1; i < offsets.length; i++) {
+            xref.append(String.format(Locale.ROOT, "%010d 00000 n\r\n", offsets[i]));
+        }
+        xref.append("trailer\n<</Size ").append(offsets.length).append(">>\nstartxref\n")
+                .append(firstXrefOffset).append("\n%%EOF\n");
+        return xref.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] hintStreamObject(int number, HintTables hints) throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.BEST_COMPRESSION))) {
+            out.write(hints.data());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(String.format(Locale.ROOT, "%d 0 obj\n<</Filter/FlateDecode/S %d/Length %d>>\nstream\n",
+                number, hints.sharedTableOffset(), deflated.size()).getBytes(StandardCharsets.US_ASCII));
+        deflated.writeTo(out);
+        out.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static Set<COSBase> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long count() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
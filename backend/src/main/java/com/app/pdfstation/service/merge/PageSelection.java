@@ -0,0 +1,191 @@
+package com.app.pdfstation.service.merge;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+
+import java.util.*;
+
+/**
+ * The pages a merge takes from one source, in the order they are taken, e.g.
+ * "3-5,1". Page numbers start at 1 and each page may be taken once. Ranges are
+ * kept as given and only expanded against the source's real page count.
+ */
+public record PageSelection(List<Range> ranges) {
+
+    /**
+     * Pages start to end, both included
+     */
+    public record Range(int start, int end) {
+    }
+
+    // Catalog entries that point into the page list; a trimmed source drops them
+    private static final List<COSName> PAGE_NAVIGATION = List.of(
+            COSName.OUTLINES, COSName.DESTS, COSName.NAMES, COSName.OPEN_ACTION, COSName.PAGE_LABELS,
+            COSName.STRUCT_TREE_ROOT, COSName.MARK_INFO, COSName.THREADS);
+
+    /**
+     * Parse a selection such as "3-5,1"
+     *
+     * @throws IllegalArgumentException if it is malformed or takes a page twice
+     */
+    public static PageSelection parse(String ranges) {
+        List<Range> parsed = new ArrayList<>();
+        for (String part : ranges.split(",")) {
+            String range = part.trim();
+            int dash = range.indexOf('-');
+            int start;
+            int end;
+            try {
+                start = Integer.parseInt((dash < 0 ? range : range.substring(0, dash)).trim());
+                end = dash < 0 ? start : Integer.parseInt(range.substring(dash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page range: " + range);
+            }
+            if (start < 1 || end < start) {
+                throw new IllegalArgumentException("Invalid page range: " + range);
+            }
+            parsed.add(new Range(start, end));
+        }
+
+        List<Range> sorted = new ArrayList<>(parsed);
+        sorted.sort(Comparator.comparingInt(Range::start));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).start() <= sorted.get(i - 1).end()) {
+                throw new IllegalArgumentException("Page " + sorted.get(i).start() + " is selected twice in: "
+                        + ranges);
+            }
+        }
+        return new PageSelection(List.copyOf(parsed));
+    }
+
+    /**
+     * Parse one selection per source, separated by ';', e.g. "3-5;;1". An empty
+     * selection takes the whole source and is returned as null.
+     *
+     * @throws IllegalArgumentException if there is not one selection per source
+     */
+    public static List<PageSelection> parseAll(String perSource, int sources) {
+        String[] selections = perSource.split(";", -1);
+        if (selections.length != sources) {
+            throw new IllegalArgumentException("Expected page ranges for " + sources + " files, got "
+                    + selections.length);
+        }
+        List<PageSelection> parsed = new ArrayList<>();
+        for (String selection : selections) {
+            parsed.add(selection.isBlank() ? null : parse(selection));
+        }
+        return parsed;
+    }
+
+    /**
+     * Trim a source to the selected pages, in order, so that appending it copies
+     * only them and what they use. Outlines, named destinations, page labels and
+     * the structure tree refer to the whole page list and are dropped, as are form
+     * fields and link targets on pages that are not taken.
+     *
+     * @throws IllegalArgumentException if the source has fewer pages than selected
+     */
+    public void applyTo(PDDocument source) {
+        PDPageTree tree = source.getPages();
+        int count = tree.getCount();
+        for (Range range : ranges) {
+            if (range.end() > count) {
+                throw new IllegalArgumentException("Page " + range.end() + " is beyond the last page, " + count);
+            }
+        }
+        List<PDPage> selected = new ArrayList<>();
+        for (Range range : ranges) {
+            for (int page = range.start(); page <= range.end(); page++) {
+                PDPage kept = tree.get(page - 1);
+                // Pin what the page inherits before it leaves its place in the tree
+                kept.setResources(kept.getResources());
+                kept.setMediaBox(kept.getMediaBox());
+                kept.setCropBox(kept.getCropBox());
+                kept.setRotation(kept.getRotation());
+                selected.add(kept);
+            }
+        }
+
+        Set<COSDictionary> keptPages = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<COSDictionary> keptAnnotations = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PDPage page : selected) {
+            keptPages.add(page.getCOSObject());
+        }
+        for (PDPage page : selected) {
+            COSArray annotations = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+            for (int i = 0; annotations != null && i < annotations.size(); i++) {
+                if (annotations.getObject(i) instanceof COSDictionary annotation) {
+                    keptAnnotations.add(annotation);
+                    dropLinksOutside(annotation, keptPages);
+                }
+            }
+        }
+
+        PDDocumentCatalog catalog = source.getDocumentCatalog();
+        COSDictionary root = new COSDictionary();
+        root.setItem(COSName.TYPE, COSName.PAGES);
+        root.setItem(COSName.KIDS, new COSArray());
+        root.setInt(COSName.COUNT, 0);
+        catalog.getCOSObject().setItem(COSName.PAGES, root);
+        PDPageTree trimmed = source.getPages();
+        for (PDPage page : selected) {
+            trimmed.add(page);
+        }
+
+        for (COSName key : PAGE_NAVIGATION) {
+            catalog.getCOSObject().removeItem(key);
+        }
+        COSDictionary form = catalog.getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+        if (form != null) {
+            COSArray fields = form.getCOSArray(COSName.FIELDS);
+            if (fields != null) {
+                form.setItem(COSName.FIELDS, keepFields(fields, keptAnnotations));
+            }
+        }
+    }
+
+    /**
+     * Remove the target of a link that leads to a page not taken, so appending
+     * the source does not copy that page along with it
+     */
+    private static void dropLinksOutside(COSDictionary annotation, Set<COSDictionary> keptPages) {
+        if (leadsOutside(annotation.getDictionaryObject(COSName.DEST), keptPages)) {
+            annotation.removeItem(COSName.DEST);
+        }
+        if (annotation.getDictionaryObject(COSName.A) instanceof COSDictionary action
+                && leadsOutside(action.getDictionaryObject(COSName.D), keptPages)) {
+            annotation.removeItem(COSName.A);
+        }
+    }
+
+    private static boolean leadsOutside(COSBase destination, Set<COSDictionary> keptPages) {
+        return destination instanceof COSArray array && array.size() > 0
+                && array.getObject(0) instanceof COSDictionary page && !keptPages.contains(page);
+    }
+
+    /**
+     * The fields with a widget on a kept page, with their other widgets pruned
+     */
+    private static COSArray keepFields(COSArray fields, Set<COSDictionary> keptAnnotations) {
+        COSArray kept = new COSArray();
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.getObject(i) instanceof COSDictionary field && keepField(field, keptAnnotations)) {
+                kept.add(fields.get(i));
+            }
+        }
+        return kept;
+    }
+
+    private static boolean keepField(COSDictionary field, Set<COSDictionary> keptAnnotations) {
+        COSArray kids = field.getCOSArray(COSName.KIDS);
+        if (kids == null) {
+            return keptAnnotations.contains(field);
+        }
+        COSArray keptKids = keepFields(kids, keptAnnotations);
+        field.setItem(COSName.KIDS, keptKids);
+        return keptKids.size() > 0;
+    }
+}
@@ -0,0 +1,431 @@
+package com.app.pdfstation.service.merge;
+
+import com.app.pdfstation.service.compression.DuplicateStreamIndex;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.app.pdfstation.service.compression.ByteSizes.humanReadable;
+
+/**
+ * Shares fonts, images and ICC profiles between the sources of one merge.
+ *
+ * Before a source is appended, the resources of its pages (and of the forms and
+ * Type 3 fonts they use) are looked up in a {@link DuplicateStreamIndex} of the
+ * merged document. Each one identical to a resource already there is swapped
+ * for a small placeholder, so the import copies the placeholder and never the
+ * resource; after the append, the placeholders are pointed at the existing
+ * instances. The resources that did get imported are then fingerprinted into
+ * the index, and any that repeat within the same source are pointed at their
+ * first copy, which leaves the rest unreferenced and never written. Font
+ * dictionaries are matched as a whole, with their programs by content; a font
+ * that differs only in its dictionary still shares its program.
+ */
+public class SharedResources {
+
+    private static final List<COSName> FONT_FILES = List.of(
+            COSName.FONT_FILE, COSName.FONT_FILE2, COSName.FONT_FILE3);
+
+    // Marks a placeholder with the number of the resource it stands for
+    private static final COSName PLACEHOLDER = COSName.getPDFName("PdfStationShared");
+
+    private final DuplicateStreamIndex streams = new DuplicateStreamIndex();
+    private final Map<String, COSDictionary> fonts = new HashMap<>();
+    private final Map<COSDictionary, COSDictionary> sharedFonts = new IdentityHashMap<>();
+    private final Set<COSDictionary> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Resources of the merged document standing in for placeholders of the source being appended
+    private final List<COSBase> placed = new ArrayList<>();
+    private final Map<COSBase, COSDictionary> placeholders = new IdentityHashMap<>();
+    private final Set<COSDictionary> prepared = Collections.newSetFromMap(new IdentityHashMap<>());
+    // What each font and stream of the source was prepared as: a placeholder, or itself
+    private final Map<COSDictionary, COSBase> preparedAs = new IdentityHashMap<>();
+    private final Map<String, Integer> reused = new TreeMap<>();
+    private long savedBytes = 0;
+
+    /**
+     * Before the source is appended, swap every resource of its pages that the
+     * merged document already holds for a placeholder
+     */
+    public void prepare(PDDocument source) throws IOException {
+        for (int i = 0; i < source.getNumberOfPages(); i++) {
+            prepareResources(source.getPage(i).getCOSObject().getCOSDictionary(COSName.RESOURCES));
+        }
+        prepared.clear();
+        preparedAs.clear();
+    }
+
+    /**
+     * Once the source is appended, resolve its placeholders and share the resources
+     * of the document's pages from firstPage on with those imported before them
+     */
+    public void shareFrom(PDDocument document, int firstPage) throws IOException {
+        for (int i = firstPage; i < document.getNumberOfPages(); i++) {
+            shareResources(document.getPage(i).getCOSObject().getCOSDictionary(COSName.RESOURCES));
+        }
+        placed.clear();
+        placeholders.clear();
+    }
+
+    /**
+     * Resources pointed at an earlier instance, by kind
+     */
+    public Map<String, Integer> getReused() {
+        return reused;
+    }
+
+    /**
+     * Stream bytes that are no longer written
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return reused + ", " + humanReadable(savedBytes) + " of streams";
+    }
+
+    private void prepareResources(COSDictionary resources) throws IOException {
+        if (resources == null || !prepared.add(resources)) {
+            return;
+        }
+        COSDictionary fontResources = resources.getCOSDictionary(COSName.FONT);
+        if (fontResources != null) {
+            for (COSName key : new ArrayList<>(fontResources.keySet())) {
+                if (fontResources.getDictionaryObject(key) instanceof COSDictionary font) {
+                    COSBase known = prepareFont(font);
+                    if (known != font) {
+                        fontResources.setItem(key, known);
+                    }
+                }
+            }
+        }
+        COSDictionary xObjects = resources.getCOSDictionary(COSName.XOBJECT);
+        if (xObjects != null) {
+            for (COSName key : new ArrayList<>(xObjects.keySet())) {
+                if (xObjects.getDictionaryObject(key) instanceof COSStream xObject) {
+                    COSBase known = prepareXObject(xObject);
+                    if (known != xObject) {
+                        xObjects.setItem(key, known);
+                    }
+                }
+            }
+        }
+        COSDictionary colorSpaces = resources.getCOSDictionary(COSName.COLORSPACE);
+        if (colorSpaces != null) {
+            for (COSName key : colorSpaces.keySet()) {
+                prepareColorSpace(colorSpaces.getDictionaryObject(key));
+            }
+        }
+    }
+
+    /**
+     * A placeholder for the font if the merged document holds it; otherwise the
+     * font itself, with its programs prepared
+     */
+    private COSBase prepareFont(COSDictionary font) throws IOException {
+        COSBase done = preparedAs.get(font);
+        if (done != null) {
+            return done;
+        }
+        COSDictionary known = fonts.get(streams.describeKnown(font));
+        if (known != null) {
+            countFontPrograms(font);
+            count("Font");
+            COSDictionary placeholder = placeholder(known);
+            preparedAs.put(font, placeholder);
+            return placeholder;
+        }
+        preparedAs.put(font, font);
+        prepareFontPrograms(font.getCOSDictionary(COSName.FONT_DESC));
+        COSArray descendants = font.getCOSArray(COSName.DESCENDANT_FONTS);
+        if (descendants != null) {
+            for (int i = 0; i < descendants.size(); i++) {
+                if (descendants.getObject(i) instanceof COSDictionary descendant) {
+                    prepareFontPrograms(descendant.getCOSDictionary(COSName.FONT_DESC));
+                }
+            }
+        }
+        prepareResources(font.getCOSDictionary(COSName.RESOURCES));
+        return font;
+    }
+
+    /**
+     * Count the programs of a font that is not imported at all
+     */
+    private void countFontPrograms(COSDictionary font) {
+        List<COSDictionary> descriptors = new ArrayList<>();
+        descriptors.add(font.getCOSDictionary(COSName.FONT_DESC));
+        COSArray descendants = font.getCOSArray(COSName.DESCENDANT_FONTS);
+        if (descendants != null) {
+            for (int i = 0; i < descendants.size(); i++) {
+                if (descendants.getObject(i) instanceof COSDictionary descendant) {
+                    descriptors.add(descendant.getCOSDictionary(COSName.FONT_DESC));
+                }
+            }
+        }
+        for (COSDictionary descriptor : descriptors) {
+            for (COSName key : FONT_FILES) {
+                if (descriptor != null && descriptor.getDictionaryObject(key) instanceof COSStream program) {
+                    count("FontFile");
+                    savedBytes += program.getLength();
+                }
+            }
+        }
+    }
+
+    private void prepareFontPrograms(COSDictionary descriptor) throws IOException {
+        if (descriptor == null) {
+            return;
+        }
+        for (COSName key : FONT_FILES) {
+            if (descriptor.getDictionaryObject(key) instanceof COSStream program) {
+                COSBase known = prepareStream(program, "FontFile");
+                if (known != program) {
+                    descriptor.setItem(key, known);
+                }
+            }
+        }
+    }
+
+    /**
+     * A placeholder for the XObject if the merged document holds it; otherwise the
+     * XObject itself, with what it uses prepared
+     */
+    private COSBase prepareXObject(COSStream xObject) throws IOException {
+        COSBase done = preparedAs.get(xObject);
+        if (done != null) {
+            return done;
+        }
+        COSName subtype = xObject.getCOSName(COSName.SUBTYPE);
+        if (!COSName.FORM.equals(subtype) && !COSName.IMAGE.equals(subtype)) {
+            return xObject;
+        }
+        COSBase known = prepareStream(xObject, COSName.FORM.equals(subtype) ? "Form" : "Image");
+        if (known != xObject) {
+            return known;
+        }
+        if (COSName.FORM.equals(subtype)) {
+            prepareResources(xObject.getCOSDictionary(COSName.RESOURCES));
+        } else {
+            prepareColorSpace(xObject.getDictionaryObject(COSName.COLORSPACE));
+            if (xObject.getDictionaryObject(COSName.SMASK) instanceof COSStream mask) {
+                COSBase knownMask = prepareStream(mask, "SMask");
+                if (knownMask != mask) {
+                    xObject.setItem(COSName.SMASK, knownMask);
+                }
+            }
+        }
+        return xObject;
+    }
+
+    private void prepareColorSpace(COSBase colorSpace) throws IOException {
+        if (!(colorSpace instanceof COSArray array) || array.size() < 2) {
+            return;
+        }
+        if (COSName.ICCBASED.equals(array.getObject(0)) && array.getObject(1) instanceof COSStream profile) {
+            COSBase known = prepareStream(profile, "ICCBased");
+            if (known != profile) {
+                array.set(1, known);
+            }
+            return;
+        }
+        for (int i = 1; i < array.size(); i++) {
+            if (array.getObject(i) instanceof COSArray nested) {
+                prepareColorSpace(nested);
+            }
+        }
+    }
+
+    /**
+     * A placeholder for the stream if the merged document holds it, or the stream
+     */
+    private COSBase prepareStream(COSStream stream, String kind) throws IOException {
+        COSBase done = preparedAs.get(stream);
+        if (done != null) {
+            return done;
+        }
+        COSStream known = streams.find(stream);
+        if (known == null) {
+            preparedAs.put(stream, stream);
+            return stream;
+        }
+        count(kind);
+        savedBytes += stream.getLength();
+        COSDictionary placeholder = placeholder(known);
+        preparedAs.put(stream, placeholder);
+        return placeholder;
+    }
+
+    /**
+     * One placeholder per resource, so the import copies it once however often it is used
+     */
+    private COSDictionary placeholder(COSBase known) {
+        return placeholders.computeIfAbsent(known, k -> {
+            COSDictionary placeholder = new COSDictionary();
+            placeholder.setInt(PLACEHOLDER, placed.size());
+            placed.add(k);
+            return placeholder;
+        });
+    }
+
+    /**
+     * The resource an imported placeholder stands for, or null if the value is none
+     */
+    private COSBase resolve(COSBase value) {
+        if (value instanceof COSObject object) {
+            value = object.getObject();
+        }
+        if (value instanceof COSDictionary dictionary && !(value instanceof COSStream)
+                && dictionary.containsKey(PLACEHOLDER)) {
+            return placed.get(dictionary.getInt(PLACEHOLDER));
+        }
+        return null;
+    }
+
+    private void shareResources(COSDictionary resources) throws IOException {
+        if (resources == null || !visited.add(resources)) {
+            return;
+        }
+        COSDictionary fontResources = resources.getCOSDictionary(COSName.FONT);
+        if (fontResources != null) {
+            for (COSName key : new ArrayList<>(fontResources.keySet())) {
+                COSBase known = resolve(fontResources.getItem(key));
+                if (known != null) {
+                    fontResources.setItem(key, known);
+                } else if (fontResources.getDictionaryObject(key) instanceof COSDictionary font) {
+                    COSDictionary shared = shareFont(font);
+                    if (shared != font) {
+                        fontResources.setItem(key, shared);
+                    }
+                }
+            }
+        }
+        COSDictionary xObjects = resources.getCOSDictionary(COSName.XOBJECT);
+        if (xObjects != null) {
+            for (COSName key : new ArrayList<>(xObjects.keySet())) {
+                COSBase known = resolve(xObjects.getItem(key));
+                if (known != null) {
+                    xObjects.setItem(key, known);
+                } else if (xObjects.getDictionaryObject(key) instanceof COSStream xObject) {
+                    COSStream shared = shareXObject(xObject);
+                    if (shared != xObject) {
+                        xObjects.setItem(key, shared);
+                    }
+                }
+            }
+        }
+        COSDictionary colorSpaces = resources.getCOSDictionary(COSName.COLORSPACE);
+        if (colorSpaces != null) {
+            for (COSName key : colorSpaces.keySet()) {
+                shareColorSpace(colorSpaces.getDictionaryObject(key));
+            }
+        }
+    }
+
+    private COSDictionary shareFont(COSDictionary font) throws IOException {
+        COSDictionary known = sharedFonts.get(font);
+        if (known != null) {
+            return known;
+        }
+        shareFontPrograms(font.getCOSDictionary(COSName.FONT_DESC));
+        COSArray descendants = font.getCOSArray(COSName.DESCENDANT_FONTS);
+        if (descendants != null) {
+            for (int i = 0; i < descendants.size(); i++) {
+                if (descendants.getObject(i) instanceof COSDictionary descendant) {
+                    shareFontPrograms(descendant.getCOSDictionary(COSName.FONT_DESC));
+                }
+            }
+        }
+        // Type 3 glyphs may draw images of their own
+        shareResources(font.getCOSDictionary(COSName.RESOURCES));
+
+        COSDictionary shared = fonts.putIfAbsent(streams.describe(font), font);
+        if (shared != null) {
+            count("Font");
+        } else {
+            shared = font;
+        }
+        sharedFonts.put(font, shared);
+        return shared;
+    }
+
+    private void shareFontPrograms(COSDictionary descriptor) throws IOException {
+        if (descriptor == null) {
+            return;
+        }
+        for (COSName key : FONT_FILES) {
+            COSBase known = resolve(descriptor.getItem(key));
+            if (known != null) {
+                descriptor.setItem(key, known);
+            } else if (descriptor.getDictionaryObject(key) instanceof COSStream program) {
+                COSStream shared = share(program, "FontFile");
+                if (shared != program) {
+                    descriptor.setItem(key, shared);
+                }
+            }
+        }
+    }
+
+    private COSStream shareXObject(COSStream xObject) throws IOException {
+        if (COSName.FORM.equals(xObject.getCOSName(COSName.SUBTYPE))) {
+            shareResources(xObject.getCOSDictionary(COSName.RESOURCES));
+            return share(xObject, "Form");
+        }
+        if (COSName.IMAGE.equals(xObject.getCOSName(COSName.SUBTYPE))) {
+            shareColorSpace(xObject.getDictionaryObject(COSName.COLORSPACE));
+            COSBase knownMask = resolve(xObject.getItem(COSName.SMASK));
+            if (knownMask != null) {
+                xObject.setItem(COSName.SMASK, knownMask);
+            } else if (xObject.getDictionaryObject(COSName.SMASK) instanceof COSStream mask) {
+                COSStream shared = share(mask, "SMask");
+                if (shared != mask) {
+                    xObject.setItem(COSName.SMASK, shared);
+                }
+            }
+            return share(xObject, "Image");
+        }
+        return xObject;
+    }
+
+    /**
+     * Share the ICC profiles of a colour space array, including an Indexed base
+     */
+    private void shareColorSpace(COSBase colorSpace) throws IOException {
+        if (!(colorSpace instanceof COSArray array) || array.size() < 2) {
+            return;
+        }
+        COSBase knownProfile = COSName.ICCBASED.equals(array.getObject(0)) ? resolve(array.get(1)) : null;
+        if (knownProfile != null) {
+            array.set(1, knownProfile);
+            return;
+        }
+        if (COSName.ICCBASED.equals(array.getObject(0)) && array.getObject(1) instanceof COSStream profile) {
+            COSStream shared = share(profile, "ICCBased");
+            if (shared != profile) {
+                array.set(1, shared);
+            }
+            return;
+        }
+        for (int i = 1; i < array.size(); i++) {
+            if (array.getObject(i) instanceof COSArray nested) {
+                shareColorSpace(nested);
+            }
+        }
+    }
+
+    private COSStream share(COSStream stream, String kind) throws IOException {
+        COSStream shared = streams.canonical(stream);
+        if (shared != stream) {
+            count(kind);
+            savedBytes += stream.getLength();
+        }
+        return shared;
+    }
+
+    private void count(String kind) {
+        reused.merge(kind, 1, Integer::sum);
+    }
+}
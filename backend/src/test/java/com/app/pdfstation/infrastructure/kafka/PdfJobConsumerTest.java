@@ -0,0 +1,104 @@
+package com.app.pdfstation.infrastructure.kafka;
+
+import com.app.pdfstation.constants.PdfStationConstants;
+import com.app.pdfstation.domain.entity.PdfJob;
+import com.app.pdfstation.domain.repository.PdfJobRepository;
+import com.app.pdfstation.infrastructure.storage.FileStorageService;
+import com.app.pdfstation.service.PdfMergeService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class PdfJobConsumerTest {
+
+    @Mock
+    private PdfJobRepository jobRepository;
+    @Mock
+    private PdfJobStatusProducer statusProducer;
+    @Mock
+    private FileStorageService storageService;
+    @Mock
+    private PdfMergeService mergeService;
+
+    @InjectMocks
+    private PdfJobConsumer consumer;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testCloseEventAfterSessionCompletedDoesNotMergeAgain() throws Exception {
+        UUID id = UUID.randomUUID();
+        PdfJob session = PdfJob.builder()
+                .id(id)
+                .operation(PdfStationConstants.OPERATION_MERGE_SESSION)
+                .status(PdfStationConstants.STATUS_CLOSING)
+                .inputPaths(new ArrayList<>(List.of("a.pdf", "b.pdf")))
+                .build();
+        String sessionDir = tempDir.resolve("session_" + id).toString();
+        String outputPath = tempDir.resolve("merged_" + id + ".pdf").toString();
+        when(jobRepository.findById(id)).thenReturn(Optional.of(session));
+        when(storageService.generateMergeSessionDir(id)).thenReturn(sessionDir);
+        when(storageService.generateMergedOutputPath(id)).thenReturn(outputPath);
+        when(mergeService.foldSession(any(), any(), eq(Path.of(sessionDir)))).thenReturn(2);
+
+        // The last append was closed before its event was handled, so that event finishes the session
+        consumer.consume(new PdfJobCreatedEvent(id, PdfStationConstants.OPERATION_MERGE_SESSION, null));
+        assertEquals(PdfStationConstants.STATUS_COMPLETED, session.getStatus());
+
+        // and the close event that follows finds nothing left to do
+        consumer.consume(new PdfJobCreatedEvent(id, PdfStationConstants.OPERATION_MERGE_SESSION, null));
+
+        verify(storageService, times(1)).generateMergeSessionDir(id);
+        verify(mergeService, times(1)).foldSession(any(), any(), any());
+        verify(mergeService, times(1)).finishSession(any(), anyString());
+        verify(jobRepository, times(1)).updateMergeFoldedCount(eq(id), anyInt());
+        verify(jobRepository, times(1)).save(session);
+        assertEquals(outputPath, session.getOutputPath());
+    }
+
+    @Test
+    void testFailedFoldDoesNotWriteBackTheSession() throws Exception {
+        UUID id = UUID.randomUUID();
+        PdfJob session = PdfJob.builder()
+                .id(id)
+                .operation(PdfStationConstants.OPERATION_MERGE_SESSION)
+                .status(PdfStationConstants.STATUS_OPEN)
+                .inputPaths(new ArrayList<>(List.of("a.pdf")))
+                .build();
+        String sessionDir = tempDir.resolve("session_" + id).toString();
+        when(jobRepository.findById(id)).thenReturn(Optional.of(session));
+        when(storageService.generateMergeSessionDir(id)).thenReturn(sessionDir);
+        when(mergeService.foldSession(any(), any(), eq(Path.of(sessionDir))))
+                .thenThrow(new IOException("Broken source"));
+
+        // Appends may be landing meanwhile, so the failure touches only the retry count
+        assertThrows(IOException.class, () -> consumer.consume(
+                new PdfJobCreatedEvent(id, PdfStationConstants.OPERATION_MERGE_SESSION, null)));
+
+        verify(jobRepository, times(1)).incrementRetryCount(id);
+        verify(jobRepository, never()).save(any());
+    }
+}
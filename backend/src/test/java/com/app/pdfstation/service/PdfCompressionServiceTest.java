@@ -0,0 +1,1013 @@
+package com.app.pdfstation.service;
+
+import com.app.pdfstation.config.CompressionProperties;
+import com.app.pdfstation.service.compression.CompressionReport;
+import com.app.pdfstation.service.compression.ImageCache;
+import com.app.pdfstation.service.compression.SizeEstimate;
+import com.app.pdfstation.service.compression.StripPhase;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdfwriter.compress.CompressParameters;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDFormContentStream;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDCIDFontType2;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDInlineImage;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfCompressionServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testParallelImageStageMatchesSequentialOutput() throws Exception {
+        File input = createScannedPdf("scan.pdf", 4);
+
+        Path sequential = compress(input, 1, "sequential.pdf");
+        Path parallel = compress(input, 4, "parallel.pdf");
+
+        assertTrue(Files.size(sequential) < Files.size(input.toPath()));
+        assertArrayEquals(Files.readAllBytes(sequential), Files.readAllBytes(parallel));
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(parallel.toFile())) {
+            assertEquals(4, doc.getNumberOfPages());
+        }
+    }
+
+    @Test
+    void testSharedImageIsRecompressedOnce() throws Exception {
+        File input = tempDir.resolve("report.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDImageXObject background = JPEGFactory.createFromImage(doc, createScan(0, new Random(7)), 0.95f);
+            for (int i = 0; i < 3; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(background, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+                }
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 2, "report_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            Set<COSBase> images = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (PDPage page : doc.getPages()) {
+                PDResources resources = page.getResources();
+                for (COSName name : resources.getXObjectNames()) {
+                    images.add(resources.getXObject(name).getCOSObject());
+                }
+            }
+            assertEquals(1, images.size());
+        }
+    }
+
+    @Test
+    void testSmallPlacementIsDownsampledByDisplayedSize() throws Exception {
+        File input = tempDir.resolve("stamp.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            BufferedImage stamp = createScan(3, new Random(3)).getSubimage(0, 0, 400, 400);
+            PDImageXObject image = JPEGFactory.createFromImage(doc, stamp, 0.95f);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                // 400 px shown at one inch is 400 DPI, not the ~47 DPI of a full-page fit
+                contents.drawImage(image, 100, 100, 72, 72);
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "stamp_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDResources resources = doc.getPage(0).getResources();
+            COSName name = resources.getXObjectNames().iterator().next();
+            PDImageXObject image = (PDImageXObject) resources.getXObject(name);
+            assertEquals(96, image.getWidth());
+        }
+    }
+
+    @Test
+    void testMirroredPlacementIsDownsampledByDisplayedSize() throws Exception {
+        File input = tempDir.resolve("mirrored.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            BufferedImage stamp = createScan(4, new Random(4)).getSubimage(0, 0, 400, 400);
+            PDImageXObject image = JPEGFactory.createFromImage(doc, stamp, 0.95f);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                // Flipped both ways, still one inch square
+                contents.drawImage(image, 172, 172, -72, -72);
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "mirrored_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDResources resources = doc.getPage(0).getResources();
+            COSName name = resources.getXObjectNames().iterator().next();
+            PDImageXObject image = (PDImageXObject) resources.getXObject(name);
+            assertEquals(96, image.getWidth());
+        }
+    }
+
+    @Test
+    void testSharedImageKeepsResolutionOfItsLargestPlacement() throws Exception {
+        File input = tempDir.resolve("thumbnail.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            BufferedImage photo = createScan(5, new Random(5)).getSubimage(0, 0, 400, 400);
+            PDImageXObject image = JPEGFactory.createFromImage(doc, photo, 0.95f);
+            PDPage first = new PDPage();
+            doc.addPage(first);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, first)) {
+                // A 400 DPI thumbnail on the first page...
+                contents.drawImage(image, 100, 100, 72, 72);
+            }
+            PDPage second = new PDPage();
+            doc.addPage(second);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, second)) {
+                // ...and about 47 DPI across the second, which needs every pixel
+                contents.drawImage(image, 0, 0, 612, 612);
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "thumbnail_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            for (PDPage page : doc.getPages()) {
+                PDResources resources = page.getResources();
+                PDImageXObject image = (PDImageXObject) resources.getXObject(resources.getXObjectNames().iterator().next());
+                assertEquals(400, image.getWidth());
+            }
+        }
+    }
+
+    @Test
+    void testFullyEmbeddedFontIsSubset() throws Exception {
+        File input = tempDir.resolve("letter.pdf").toFile();
+        try (PDDocument doc = new PDDocument();
+                InputStream ttf = PDDocument.class.getResourceAsStream(
+                        "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf")) {
+            PDType0Font font = PDType0Font.load(doc, ttf, false);
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.beginText();
+                contents.setFont(font, 12);
+                contents.newLineAtOffset(100, 700);
+                contents.showText("Subset me");
+                contents.endText();
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "letter_compressed.pdf");
+
+        assertTrue(Files.size(output) < Files.size(input.toPath()) / 4);
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDResources resources = doc.getPage(0).getResources();
+            PDFont font = resources.getFont(resources.getFontNames().iterator().next());
+            assertEquals('+', font.getName().charAt(6));
+            assertEquals("Subset me", new PDFTextStripper().getText(doc).trim());
+        }
+    }
+
+    @Test
+    void testGlyphShownOnlyByTilingPatternSurvivesSubsetting() throws Exception {
+        File input = tempDir.resolve("watermark.pdf").toFile();
+        int patternCode;
+        try (PDDocument doc = new PDDocument();
+                InputStream ttf = PDDocument.class.getResourceAsStream(
+                        "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf")) {
+            PDType0Font font = PDType0Font.load(doc, ttf, false);
+            byte[] pageText = font.encode("A");
+            byte[] patternText = font.encode("Q");
+            patternCode = (patternText[0] & 0xff) << 8 | (patternText[1] & 0xff);
+
+            // The page itself only shows "A"; the "Q" is drawn by the pattern that fills the box
+            PDResources patternResources = new PDResources();
+            patternResources.put(COSName.getPDFName("F1"), font);
+            COSStream pattern = doc.getDocument().createCOSStream();
+            pattern.setName(COSName.TYPE, "Pattern");
+            pattern.setInt(COSName.PATTERN_TYPE, 1);
+            pattern.setInt(COSName.PAINT_TYPE, 1);
+            pattern.setInt(COSName.TILING_TYPE, 1);
+            pattern.setItem(COSName.BBOX, new PDRectangle(0, 0, 50, 50));
+            pattern.setInt(COSName.X_STEP, 50);
+            pattern.setInt(COSName.Y_STEP, 50);
+            pattern.setItem(COSName.RESOURCES, patternResources);
+            try (OutputStream out = pattern.createOutputStream()) {
+                out.write(("BT /F1 24 Tf 10 10 Td <" + HexFormat.of().formatHex(patternText) + "> Tj ET").getBytes());
+            }
+
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            PDResources resources = new PDResources();
+            resources.put(COSName.getPDFName("F1"), font);
+            COSDictionary patterns = new COSDictionary();
+            patterns.setItem(COSName.getPDFName("P1"), pattern);
+            resources.getCOSObject().setItem(COSName.PATTERN, patterns);
+            page.setResources(resources);
+            COSStream contents = doc.getDocument().createCOSStream();
+            try (OutputStream out = contents.createOutputStream()) {
+                out.write(("BT /F1 12 Tf 100 700 Td <" + HexFormat.of().formatHex(pageText) + "> Tj ET "
+                        + "/Pattern cs /P1 scn 100 100 200 200 re f").getBytes());
+            }
+            page.getCOSObject().setItem(COSName.CONTENTS, contents);
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "watermark_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDResources resources = doc.getPage(0).getResources();
+            PDType0Font font = (PDType0Font) resources.getFont(COSName.getPDFName("F1"));
+            assertEquals('+', font.getName().charAt(6));
+            assertNotEquals(0, font.getDescendantFont().codeToGID(patternCode));
+            assertEquals("A", new PDFTextStripper().getText(doc).trim());
+        }
+    }
+
+    @Test
+    void testFontProgramSharedByTwoFontsKeepsGlyphsOfBoth() throws Exception {
+        File input = tempDir.resolve("shared_program.pdf").toFile();
+        int firstCode;
+        int secondCode;
+        try (PDDocument doc = new PDDocument()) {
+            PDType0Font[] fonts = new PDType0Font[2];
+            for (int i = 0; i < 2; i++) {
+                try (InputStream ttf = PDDocument.class.getResourceAsStream(
+                        "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf")) {
+                    fonts[i] = PDType0Font.load(doc, ttf, false);
+                }
+            }
+            byte[] first = fonts[0].encode("A");
+            byte[] second = fonts[1].encode("Q");
+            firstCode = (first[0] & 0xff) << 8 | (first[1] & 0xff);
+            secondCode = (second[0] & 0xff) << 8 | (second[1] & 0xff);
+            // Both font dictionaries point at one descriptor and so one program
+            fonts[1].getDescendantFont().getCOSObject().setItem(COSName.FONT_DESC,
+                    fonts[0].getDescendantFont().getFontDescriptor());
+
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.beginText();
+                contents.setFont(fonts[0], 12);
+                contents.newLineAtOffset(100, 700);
+                contents.showText("A");
+                contents.setFont(fonts[1], 12);
+                contents.showText("Q");
+                contents.endText();
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "shared_program_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDResources resources = doc.getPage(0).getResources();
+            List<PDType0Font> fonts = new ArrayList<>();
+            for (COSName name : resources.getFontNames()) {
+                fonts.add((PDType0Font) resources.getFont(name));
+            }
+            assertEquals(2, fonts.size());
+            // One program holds both glyphs, and each font maps its own code to a different one
+            Set<Integer> glyphs = new HashSet<>();
+            for (PDType0Font font : fonts) {
+                assertEquals('+', font.getName().charAt(6));
+                glyphs.add(font.getDescendantFont().codeToGID(firstCode));
+                glyphs.add(font.getDescendantFont().codeToGID(secondCode));
+            }
+            glyphs.remove(0);
+            assertEquals(2, glyphs.size());
+            assertTrue(((PDCIDFontType2) fonts.get(0).getDescendantFont()).getTrueTypeFont().getNumberOfGlyphs() >= 3);
+            String fontName = fonts.get(0).getDescendantFont().getFontDescriptor().getFontName();
+            assertEquals(fontName.indexOf('+'), fontName.lastIndexOf('+'));
+            assertEquals("AQ", new PDFTextStripper().getText(doc).trim());
+        }
+    }
+
+    @Test
+    void testUncompressedContentStreamIsDeflated() throws Exception {
+        File input = tempDir.resolve("drawing.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page,
+                    PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                for (int i = 0; i < 2000; i++) {
+                    contents.addRect(i % 500, i % 700, 10, 10);
+                    contents.stroke();
+                }
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 2, "drawing_compressed.pdf");
+
+        assertTrue(Files.size(output) < Files.size(input.toPath()) / 2);
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            COSStream contents = (COSStream) doc.getPage(0).getCOSObject().getDictionaryObject(COSName.CONTENTS);
+            assertEquals(COSName.FLATE_DECODE, contents.getFilters());
+            try (InputStream in = doc.getPage(0).getContents()) {
+                assertTrue(new String(in.readAllBytes()).startsWith("0 0 10 10 re"));
+            }
+        }
+    }
+
+    @Test
+    void testObjectStreamsPackSmallObjects() throws Exception {
+        File input = tempDir.resolve("form.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 0; i < 200; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.addRect(50, 50, 100, 20);
+                    contents.stroke();
+                }
+            }
+            doc.save(input, CompressParameters.NO_COMPRESSION);
+        }
+
+        CompressionProperties classic = new CompressionProperties();
+        classic.setParallelism(1);
+        classic.setObjectStreams(false);
+        CompressionReport classicReport = compress(input, classic, "form_classic.pdf");
+
+        CompressionProperties packed = new CompressionProperties();
+        packed.setParallelism(1);
+        CompressionReport packedReport = compress(input, packed, "form_packed.pdf");
+
+        assertEquals(0, classicReport.packedObjects());
+        assertTrue(packedReport.packedObjects() >= 400);
+        assertTrue(packedReport.compressedSize() < classicReport.compressedSize());
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(packedReport.outputPath()))) {
+            assertEquals(200, doc.getNumberOfPages());
+        }
+    }
+
+    @Test
+    void testDuplicateImagesInFormsShareOneObject() throws Exception {
+        File input = tempDir.resolve("letterhead.pdf").toFile();
+        BufferedImage logo = createScan(5, new Random(5)).getSubimage(0, 0, 60, 40);
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 0; i < 3; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+
+                // Every page embeds its own copy of the logo inside a form
+                PDFormXObject form = new PDFormXObject(doc);
+                form.setBBox(new PDRectangle(60, 40));
+                form.setResources(new PDResources());
+                try (PDFormContentStream contents = new PDFormContentStream(form)) {
+                    contents.drawImage(LosslessFactory.createFromImage(doc, logo), 0, 0);
+                }
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawForm(form);
+                }
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "letterhead_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            Set<COSBase> images = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (PDPage page : doc.getPages()) {
+                PDResources resources = page.getResources();
+                for (COSName name : resources.getXObjectNames()) {
+                    PDResources formResources = ((PDFormXObject) resources.getXObject(name)).getResources();
+                    for (COSName imageName : formResources.getXObjectNames()) {
+                        images.add(formResources.getXObject(imageName).getCOSObject());
+                    }
+                }
+            }
+            assertEquals(1, images.size());
+        }
+    }
+
+    @Test
+    void testFontEmbeddedPerSourceIsStoredOnce() throws Exception {
+        File input = tempDir.resolve("statements.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            // Like a merged bundle: each statement brought its own copy of the font
+            for (int i = 0; i < 3; i++) {
+                try (InputStream ttf = PDDocument.class.getResourceAsStream(
+                        "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf")) {
+                    PDType0Font font = PDType0Font.load(doc, ttf, false);
+                    PDPage page = new PDPage();
+                    doc.addPage(page);
+                    try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                        contents.beginText();
+                        contents.setFont(font, 12);
+                        contents.newLineAtOffset(100, 700);
+                        contents.showText("Monthly statement");
+                        contents.endText();
+                    }
+                }
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 2, "statements_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            Set<COSBase> fontFiles = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (PDPage page : doc.getPages()) {
+                PDResources resources = page.getResources();
+                PDType0Font font = (PDType0Font) resources.getFont(resources.getFontNames().iterator().next());
+                fontFiles.add(font.getDescendantFont().getFontDescriptor().getFontFile2().getCOSObject());
+            }
+            assertEquals(1, fontFiles.size());
+            assertEquals("Monthly statement", new PDFTextStripper().getText(doc).lines().findFirst().orElse(""));
+        }
+    }
+
+    @Test
+    void testMemoryBudgetDoesNotChangeOutput() throws Exception {
+        File input = createScannedPdf("large_scan.pdf", 3);
+
+        CompressionProperties inMemory = new CompressionProperties();
+        inMemory.setParallelism(2);
+        inMemory.setMemoryBudgetMb(0);
+        CompressionReport unbounded = compress(input, inMemory, "unbounded.pdf");
+
+        // Smaller than one decoded page, so images go through one at a time via scratch files
+        CompressionProperties budgeted = new CompressionProperties();
+        budgeted.setParallelism(2);
+        budgeted.setMemoryBudgetMb(1);
+        CompressionReport bounded = compress(input, budgeted, "bounded.pdf");
+
+        assertArrayEquals(Files.readAllBytes(Path.of(unbounded.outputPath())),
+                Files.readAllBytes(Path.of(bounded.outputPath())));
+    }
+
+    @Test
+    void testReusedJpegWriterAndBuffersGiveIdenticalOutput() throws Exception {
+        File input = createScannedPdf("batch.pdf", 2);
+
+        // Sequential and unbudgeted: both runs encode on this thread, into pooled buffers
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(1);
+        properties.setMemoryBudgetMb(0);
+        CompressionReport first = compress(input, properties, "batch_first.pdf");
+        CompressionReport second = compress(input, properties, "batch_second.pdf");
+
+        assertArrayEquals(Files.readAllBytes(Path.of(first.outputPath())),
+                Files.readAllBytes(Path.of(second.outputPath())));
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(second.outputPath()))) {
+            for (PDPage page : doc.getPages()) {
+                PDResources resources = page.getResources();
+                PDImageXObject image = (PDImageXObject) resources.getXObject(
+                        resources.getXObjectNames().iterator().next());
+                assertEquals(image.getWidth(), image.getImage().getWidth());
+            }
+        }
+    }
+
+    @Test
+    void testGrayscaleScanStaysSingleChannel() throws Exception {
+        File input = tempDir.resolve("gray_scan.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            BufferedImage scan = new BufferedImage(1400, 1800, BufferedImage.TYPE_BYTE_GRAY);
+            scan.createGraphics().drawImage(createScan(1, new Random(1)), 0, 0, null);
+            PDImageXObject image = JPEGFactory.createFromImage(doc, scan, 0.95f);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.drawImage(image, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 1, "gray_scan_compressed.pdf");
+
+        assertTrue(Files.size(output) < Files.size(input.toPath()));
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDResources resources = doc.getPage(0).getResources();
+            PDImageXObject image = (PDImageXObject) resources.getXObject(resources.getXObjectNames().iterator().next());
+            assertEquals(PDDeviceGray.INSTANCE, image.getColorSpace());
+            assertTrue(image.getWidth() < 1400);
+        }
+    }
+
+    @Test
+    void testBlackAndWhiteScanIsEncodedAsCcittG4() throws Exception {
+        BufferedImage scan = new BufferedImage(1700, 2200, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = scan.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, scan.getWidth(), scan.getHeight());
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SERIF, Font.PLAIN, 40));
+        // Varied words, as on a real page; one sentence repeated is a Flate best case
+        Random random = new Random(7);
+        for (int line = 0; line < 40; line++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 60) {
+                int length = 2 + random.nextInt(8);
+                for (int i = 0; i < length; i++) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                text.append(' ');
+            }
+            g.drawString(text.toString(), 100, 100 + line * 50);
+        }
+        g.dispose();
+        File input = createSingleImagePdf("bw_scan.pdf", scan);
+
+        Path output = compress(input, 2, "bw_scan_compressed.pdf");
+
+        assertTrue(Files.size(output) < Files.size(input.toPath()) / 2);
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDImageXObject image = firstImage(doc);
+            assertEquals(COSName.CCITTFAX_DECODE, image.getCOSObject().getFilters());
+            assertEquals(1, image.getBitsPerComponent());
+            // Bilevel images keep at least 200 DPI
+            assertEquals(1700, image.getWidth());
+        }
+    }
+
+    @Test
+    void testColorStampOnBlackAndWhiteScanKeepsItsColor() throws Exception {
+        // A colour scan of a text page: all ink and paper but for a red stamp, about 1% of the page
+        BufferedImage scan = new BufferedImage(1700, 2200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scan.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, scan.getWidth(), scan.getHeight());
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SERIF, Font.PLAIN, 40));
+        for (int line = 0; line < 40; line++) {
+            g.drawString("The quick brown fox jumps over the lazy dog " + line, 100, 100 + line * 50);
+        }
+        g.setColor(new Color(220, 30, 30));
+        g.fillRect(1200, 1900, 300, 120);
+        g.dispose();
+        File input = createSingleImagePdf("paid_scan.pdf", scan);
+
+        Path output = compress(input, 2, "paid_scan_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDImageXObject image = firstImage(doc);
+            assertNotEquals(COSName.CCITTFAX_DECODE, image.getCOSObject().getFilters());
+            assertEquals(3, image.getColorSpace().getNumberOfComponents());
+            double scale = image.getWidth() / 1700.0;
+            int stamp = image.getImage().getRGB((int) (1350 * scale), (int) (1960 * scale));
+            assertTrue(((stamp >> 16) & 0xff) > 150);
+            assertTrue(((stamp >> 8) & 0xff) < 100);
+        }
+    }
+
+    @Test
+    void testFlatColorGraphicIsEncodedLosslessly() throws Exception {
+        BufferedImage chart = new BufferedImage(1700, 2200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = chart.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, chart.getWidth(), chart.getHeight());
+        for (int bar = 0; bar < 12; bar++) {
+            g.setColor(new Color(bar * 20, 200 - bar * 15, 90));
+            g.fillRect(100 + bar * 120, 2000 - bar * 150, 100, bar * 150);
+        }
+        g.dispose();
+        File input = createSingleImagePdf("chart.pdf", chart);
+
+        Path output = compress(input, 2, "chart_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            assertEquals(COSName.FLATE_DECODE, firstImage(doc).getCOSObject().getFilters());
+        }
+    }
+
+    @Test
+    void testNearGrayColorImageIsStoredAsOneChannel() throws Exception {
+        // A "colour" scan of a black-and-white photo, shown at ~70 DPI so only its colour is reworked
+        BufferedImage photo = new BufferedImage(600, 800, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(11);
+        for (int y = 0; y < photo.getHeight(); y++) {
+            for (int x = 0; x < photo.getWidth(); x++) {
+                int level = Math.min(250, (x + y) / 6 + random.nextInt(8));
+                photo.setRGB(x, y, (level << 16) | ((level + 3) << 8) | level);
+            }
+        }
+        File input = createSingleImagePdf("bw_photo.pdf", photo);
+
+        Path output = compress(input, 2, "bw_photo_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDImageXObject image = firstImage(doc);
+            assertEquals(PDDeviceGray.INSTANCE, image.getColorSpace());
+            assertEquals(600, image.getWidth());
+        }
+    }
+
+    @Test
+    void testCmykImageIsConvertedOnlyWhenAllowed() throws Exception {
+        int size = 400;
+        byte[] cmyk = new byte[size * size * 4];
+        for (int y = 0, i = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                cmyk[i++] = (byte) (x * 255 / size);
+                cmyk[i++] = (byte) (y * 255 / size);
+                cmyk[i++] = (byte) 40;
+                cmyk[i++] = 0;
+            }
+        }
+        File input = tempDir.resolve("cmyk.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            PDImageXObject image = new PDImageXObject(doc, new ByteArrayInputStream(cmyk), null,
+                    size, size, 8, PDDeviceCMYK.INSTANCE);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.drawImage(image, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+            }
+            doc.save(input);
+        }
+
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(1);
+        PdfCompressionService service = new PdfCompressionService(properties);
+        try {
+            String converted = tempDir.resolve("cmyk_converted.pdf").toString();
+            service.compressPdf(input.getAbsolutePath(), converted, service.defaultOptions(0.5f));
+            String kept = tempDir.resolve("cmyk_kept.pdf").toString();
+            service.compressPdf(input.getAbsolutePath(), kept,
+                    service.defaultOptions(0.5f).withConvertCmyk(false));
+
+            try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(converted))) {
+                assertEquals(PDDeviceRGB.INSTANCE, firstImage(doc).getColorSpace());
+            }
+            try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(kept))) {
+                assertEquals(PDDeviceCMYK.INSTANCE, firstImage(doc).getColorSpace());
+            }
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void testSoftMaskIsDownsampledWithItsImage() throws Exception {
+        BufferedImage artwork = new BufferedImage(1400, 1800, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(5);
+        for (int y = 0; y < artwork.getHeight(); y++) {
+            for (int x = 0; x < artwork.getWidth(); x++) {
+                int alpha = x * 255 / artwork.getWidth();
+                artwork.setRGB(x, y, (alpha << 24) | (random.nextInt(256) << 16) | ((y % 256) << 8) | 90);
+            }
+        }
+        File input = createSingleImagePdf("transparent_artwork.pdf", artwork);
+
+        Path output = compress(input, 2, "transparent_artwork_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            PDImageXObject image = firstImage(doc);
+            PDImageXObject softMask = image.getSoftMask();
+            assertTrue(image.getWidth() < 1400, "Image should be downsampled");
+            assertNotNull(softMask, "Transparency must survive recompression");
+            assertEquals(image.getWidth(), softMask.getWidth());
+            assertEquals(image.getHeight(), softMask.getHeight());
+        }
+    }
+
+    @Test
+    void testLargeInlineImageBecomesSharedXObject() throws Exception {
+        int size = 200;
+        byte[] pixels = new byte[size * size * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i % 3 == 0 ? i / (size * 3) : i % 251);
+        }
+        COSDictionary parameters = new COSDictionary();
+        parameters.setInt(COSName.getPDFName("W"), size);
+        parameters.setInt(COSName.getPDFName("H"), size);
+        parameters.setInt(COSName.getPDFName("BPC"), 8);
+        parameters.setItem(COSName.getPDFName("CS"), COSName.getPDFName("RGB"));
+
+        File input = tempDir.resolve("inline_logo.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 0; i < 2; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                PDInlineImage logo = new PDInlineImage(parameters, pixels, new PDResources());
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(logo, 72, 500, 216, 216);
+                }
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 2, "inline_logo_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            COSStream first = firstImage(doc).getCOSObject();
+            PDResources second = doc.getPage(1).getResources();
+            PDImageXObject secondImage = (PDImageXObject) second.getXObject(
+                    second.getXObjectNames().iterator().next());
+            assertSame(first, secondImage.getCOSObject(), "Both pages should draw one shared XObject");
+
+            for (PDPage page : doc.getPages()) {
+                try (InputStream in = page.getContents()) {
+                    String content = new String(in.readAllBytes(), java.nio.charset.StandardCharsets.ISO_8859_1);
+                    assertFalse(content.contains("BI"), "Inline image should be gone from the content");
+                    assertTrue(content.contains("Do"));
+                }
+            }
+            assertTrue(Files.size(output) < Files.size(input.toPath()));
+        }
+    }
+
+    @Test
+    void testConvertedInlineImageNeverTakesANameAPageAlreadyUses() throws Exception {
+        int size = 200;
+        byte[] pixels = new byte[size * size * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i % 3 == 0 ? i / (size * 3) : i % 251);
+        }
+        COSDictionary parameters = new COSDictionary();
+        parameters.setInt(COSName.getPDFName("W"), size);
+        parameters.setInt(COSName.getPDFName("H"), size);
+        parameters.setInt(COSName.getPDFName("BPC"), 8);
+        parameters.setItem(COSName.getPDFName("CS"), COSName.getPDFName("RGB"));
+
+        File input = tempDir.resolve("inline_clash.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDImageXObject badge = LosslessFactory.createFromImage(doc, new BufferedImage(50, 50,
+                    BufferedImage.TYPE_INT_RGB));
+            // Page 1 converts the image first; page 2 shares its content stream and page 3
+            // draws the same image from its own, but both already have an XObject of the new name
+            for (int i = 0; i < 3; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                if (i > 0) {
+                    PDResources resources = new PDResources();
+                    resources.put(COSName.getPDFName("InlineIm1"), badge);
+                    page.setResources(resources);
+                }
+                if (i == 1) {
+                    page.getCOSObject().setItem(COSName.CONTENTS,
+                            doc.getPage(0).getCOSObject().getDictionaryObject(COSName.CONTENTS));
+                    continue;
+                }
+                PDInlineImage logo = new PDInlineImage(parameters, pixels, new PDResources());
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(logo, 72, 500, 216, 216);
+                }
+            }
+            doc.save(input);
+        }
+
+        Path output = compress(input, 2, "inline_clash_compressed.pdf");
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(output.toFile())) {
+            for (PDPage page : doc.getPages()) {
+                String content;
+                try (InputStream in = page.getContents()) {
+                    content = new String(in.readAllBytes(), java.nio.charset.StandardCharsets.ISO_8859_1);
+                }
+                java.util.regex.Matcher drawn = java.util.regex.Pattern.compile("/(\\S+)\\s+Do").matcher(content);
+                assertTrue(drawn.find());
+                PDImageXObject image = (PDImageXObject) page.getResources().getXObject(
+                        COSName.getPDFName(drawn.group(1)));
+                assertEquals(size, image.getWidth());
+            }
+        }
+    }
+
+    @Test
+    void testStripRemovesThumbnailsPrivateDataAndUnusedResources() throws Exception {
+        File input = tempDir.resolve("exported.pdf").toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            PDImageXObject shown = LosslessFactory.createFromImage(doc,
+                    createScan(1, new Random(1)).getSubimage(0, 0, 80, 80));
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.drawImage(shown, 100, 100, 80, 80);
+            }
+            // Left behind by an editor: an image nothing draws, a thumbnail and private data
+            page.getResources().add(LosslessFactory.createFromImage(doc,
+                    createScan(2, new Random(2)).getSubimage(0, 0, 300, 300)));
+            page.getCOSObject().setItem(COSName.getPDFName("Thumb"),
+                    LosslessFactory.createFromImage(doc, createScan(3, new Random(3)).getSubimage(0, 0, 90, 120)));
+            COSDictionary pieceInfo = new COSDictionary();
+            pieceInfo.setItem(COSName.getPDFName("Illustrator"), doc.getDocument().createCOSStream());
+            page.getCOSObject().setItem(COSName.getPDFName("PieceInfo"), pieceInfo);
+            doc.save(input);
+        }
+
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(1);
+        CompressionReport report = compress(input, properties, "exported_compressed.pdf");
+
+        assertTrue(report.strippedBytes().get(StripPhase.UNUSED_RESOURCES) > 0);
+        assertTrue(report.strippedBytes().get(StripPhase.THUMBNAILS) > 0);
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(report.outputPath()))) {
+            PDPage page = doc.getPage(0);
+            int names = 0;
+            for (COSName ignored : page.getResources().getXObjectNames()) {
+                names++;
+            }
+            assertEquals(1, names, "Only the drawn image should remain");
+            assertFalse(page.getCOSObject().containsKey(COSName.getPDFName("Thumb")));
+            assertFalse(page.getCOSObject().containsKey(COSName.getPDFName("PieceInfo")));
+        }
+    }
+
+    @Test
+    void testTargetSizeModeChoosesSettingsThatFit() throws Exception {
+        File input = createScannedPdf("target.pdf", 3);
+        long target = input.length() / 4;
+
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(2);
+        PdfCompressionService service = new PdfCompressionService(properties);
+        CompressionReport report;
+        try {
+            report = service.compressToTargetSize(input.getAbsolutePath(),
+                    tempDir.resolve("target_compressed.pdf").toString(), service.defaultOptions(0.5f), target);
+        } finally {
+            service.shutdown();
+        }
+
+        assertEquals(input.length(), report.originalSize());
+        assertEquals(Files.size(Path.of(report.outputPath())), report.compressedSize());
+        // Fits, unless even the smallest settings could not get there
+        assertTrue(report.compressedSize() <= target || report.options().targetDpi() == 60,
+                "Target missed at " + report.options().targetDpi() + " DPI");
+        assertTrue(report.options().targetDpi() < 300);
+    }
+
+    @Test
+    void testEstimateBreaksDownDocumentAndPredictsCompressedSize() throws Exception {
+        File input = createScannedPdf("estimate.pdf", 3);
+
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(2);
+        PdfCompressionService service = new PdfCompressionService(properties);
+        SizeEstimate estimate;
+        try {
+            estimate = service.estimate(input.getAbsolutePath(), List.of(25, 50, 100));
+        } finally {
+            service.shutdown();
+        }
+        CompressionReport actual = compress(input, properties, "estimate_compressed.pdf");
+
+        assertEquals(input.length(), estimate.originalSize());
+        assertEquals(estimate.imageBytes(), estimate.imageBytesByFilter().get("DCTDecode"));
+        assertEquals(estimate.imageBytes(), estimate.imageBytesByDpi().get("101-200"));
+        assertTrue(estimate.contentBytes() > 0);
+        assertTrue(estimate.estimatedSizes().get(25) <= estimate.estimatedSizes().get(100));
+        // Every page image is sampled here, so the prediction lands close to the real run
+        long predicted = estimate.estimatedSizes().get(50);
+        assertEquals(actual.compressedSize(), predicted, actual.compressedSize() * 0.25);
+    }
+
+    @Test
+    void testImageCacheReusesEncodingsAcrossJobsAndRestarts() throws Exception {
+        File input = createScannedPdf("letterhead.pdf", 2);
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(2);
+        properties.setImageCacheDir(tempDir.resolve("image-cache").toString());
+
+        PdfCompressionService service = new PdfCompressionService(properties);
+        CompressionReport first;
+        CompressionReport second;
+        try {
+            first = service.compressPdf(input.getAbsolutePath(), tempDir.resolve("first.pdf").toString(), 0.5f);
+            second = service.compressPdf(input.getAbsolutePath(), tempDir.resolve("second.pdf").toString(), 0.5f);
+            ImageCache.Stats stats = service.imageCacheStats();
+            assertEquals(2, stats.misses());
+            assertEquals(2, stats.hits());
+        } finally {
+            service.shutdown();
+        }
+        assertArrayEquals(Files.readAllBytes(Path.of(first.outputPath())),
+                Files.readAllBytes(Path.of(second.outputPath())));
+
+        // A new instance finds the encodings in the cache directory
+        PdfCompressionService restarted = new PdfCompressionService(properties);
+        CompressionReport third;
+        try {
+            third = restarted.compressPdf(input.getAbsolutePath(), tempDir.resolve("third.pdf").toString(), 0.5f);
+            assertEquals(2, restarted.imageCacheStats().diskHits());
+        } finally {
+            restarted.shutdown();
+        }
+        assertArrayEquals(Files.readAllBytes(Path.of(first.outputPath())),
+                Files.readAllBytes(Path.of(third.outputPath())));
+    }
+
+    private Path compress(File input, int parallelism, String outputName) throws Exception {
+        CompressionProperties properties = new CompressionProperties();
+        properties.setParallelism(parallelism);
+        return Path.of(compress(input, properties, outputName).outputPath());
+    }
+
+    private CompressionReport compress(File input, CompressionProperties properties, String outputName)
+            throws Exception {
+        PdfCompressionService service = new PdfCompressionService(properties);
+        try {
+            String outputPath = tempDir.resolve(outputName).toString();
+            return service.compressPdf(input.getAbsolutePath(), outputPath, 0.5f);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * One full-page ~165 DPI image per page, like a scanned contract
+     */
+    private File createScannedPdf(String filename, int pages) throws IOException {
+        File file = tempDir.resolve(filename).toFile();
+        Random random = new Random(42);
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+
+                PDImageXObject image = JPEGFactory.createFromImage(doc, createScan(i, random), 0.95f);
+
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(image, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+                }
+            }
+            doc.save(file);
+        }
+        return file;
+    }
+
+    /**
+     * The image as a full-page JPEG on a single letter page
+     */
+    private File createSingleImagePdf(String filename, BufferedImage image) throws IOException {
+        File file = tempDir.resolve(filename).toFile();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            PDImageXObject xobject = JPEGFactory.createFromImage(doc, image, 0.95f);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.drawImage(xobject, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+            }
+            doc.save(file);
+        }
+        return file;
+    }
+
+    private PDImageXObject firstImage(PDDocument doc) throws IOException {
+        PDResources resources = doc.getPage(0).getResources();
+        return (PDImageXObject) resources.getXObject(resources.getXObjectNames().iterator().next());
+    }
+
+    private BufferedImage createScan(int seed, Random random) {
+        BufferedImage scan = new BufferedImage(1400, 1800, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < scan.getHeight(); y++) {
+            for (int x = 0; x < scan.getWidth(); x++) {
+                int shade = (x + y + seed * 40) % 256;
+                scan.setRGB(x, y, (shade << 16) | (random.nextInt(256) << 8) | (255 - shade));
+            }
+        }
+        return scan;
+    }
+}
@@ -0,0 +1,298 @@
+package com.app.pdfstation.service;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfLinearizationServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testLinearizedOutputKeepsPagesAndDeclaresItsLayout() throws Exception {
+        Path file = tempDir.resolve("document.pdf");
+        try (PDDocument doc = new PDDocument()) {
+            BufferedImage pixels = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 64; y++) {
+                for (int x = 0; x < 64; x++) {
+                    pixels.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8);
+                }
+            }
+            // Used by every page after the first, so it belongs to the shared objects section
+            PDImageXObject logo = LosslessFactory.createFromImage(doc, pixels);
+            PDType1Font font = new PDType1Font(Standard14Fonts.FontName.HELVETICA);
+            for (int i = 1; i <= 4; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.beginText();
+                    contents.setFont(font, 12);
+                    contents.newLineAtOffset(100, 700);
+                    contents.showText("Page " + i);
+                    contents.endText();
+                    if (i > 1) {
+                        contents.drawImage(logo, 100, 500);
+                    }
+                }
+            }
+            doc.save(file.toFile());
+        }
+
+        assertTrue(new PdfLinearizationService().linearize(file.toString()));
+
+        byte[] data = Files.readAllBytes(file);
+        String text = new String(data, StandardCharsets.ISO_8859_1);
+        // The linearization dictionary is the first object
+        Matcher dictionary = Pattern.compile("^%PDF-\\S+\\n%.{4}\\n\\d+ 0 obj\\n<</Linearized 1/L (\\d+)"
+                + "/H\\[(\\d+) (\\d+)\\]/O (\\d+)/E (\\d+)/N (\\d+)/T (\\d+)>>", Pattern.DOTALL).matcher(text);
+        assertTrue(dictionary.find());
+        long fileLength = Long.parseLong(dictionary.group(1));
+        int hintOffset = Integer.parseInt(dictionary.group(2));
+        int hintLength = Integer.parseInt(dictionary.group(3));
+        int firstPageNumber = Integer.parseInt(dictionary.group(4));
+        int endOfFirstPage = Integer.parseInt(dictionary.group(5));
+        int pageCount = Integer.parseInt(dictionary.group(6));
+        int firstMainEntry = Integer.parseInt(dictionary.group(7));
+        assertEquals(data.length, fileLength);
+        assertEquals(4, pageCount);
+
+        // The first-page cross-reference section follows it, and the file's last startxref leads there
+        int firstXref = text.indexOf("xref\n");
+        Matcher startxref = Pattern.compile("startxref\\n(\\d+)\\n%%EOF\\n$").matcher(text);
+        assertTrue(startxref.find());
+        assertEquals(firstXref, Integer.parseInt(startxref.group(1)));
+        Map<Integer, Integer> offsets = new HashMap<>();
+        Matcher firstSection = Pattern.compile("xref\\n(\\d+) (\\d+)\\n").matcher(text);
+        assertTrue(firstSection.find(firstXref) && firstSection.start() == firstXref);
+        int firstSectionStart = Integer.parseInt(firstSection.group(1));
+        int firstSectionCount = Integer.parseInt(firstSection.group(2));
+        readXrefEntries(text, firstSection.end(), firstSectionStart, firstSectionCount, offsets);
+        Matcher firstTrailer = Pattern.compile("trailer\\n<</Size \\d+/Prev (\\d+)/Root (\\d+) 0 R")
+                .matcher(text);
+        assertTrue(firstTrailer.find(firstSection.end() + firstSectionCount * 20));
+        int mainXref = Integer.parseInt(firstTrailer.group(1));
+        int rootNumber = Integer.parseInt(firstTrailer.group(2));
+
+        // /T is the white-space before the main table's first entry
+        Matcher mainSection = Pattern.compile("xref\\n0 (\\d+)\\n").matcher(text);
+        assertTrue(mainSection.find(mainXref) && mainSection.start() == mainXref);
+        assertEquals(mainSection.end() - 1, firstMainEntry);
+        assertTrue(text.startsWith("0000000000 65535 f\r\n", mainSection.end()));
+        int mainCount = Integer.parseInt(mainSection.group(1));
+        readXrefEntries(text, mainSection.end() + 20, 1, mainCount - 1, offsets);
+        // The first-page section is numbered after the main section
+        assertEquals(mainCount, firstSectionStart);
+
+        // Every entry of both tables leads to its object
+        for (Map.Entry<Integer, Integer> entry : offsets.entrySet()) {
+            assertTrue(text.startsWith(entry.getKey() + " 0 obj\n", entry.getValue()),
+                    "Object " + entry.getKey() + " is not at " + entry.getValue());
+        }
+        TreeSet<Integer> boundaries = new TreeSet<>(offsets.values());
+        boundaries.add(mainXref);
+
+        // /H is the hint stream, the last object of the first-page section
+        int hintNumber = firstSectionStart + firstSectionCount - 1;
+        assertEquals(hintOffset, offsets.get(hintNumber));
+        assertEquals(boundaries.higher(hintOffset) - hintOffset, hintLength);
+
+        // /O is the first page object, right after the hint stream; /E ends its section where page 2 starts
+        List<Integer> kids = pageObjects(text, offsets, rootNumber);
+        assertEquals(4, kids.size());
+        assertEquals(kids.get(0), firstPageNumber);
+        assertEquals(hintOffset + hintLength, offsets.get(firstPageNumber));
+        assertEquals(offsets.get(kids.get(1)), endOfFirstPage);
+        assertTrue(text.startsWith("endobj\n", endOfFirstPage - 7));
+
+        // Page offset hint table, F.3 and F.4; its offsets leave the hint stream out
+        Matcher hintDictionary = Pattern.compile("<</Filter/FlateDecode/S (\\d+)/Length (\\d+)>>\\nstream\\n")
+                .matcher(text);
+        assertTrue(hintDictionary.find(hintOffset));
+        byte[] hints;
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data,
+                hintDictionary.end(), Integer.parseInt(hintDictionary.group(2))))) {
+            hints = in.readAllBytes();
+        }
+        BitReader pageTable = new BitReader(hints, 0);
+        long leastObjects = pageTable.read(32);
+        long firstPageLocation = pageTable.read(32);
+        int objectBits = (int) pageTable.read(16);
+        long leastLength = pageTable.read(32);
+        int lengthBits = (int) pageTable.read(16);
+        pageTable.read(32);
+        pageTable.read(16);
+        pageTable.read(32);
+        pageTable.read(16);
+        int sharedCountBits = (int) pageTable.read(16);
+        int sharedIdBits = (int) pageTable.read(16);
+        assertEquals(0, pageTable.read(16));
+        pageTable.read(16);
+        assertEquals((long) offsets.get(firstPageNumber) - hintLength, firstPageLocation);
+
+        long[] objectCounts = new long[4];
+        long[] lengths = new long[4];
+        int[] sharedCounts = new int[4];
+        for (int i = 0; i < 4; i++) {
+            objectCounts[i] = leastObjects + pageTable.read(objectBits);
+        }
+        pageTable.align();
+        for (int i = 0; i < 4; i++) {
+            lengths[i] = leastLength + pageTable.read(lengthBits);
+        }
+        pageTable.align();
+        for (int i = 0; i < 4; i++) {
+            sharedCounts[i] = (int) pageTable.read(sharedCountBits);
+        }
+        pageTable.align();
+        List<List<Long>> sharedIds = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            List<Long> ids = new ArrayList<>();
+            for (int j = 0; j < sharedCounts[i]; j++) {
+                ids.add(pageTable.read(sharedIdBits));
+            }
+            sharedIds.add(ids);
+        }
+
+        // Each page's section starts with its page object and holds the objects the table counts
+        long sectionStart = firstPageLocation;
+        for (int i = 0; i < 4; i++) {
+            int start = (int) sectionStart + hintLength;
+            int end = (int) (sectionStart + lengths[i]) + hintLength;
+            assertEquals(offsets.get(kids.get(i)), start, "Page " + (i + 1) + " section");
+            assertTrue(boundaries.contains(end), "Page " + (i + 1) + " section ends inside an object");
+            assertEquals(objectCounts[i], boundaries.subSet(start, end).size(), "Page " + (i + 1) + " objects");
+            sectionStart += lengths[i];
+        }
+        assertEquals(endOfFirstPage, firstPageLocation + lengths[0] + hintLength);
+
+        // Shared object hint table, F.5 and F.6, at the stream's /S
+        BitReader sharedTable = new BitReader(hints, Integer.parseInt(hintDictionary.group(1)));
+        long firstSharedNumber = sharedTable.read(32);
+        long firstSharedLocation = sharedTable.read(32);
+        long firstPageShared = sharedTable.read(32);
+        long sharedTotal = sharedTable.read(32);
+        assertEquals(0, sharedTable.read(16));
+        long leastSharedLength = sharedTable.read(32);
+        int sharedLengthBits = (int) sharedTable.read(16);
+        assertEquals(objectCounts[0], firstPageShared);
+        // The logo only later pages use is in the shared section, right after the last page
+        assertTrue(sharedTotal > firstPageShared);
+        assertEquals(sectionStart, firstSharedLocation);
+        assertEquals(firstSharedLocation + hintLength, (long) offsets.get((int) firstSharedNumber));
+
+        List<Integer> groups = new ArrayList<>(boundaries.subSet(offsets.get(firstPageNumber), endOfFirstPage));
+        for (long i = 0; i < sharedTotal - firstPageShared; i++) {
+            groups.add(offsets.get((int) (firstSharedNumber + i)));
+        }
+        for (int i = 0; i < sharedTotal; i++) {
+            long length = leastSharedLength + sharedTable.read(sharedLengthBits);
+            int start = groups.get(i);
+            assertEquals(boundaries.higher(start) - start, length, "Shared object group " + i);
+        }
+
+        assertEquals(0, sharedCounts[0]);
+        for (int i = 1; i < 4; i++) {
+            assertTrue(sharedIds.get(i).stream().anyMatch(id -> id >= firstPageShared),
+                    "Page " + (i + 1) + " does not refer to the shared logo");
+        }
+
+        try (PDDocument linearized = Loader.loadPDF(file.toFile())) {
+            assertEquals(4, linearized.getNumberOfPages());
+            PDFTextStripper stripper = new PDFTextStripper();
+            for (int i = 1; i <= 4; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                assertEquals("Page " + i, stripper.getText(linearized).trim());
+            }
+            int images = 0;
+            for (PDPage page : linearized.getPages()) {
+                for (COSName name : page.getResources().getXObjectNames()) {
+                    assertInstanceOf(PDImageXObject.class, page.getResources().getXObject(name));
+                    images++;
+                }
+            }
+            assertEquals(3, images);
+        }
+    }
+
+    /**
+     * Read a cross-reference subsection of in-use entries into number -> offset
+     */
+    private static void readXrefEntries(String text, int position, int first, int count,
+            Map<Integer, Integer> offsets) {
+        for (int i = 0; i < count; i++) {
+            String entry = text.substring(position + i * 20, position + (i + 1) * 20);
+            assertTrue(entry.matches("\\d{10} 00000 n\r\n"), "Bad entry: " + entry);
+            offsets.put(first + i, Integer.parseInt(entry.substring(0, 10)));
+        }
+    }
+
+    /**
+     * Page object numbers in order, from the catalog's page tree
+     */
+    private static List<Integer> pageObjects(String text, Map<Integer, Integer> offsets, int rootNumber) {
+        Matcher pages = Pattern.compile("/Pages (\\d+) 0 R").matcher(objectText(text, offsets, rootNumber));
+        assertTrue(pages.find());
+        Matcher kids = Pattern.compile("/Kids \\[([^\\]]*)\\]")
+                .matcher(objectText(text, offsets, Integer.parseInt(pages.group(1))));
+        assertTrue(kids.find());
+        List<Integer> numbers = new ArrayList<>();
+        Matcher reference = Pattern.compile("(\\d+) 0 R").matcher(kids.group(1));
+        while (reference.find()) {
+            numbers.add(Integer.parseInt(reference.group(1)));
+        }
+        return numbers;
+    }
+
+    private static String objectText(String text, Map<Integer, Integer> offsets, int number) {
+        int start = offsets.get(number);
+        return text.substring(start, text.indexOf("endobj", start));
+    }
+
+    /**
+     * Reads hint table values, most significant bit first
+     */
+    private static final class BitReader {
+        private final byte[] data;
+        private long bit;
+
+        BitReader(byte[] data, int offset) {
+            this.data = data;
+            this.bit = offset * 8L;
+        }
+
+        long read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++, bit++) {
+                value = (value << 1) | ((data[(int) (bit / 8)] >> (7 - bit % 8)) & 1);
+            }
+            return value;
+        }
+
+        void align() {
+            bit = (bit + 7) / 8 * 8;
+        }
+    }
+}
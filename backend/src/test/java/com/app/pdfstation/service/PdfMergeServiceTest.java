@@ -1,18 +1,32 @@
 package com.app.pdfstation.service;
 
+import com.app.pdfstation.config.MergeProperties;
+import com.app.pdfstation.service.merge.PageSelection;
+import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -25,7 +39,7 @@ class PdfMergeServiceTest {
 
     @BeforeEach
     void setUp() {
-        pdfMergeService = new PdfMergeService();
+        pdfMergeService = new PdfMergeService(new MergeProperties());
     }
 
     @Test
@@ -49,6 +63,254 @@ class PdfMergeServiceTest {
         }
     }
 
+    @Test
+    void testMergeBeyondMemoryBudgetKeepsEveryPage() throws Exception {
+        MergeProperties properties = new MergeProperties();
+        properties.setMemoryBudgetMb(1);
+        PdfMergeService budgeted = new PdfMergeService(properties);
+
+        // Noise does not deflate, so each input is about 600 KB and together they exceed the budget
+        List<String> inputs = new ArrayList<>();
+        Random random = new Random(21);
+        for (int i = 1; i <= 4; i++) {
+            File file = tempDir.resolve("scan" + i + ".pdf").toFile();
+            try (PDDocument doc = new PDDocument()) {
+                BufferedImage noise = new BufferedImage(500, 400, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < noise.getHeight(); y++) {
+                    for (int x = 0; x < noise.getWidth(); x++) {
+                        noise.setRGB(x, y, random.nextInt(0x1000000));
+                    }
+                }
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(LosslessFactory.createFromImage(doc, noise), 50, 300);
+                    contents.beginText();
+                    contents.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                    contents.newLineAtOffset(100, 700);
+                    contents.showText("Scan " + i);
+                    contents.endText();
+                }
+                doc.save(file);
+            }
+            inputs.add(file.getAbsolutePath());
+        }
+
+        String outputPath = tempDir.resolve("merged.pdf").toString();
+        budgeted.merge(inputs, outputPath);
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(outputPath))) {
+            assertEquals(4, doc.getNumberOfPages());
+            PDFTextStripper stripper = new PDFTextStripper();
+            for (int i = 1; i <= 4; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                assertEquals("Scan " + i, stripper.getText(doc).trim());
+
+                PDPage page = doc.getPage(i - 1);
+                PDImageXObject image = (PDImageXObject) page.getResources()
+                        .getXObject(page.getResources().getXObjectNames().iterator().next());
+                assertEquals(500, image.getImage().getWidth());
+            }
+        }
+    }
+
+    @Test
+    void testTreeMergeKeepsUploadOrder() throws Exception {
+        MergeProperties properties = new MergeProperties();
+        properties.setTreeMinFiles(2);
+        properties.setTreeGroupSize(3);
+        properties.setParallelism(3);
+        PdfMergeService treeMerge = new PdfMergeService(properties);
+
+        // 11 inputs: groups of 3 make 4 intermediates, then 2, then the output
+        List<String> inputs = new ArrayList<>();
+        for (int i = 1; i <= 11; i++) {
+            inputs.add(createDummyPdf("invoice" + i + ".pdf", "Invoice " + i).getAbsolutePath());
+        }
+        String outputPath = tempDir.resolve("merged.pdf").toString();
+        try {
+            treeMerge.merge(inputs, outputPath);
+        } finally {
+            treeMerge.shutdown();
+        }
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(outputPath))) {
+            assertEquals(11, doc.getNumberOfPages());
+            PDFTextStripper stripper = new PDFTextStripper();
+            for (int i = 1; i <= 11; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                assertEquals("Invoice " + i, stripper.getText(doc).trim());
+            }
+        }
+        for (String input : inputs) {
+            assertTrue(new File(input).exists());
+        }
+    }
+
+    @Test
+    void testMergeSharesFontsAndImagesAcrossSources() throws Exception {
+        // Statements from one generator: each embeds the same full font and logo
+        BufferedImage logo = new BufferedImage(120, 60, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(9);
+        for (int y = 0; y < logo.getHeight(); y++) {
+            for (int x = 0; x < logo.getWidth(); x++) {
+                logo.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        List<String> inputs = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            File file = tempDir.resolve("statement" + i + ".pdf").toFile();
+            try (PDDocument doc = new PDDocument();
+                    InputStream ttf = PDDocument.class.getResourceAsStream(
+                            "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf")) {
+                PDType0Font font = PDType0Font.load(doc, ttf, false);
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(LosslessFactory.createFromImage(doc, logo), 50, 650);
+                    contents.beginText();
+                    contents.setFont(font, 12);
+                    contents.newLineAtOffset(100, 600);
+                    contents.showText("Statement " + i);
+                    contents.endText();
+                }
+                doc.save(file);
+            }
+            inputs.add(file.getAbsolutePath());
+        }
+
+        MergeProperties copying = new MergeProperties();
+        copying.setShareResources(false);
+        String copiedPath = tempDir.resolve("copied.pdf").toString();
+        new PdfMergeService(copying).merge(inputs, copiedPath);
+
+        String sharedPath = tempDir.resolve("shared.pdf").toString();
+        pdfMergeService.merge(inputs, sharedPath);
+
+        long copiedSize = Files.size(Path.of(copiedPath));
+        long sharedSize = Files.size(Path.of(sharedPath));
+        long inputSize = Files.size(Path.of(inputs.get(0)));
+        // Five of the six font programs and logos are gone
+        assertTrue(sharedSize < copiedSize - 4 * inputSize,
+                "shared " + sharedSize + " vs copied " + copiedSize);
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(sharedPath))) {
+            assertEquals(6, doc.getNumberOfPages());
+            PDFTextStripper stripper = new PDFTextStripper();
+            PDResources first = doc.getPage(0).getResources();
+            COSName fontName = first.getFontNames().iterator().next();
+            COSName imageName = first.getXObjectNames().iterator().next();
+            for (int i = 1; i <= 6; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                assertEquals("Statement " + i, stripper.getText(doc).trim());
+
+                PDResources resources = doc.getPage(i - 1).getResources();
+                assertSame(first.getCOSObject().getCOSDictionary(COSName.FONT).getDictionaryObject(fontName),
+                        resources.getCOSObject().getCOSDictionary(COSName.FONT).getDictionaryObject(fontName));
+                assertSame(first.getXObject(imageName).getCOSObject(),
+                        resources.getXObject(imageName).getCOSObject());
+            }
+        }
+    }
+
+    @Test
+    void testMergeTakesOnlySelectedPages() throws Exception {
+        File report = createScannedPdf("report.pdf", "Report", 6);
+        File cover = createScannedPdf("cover.pdf", "Cover", 3);
+        String outputPath = tempDir.resolve("merged.pdf").toString();
+
+        pdfMergeService.merge(List.of(report.getAbsolutePath(), cover.getAbsolutePath()),
+                PageSelection.parseAll("3-5;1", 2), outputPath);
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(outputPath))) {
+            assertEquals(4, doc.getNumberOfPages());
+            PDFTextStripper stripper = new PDFTextStripper();
+            List<String> expected = List.of("Report 3", "Report 4", "Report 5", "Cover 1");
+            for (int i = 1; i <= 4; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                assertEquals(expected.get(i - 1), stripper.getText(doc).trim());
+            }
+        }
+        // Each page carries its own scan, so the pages left out must not be copied
+        assertTrue(new File(outputPath).length() < (report.length() + cover.length()) * 0.5);
+
+        assertNull(PageSelection.parseAll("3-5;", 2).get(1));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("2,1-3"));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parseAll("1", 2));
+        assertThrows(IllegalArgumentException.class, () -> pdfMergeService.merge(
+                List.of(cover.getAbsolutePath()), List.of(PageSelection.parse("4")),
+                tempDir.resolve("beyond.pdf").toString()));
+        // Huge ranges are checked against the page count, never expanded
+        assertThrows(IllegalArgumentException.class, () -> pdfMergeService.merge(
+                List.of(cover.getAbsolutePath()), List.of(PageSelection.parse("1-2147483647")),
+                tempDir.resolve("huge.pdf").toString()));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("1-2000000000,5"));
+    }
+
+    @Test
+    void testMergeSessionFoldsDocumentsAsTheyArrive() throws Exception {
+        Path sessionDir = Files.createDirectories(tempDir.resolve("session"));
+        List<String> inputs = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            inputs.add(createDummyPdf("scan" + i + ".pdf", "Scan " + i).getAbsolutePath());
+            assertEquals(i, pdfMergeService.foldSession(inputs, null, sessionDir));
+        }
+
+        // 7 = 4 + 2 + 1, so three chunks remain and folding again changes nothing
+        try (Stream<Path> chunks = Files.list(sessionDir)) {
+            assertEquals(3, chunks.count());
+        }
+        assertEquals(7, pdfMergeService.foldSession(inputs, null, sessionDir));
+        try (Stream<Path> chunks = Files.list(sessionDir)) {
+            assertEquals(3, chunks.count());
+        }
+
+        String outputPath = tempDir.resolve("merged.pdf").toString();
+        pdfMergeService.finishSession(sessionDir, outputPath);
+
+        try (PDDocument doc = org.apache.pdfbox.Loader.loadPDF(new File(outputPath))) {
+            assertEquals(7, doc.getNumberOfPages());
+            PDFTextStripper stripper = new PDFTextStripper();
+            for (int i = 1; i <= 7; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                assertEquals("Scan " + i, stripper.getText(doc).trim());
+            }
+        }
+        assertFalse(Files.exists(sessionDir));
+    }
+
+    private File createScannedPdf(String filename, String title, int pages) throws IOException {
+        File file = tempDir.resolve(filename).toFile();
+        Random random = new Random(filename.hashCode());
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 1; i <= pages; i++) {
+                BufferedImage noise = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < noise.getHeight(); y++) {
+                    for (int x = 0; x < noise.getWidth(); x++) {
+                        noise.setRGB(x, y, random.nextInt(0x1000000));
+                    }
+                }
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                    contents.drawImage(LosslessFactory.createFromImage(doc, noise), 50, 400);
+                    contents.beginText();
+                    contents.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                    contents.newLineAtOffset(100, 700);
+                    contents.showText(title + " " + i);
+                    contents.endText();
+                }
+            }
+            doc.save(file);
+        }
+        return file;
+    }
+
     private File createDummyPdf(String filename, String content) throws IOException {
         File file = tempDir.resolve(filename).toFile();
         try (PDDocument doc = new PDDocument()) {
@@ -0,0 +1,86 @@
+package com.app.pdfstation.service.compression;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Throughput of {@link ImageResampler} against the former single-pass bicubic
+ * downscale, for a 6000x8000 scan reduced to 96, 150 and 300 DPI on a letter page.
+ *
+ * Not part of the test suite; run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.app.pdfstation.service.compression.ImageResamplerBenchmark}
+ */
+public class ImageResamplerBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] args) {
+        BufferedImage color = createScan(6000, 8000, BufferedImage.TYPE_INT_RGB);
+        BufferedImage gray = createScan(6000, 8000, BufferedImage.TYPE_BYTE_GRAY);
+
+        // 6000 px across 8.5 inches is ~706 DPI
+        double sourceDpi = 6000 / 8.5;
+        for (double targetDpi : new double[] { 96, 150, 300 }) {
+            double scale = targetDpi / sourceDpi;
+            int width = (int) (color.getWidth() * scale);
+            int height = (int) (color.getHeight() * scale);
+
+            System.out.printf("%n%.0f DPI (scale %.3f, %s) -> %dx%d%n",
+                    targetDpi, scale, ImageResampler.strategyFor(scale), width, height);
+            report("single-pass bicubic, RGB ", () -> singlePassBicubic(color, width, height), color);
+            report("resampler, RGB           ", () -> ImageResampler.resize(color, width, height), color);
+            report("single-pass bicubic, gray", () -> singlePassBicubic(gray, width, height), gray);
+            report("resampler, gray          ", () -> ImageResampler.resize(gray, width, height), gray);
+        }
+    }
+
+    /**
+     * The downscale the image phase used before the resampler
+     */
+    private static BufferedImage singlePassBicubic(BufferedImage image, int width, int height) {
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return resized;
+    }
+
+    private interface Resize {
+        BufferedImage run();
+    }
+
+    private static void report(String label, Resize resize, BufferedImage source) {
+        BufferedImage result = null;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            result = resize.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            result = resize.run();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / MEASURED_ROUNDS;
+        double megapixels = (double) source.getWidth() * source.getHeight() / 1e6;
+        System.out.printf("  %s %8.1f ms  %6.1f MP/s  %d band(s)%n",
+                label, seconds * 1000, megapixels / seconds, result.getRaster().getNumBands());
+    }
+
+    private static BufferedImage createScan(int width, int height, int type) {
+        Random random = new Random(42);
+        BufferedImage scan = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Fine hatching plus noise: aliases visibly when pixels are skipped
+                int shade = ((x / 3 + y / 3) % 2) * 160 + random.nextInt(64);
+                scan.setRGB(x, y, (shade << 16) | (shade << 8) | shade);
+            }
+        }
+        return scan;
+    }
+}
@@ -21,11 +21,15 @@ export const apiClient = {
     },
 
     // Merge PDFs
-    mergePdfs: async (files: File[]) => {
+    // pageRanges: one entry per file, e.g. "3-5"; an empty entry takes the whole file
+    mergePdfs: async (files: File[], pageRanges?: string[]) => {
         const formData = new FormData();
         files.forEach((file) => {
             formData.append('files', file);
         });
+        if (pageRanges && pageRanges.some((ranges) => ranges.trim() !== '')) {
+            formData.append('pageRanges', pageRanges.join(';'));
+        }
 
         const response = await fetch(`${API_BASE_URL}/api/pdf/jobs/merge`, {
             method: 'POST',
@@ -95,17 +99,21 @@ export const apiClient = {
         return `${API_BASE_URL}/api/pdf/jobs/${jobId}/download-split`;
     },
 
-    // Estimate size
-    estimateSize: async (originalSize: number, quality: number) => {
-        const response = await fetch(
-            `${API_BASE_URL}/api/pdf/jobs/estimate-size?originalSize=${originalSize}&quality=${quality}`
-        );
+    // Estimate size: breakdown and predicted size per quality (25, 50, 75, 100)
+    estimateSize: async (file: File) => {
+        const formData = new FormData();
+        formData.append('file', file);
+
+        const response = await fetch(`${API_BASE_URL}/api/pdf/jobs/estimate-size`, {
+            method: 'POST',
+            body: formData,
+        });
 
         if (!response.ok) {
             throw new Error('Failed to estimate size');
         }
 
-        return response.text();
+        return response.json();
     },
 
     // ==================== Protection Operations ====================